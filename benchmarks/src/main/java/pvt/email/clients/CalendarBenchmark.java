@@ -0,0 +1,58 @@
+package pvt.email.clients;
+
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.microsoft.graph.models.extensions.DateTimeTimeZone;
+
+/**
+ * Calendar rendering hot paths: Windows to IANA zone lookups and {@link App#formatDateTimeTimeZone}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalendarBenchmark {
+
+	/** Windows name, and an IANA name that maps back to a Windows name */
+	@Param({ "Pacific Standard Time", "Europe/Berlin" })
+	public String timeZone;
+
+	private DateTimeTimeZone eventStart;
+
+	@Setup
+	public void setup() {
+		eventStart = new DateTimeTimeZone();
+		eventStart.dateTime = "2020-09-14T09:30:00.0000000";
+		eventStart.timeZone = timeZone;
+	}
+
+	@Benchmark
+	public ZoneId zoneOf() {
+		return TimeZones.zoneOf(timeZone);
+	}
+
+	@Benchmark
+	public String toWindows() {
+		return TimeZones.toWindows(TimeZones.toIana(timeZone));
+	}
+
+	@Benchmark
+	public String formatDateTimeTimeZone() {
+		return App.formatDateTimeTimeZone(eventStart);
+	}
+}
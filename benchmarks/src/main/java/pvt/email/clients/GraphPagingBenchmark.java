@@ -0,0 +1,116 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.microsoft.graph.logger.DefaultLogger;
+import com.microsoft.graph.logger.LoggerLevel;
+import com.microsoft.graph.models.extensions.Message;
+import com.microsoft.graph.requests.extensions.IMessageCollectionPage;
+import com.microsoft.graph.requests.extensions.IMessageCollectionRequestBuilder;
+import com.microsoft.graph.requests.extensions.MessageCollectionPage;
+import com.microsoft.graph.requests.extensions.MessageCollectionRequestBuilder;
+import com.microsoft.graph.requests.extensions.MessageCollectionResponse;
+import com.microsoft.graph.serializer.DefaultSerializer;
+import com.microsoft.graph.serializer.ISerializer;
+
+/**
+ * Page aggregation of {@link Graph#getAllMails(String)} over recorded /me/messages pages.
+ * The network is taken out; what is left is SDK deserialization plus {@link Graph#collectPages},
+ * against the streaming parser of {@link GraphStream} over the same pages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphPagingBenchmark {
+
+	private static final String NEXT_LINK = "https://graph.microsoft.com/v1.0/me/messages?$select=sender%2csubject&$skip=";
+
+	@Param({ "10" })
+	public int pages;
+
+	@Param({ "10", "100" })
+	public int pageSize;
+
+	private ISerializer serializer;
+	private List<String> recordedPages;
+
+	@Setup
+	public void setup() {
+		DefaultLogger logger = new DefaultLogger();
+		logger.setLoggingLevel(LoggerLevel.ERROR);
+		serializer = new DefaultSerializer(logger);
+
+		recordedPages = new ArrayList<String>(pages);
+		for (int page = 0; page < pages; page++)
+			recordedPages.add(recordPage(page));
+	}
+
+	/**
+	 * Build one page in the shape /me/messages?$select=sender,subject returns it
+	 */
+	private String recordPage(int page) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"@odata.context\":\"https://graph.microsoft.com/v1.0/$metadata#users('me')/messages(sender,subject)\",");
+		json.append("\"value\":[");
+		for (int i = 0; i < pageSize; i++) {
+			int id = page * pageSize + i;
+			if (i > 0)
+				json.append(',');
+			json.append("{\"@odata.etag\":\"W/\\\"CQAAABYAAAB").append(id).append("\\\"\",")
+					.append("\"id\":\"AAMkAGI2TG93AAA=").append(id).append("\",")
+					.append("\"subject\":\"Test message number ").append(id).append("\",")
+					.append("\"sender\":{\"emailAddress\":{\"name\":\"Sender ").append(id % 50)
+					.append("\",\"address\":\"sender").append(id % 50).append("@example.com\"}}}");
+		}
+		json.append(']');
+		if (page + 1 < pages)
+			json.append(",\"@odata.nextLink\":\"").append(NEXT_LINK).append((page + 1) * pageSize).append('"');
+		json.append('}');
+		return json.toString();
+	}
+
+	private IMessageCollectionPage deserializePage(int page) {
+		MessageCollectionResponse response = serializer.deserializeObject(recordedPages.get(page),
+				MessageCollectionResponse.class);
+		IMessageCollectionRequestBuilder nextPage = response.nextLink == null ? null
+				: new MessageCollectionRequestBuilder(response.nextLink, null, null);
+		return new MessageCollectionPage(response, nextPage);
+	}
+
+	@Benchmark
+	public List<Message> getAllMails() {
+		int[] next = { 0 };
+		return Graph.collectPages(deserializePage(next[0]), nextPage -> deserializePage(++next[0]));
+	}
+
+	@Benchmark
+	public List<GraphStream.MessageSummary> streamAllMails() throws IOException {
+		List<GraphStream.MessageSummary> messages = new ArrayList<GraphStream.MessageSummary>();
+		int page = 0;
+		String nextLink;
+		do {
+			nextLink = GraphStream.parsePage(new StringReader(recordedPages.get(page++)), GraphStream::parseMessage,
+					messages::add);
+		} while (nextLink != null);
+		return messages;
+	}
+}
@@ -0,0 +1,84 @@
+package pvt.email.clients;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mail hot paths of {@link CheckingMails}:
+ * MIME construction and serialization done by sendEmail, and the listing printed by checkMails.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailBenchmark {
+
+	@Param({ "64", "16384" })
+	public int contentLength;
+
+	private Session session;
+	private String content;
+	private Message received;
+	private ByteArrayOutputStream out;
+
+	@Setup
+	public void setup() throws MessagingException, IOException {
+		Properties properties = new Properties();
+		properties.put("mail.smtp.host", "localhost");
+		session = Session.getInstance(properties);
+
+		StringBuilder text = new StringBuilder(contentLength);
+		while (text.length() < contentLength)
+			text.append("The quick brown fox jumps over the lazy dog. ");
+		content = text.substring(0, contentLength);
+
+		// Round trip through the wire format, so the listing parses like a fetched message
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		CheckingMails.createMessage(session, "sender@example.com", "recipient@example.com", "Benchmark subject",
+				content).writeTo(raw);
+		received = new MimeMessage(session, new ByteArrayInputStream(raw.toByteArray()));
+		out = new ByteArrayOutputStream(contentLength * 2 + 1024);
+	}
+
+	@Benchmark
+	public Message createMessage() throws MessagingException {
+		return CheckingMails.createMessage(session, "sender@example.com", "recipient@example.com",
+				"Benchmark subject", content);
+	}
+
+	@Benchmark
+	public int createAndSerializeMessage() throws MessagingException, IOException {
+		Message message = CheckingMails.createMessage(session, "sender@example.com", "recipient@example.com",
+				"Benchmark subject", content);
+		out.reset();
+		message.writeTo(out);
+		return out.size();
+	}
+
+	@Benchmark
+	public String renderHeader() throws MessagingException, IOException {
+		return CheckingMails.renderHeader(received, 1);
+	}
+}
@@ -0,0 +1,69 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Listing a cached folder from the memory-mapped index of {@link MessageStore}, headers only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageStoreBenchmark {
+
+	@Param({ "1000000" })
+	public int messages;
+
+	private Path dir;
+	private MessageStore store;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("message-store");
+		store = new MessageStore(dir);
+		Random random = new Random(42);
+		for (int i = 0; i < messages; i++)
+			store.append(i + 1, 1_500_000_000_000L + random.nextInt(Integer.MAX_VALUE), 0,
+					"sender" + (i % 500) + "@example.com", "Subject " + i, null, "INBOX", null);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		store.close();
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path file : (Iterable<Path>) files::iterator)
+				Files.delete(file);
+		}
+		Files.delete(dir);
+	}
+
+	@Benchmark
+	public int[] sortByDate() {
+		return store.sortByDate(true);
+	}
+
+	@Benchmark
+	public int[] findBySender() {
+		return store.findBySender("sender7@example.com");
+	}
+}
@@ -0,0 +1,453 @@
+package pvt.email.clients;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import javax.mail.Session;
+
+/**
+ * <p>
+ * Mail accounts, loaded once from a properties file into immutable, validated objects. <br>
+ * The flat keys of oAuth.properties (username, password, to, PROTOCOL_RECEIVE, IMAP4_HOST, ...) describe the
+ * account named {@link #DEFAULT_ACCOUNT}. Several accounts are listed comma separated in "accounts", the first
+ * being the default, and configured with "account.&lt;name&gt;.&lt;key&gt;" keys that fall back to the flat ones.
+ * <br>
+ * The session Properties and the Session of every endpoint are built at load time, so connecting or sending
+ * looks nothing up. {@link #watch(Path)} reloads the file whenever it changes and swaps the whole configuration
+ * at once. Accounts whose settings did not change keep their Sessions, and stores opened from a replaced account
+ * stay open.
+ * </p>
+ */
+public final class AccountConfig {
+
+	/** File reloaded on change, set with -Dpvt.email.config */
+	public static final String CONFIG_PROPERTY = "pvt.email.config";
+
+	/** Name of the account the flat keys describe */
+	public static final String DEFAULT_ACCOUNT = "default";
+
+	public static final String POP3 = "pop3s";
+	public static final String IMAP = "imaps";
+	public static final String SMTP = "smtp";
+
+	private final Map<String, Account> accounts;
+	private final Account defaultAccount;
+
+	/**
+	 * Server an account receives from or sends to
+	 */
+	public static final class Endpoint {
+		private final String protocol;
+		private final String host;
+		private final int port;
+		private final Properties properties;
+		private final Session session;
+
+		private Endpoint(String protocol, String host, int port, String username) {
+			this.protocol = protocol;
+			this.host = host;
+			this.port = port;
+			this.properties = sessionProperties(protocol, host, port, username);
+			this.session = Session.getInstance(properties);
+		}
+
+		private static Properties sessionProperties(String protocol, String host, int port, String username) {
+			Properties properties = new Properties();
+			switch (protocol) {
+			case POP3:
+				properties.put("mail.pop3.host", host);
+				properties.put("mail.pop3.port", String.valueOf(port));
+				properties.put("mail.pop3.starttls.enable", "true");
+				break;
+			case SMTP:
+				properties.put("mail.smtp.port", String.valueOf(port));
+				properties.put("mail.smtp.host", host);
+				properties.put("mail.smtp.auth", "true");
+				properties.put("mail.smtp.starttls.enable", "true");
+				break;
+			case IMAP:
+				properties.put("mail.imap.user", username);
+				properties.put("mail.imap.host", host);
+				properties.put("mail.imap.port", String.valueOf(port));
+				properties.put("mail.imap.ssl.enable", "true");
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported protocol " + protocol);
+			}
+			TransportRecorder.get().configure(properties, protocol);
+			return properties;
+		}
+
+		public String getProtocol() {
+			return protocol;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		/**
+		 * @return Properties - the Session's own properties, shared and not to be modified
+		 */
+		public Properties getProperties() {
+			return properties;
+		}
+
+		public Session getSession() {
+			return session;
+		}
+
+		private boolean sameSettings(Endpoint other) {
+			return other != null && protocol.equals(other.protocol) && host.equals(other.host) && port == other.port;
+		}
+
+		@Override
+		public String toString() {
+			return protocol + "://" + host + ":" + port;
+		}
+	}
+
+	/**
+	 * One mailbox: credentials, default recipient and its receive and send endpoints
+	 */
+	public static final class Account {
+		private final String name;
+		private final String username;
+		private final String password;
+		private final String to;
+		private final Endpoint receive;
+		private final Endpoint send;
+
+		private Account(String name, String username, String password, String to, Endpoint receive,
+				Endpoint send) {
+			this.name = name;
+			this.username = username;
+			this.password = password;
+			this.to = to;
+			this.receive = receive;
+			this.send = send;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		/**
+		 * @return String - password from the file, NULL if not configured
+		 */
+		public String getPassword() {
+			return password;
+		}
+
+		/**
+		 * @return String - default recipient, NULL if not configured
+		 */
+		public String getTo() {
+			return to;
+		}
+
+		/**
+		 * @return Endpoint - POP3 or IMAP server, NULL if the account does not receive
+		 */
+		public Endpoint getReceive() {
+			return receive;
+		}
+
+		/**
+		 * @return Endpoint - SMTP server, NULL if the account does not send
+		 */
+		public Endpoint getSend() {
+			return send;
+		}
+
+		/**
+		 * @return boolean - TRUE if the account receives with the protocol
+		 */
+		public boolean receivesWith(String protocol) {
+			return receive != null && receive.protocol.equals(protocol);
+		}
+
+		private boolean sameSettings(Account other) {
+			return name.equals(other.name) && username.equals(other.username)
+					&& Objects.equals(password, other.password) && Objects.equals(to, other.to)
+					&& (receive == null ? other.receive == null : receive.sameSettings(other.receive))
+					&& (send == null ? other.send == null : send.sameSettings(other.send));
+		}
+
+		/**
+		 * The password is never part of the text
+		 */
+		@Override
+		public String toString() {
+			return name + " (" + username + ", receive " + receive + ", send " + send + ")";
+		}
+	}
+
+	private AccountConfig(Map<String, Account> accounts, Account defaultAccount) {
+		this.accounts = accounts;
+		this.defaultAccount = defaultAccount;
+	}
+
+	/**
+	 * @return Collection - all accounts, the default first
+	 */
+	public Collection<Account> getAccounts() {
+		return accounts.values();
+	}
+
+	public Account getDefaultAccount() {
+		return defaultAccount;
+	}
+
+	/**
+	 * @return Account - the named account, NULL if there is none
+	 */
+	public Account getAccount(String name) {
+		return accounts.get(name);
+	}
+
+	/**
+	 * Load from a file
+	 * @param previous - configuration being replaced, its unchanged accounts are reused; may be NULL
+	 * @throws IllegalArgumentException - if an account is invalid
+	 */
+	public static AccountConfig load(Path file, AccountConfig previous) throws IOException {
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(file)) {
+			properties.load(reader);
+		}
+		return parse(properties, previous);
+	}
+
+	/**
+	 * Load from a properties file on the classpath, next to {@link App}
+	 * @throws IllegalArgumentException - if an account is invalid
+	 */
+	public static AccountConfig loadResource(String resource) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = App.class.getResourceAsStream(resource)) {
+			if (in == null)
+				throw new FileNotFoundException(resource + " not found on the classpath");
+			properties.load(in);
+		}
+		return parse(properties, null);
+	}
+
+	/**
+	 * @param previous - configuration being replaced, its unchanged accounts are reused; may be NULL
+	 * @return AccountConfig - every account, validated
+	 * @throws IllegalArgumentException - listing every invalid setting
+	 */
+	public static AccountConfig parse(Properties properties, AccountConfig previous) {
+		List<String> names = new ArrayList<String>();
+		String listed = properties.getProperty("accounts");
+		if (listed == null || listed.isBlank()) {
+			names.add(DEFAULT_ACCOUNT);
+		} else {
+			for (String name : listed.split(","))
+				if (!name.isBlank() && !names.contains(name.trim()))
+					names.add(name.trim());
+		}
+
+		List<String> errors = new ArrayList<String>();
+		Map<String, Account> accounts = new LinkedHashMap<String, Account>();
+		for (String name : names) {
+			Account account = parseAccount(properties, name, errors);
+			if (account == null)
+				continue;
+			Account kept = previous == null ? null : previous.accounts.get(name);
+			accounts.put(name, kept != null && kept.sameSettings(account) ? kept : account);
+		}
+		if (!errors.isEmpty())
+			throw new IllegalArgumentException("Invalid account configuration: " + String.join("; ", errors));
+		Map<String, Account> unmodifiable = Collections.unmodifiableMap(accounts);
+		return new AccountConfig(unmodifiable, unmodifiable.values().iterator().next());
+	}
+
+	private static Account parseAccount(Properties properties, String name, List<String> errors) {
+		int errorCount = errors.size();
+		String username = value(properties, name, "username");
+		if (username == null)
+			errors.add(key(name, "username") + " is missing");
+		Endpoint receive = null;
+		String receiveProtocol = value(properties, name, "PROTOCOL_RECEIVE");
+		if (POP3.equals(receiveProtocol))
+			receive = endpoint(properties, name, POP3, "POP3_HOST", "POP3_PORT", username, errors);
+		else if (IMAP.equals(receiveProtocol))
+			receive = endpoint(properties, name, IMAP, "IMAP4_HOST", "IMAP4_PORT", username, errors);
+		else if (receiveProtocol != null)
+			errors.add(key(name, "PROTOCOL_RECEIVE") + " must be " + POP3 + " or " + IMAP + ", not "
+					+ receiveProtocol);
+		Endpoint send = null;
+		String sendProtocol = value(properties, name, "PROTOCOL_SEND");
+		if (SMTP.equals(sendProtocol))
+			send = endpoint(properties, name, SMTP, "SMTP_HOST", "SMTP_PORT", username, errors);
+		else if (sendProtocol != null)
+			errors.add(key(name, "PROTOCOL_SEND") + " must be " + SMTP + ", not " + sendProtocol);
+		if (receiveProtocol == null && sendProtocol == null)
+			errors.add(name + " has neither PROTOCOL_RECEIVE nor PROTOCOL_SEND");
+		if (errors.size() > errorCount)
+			return null;
+		return new Account(name, username, value(properties, name, "password"), value(properties, name, "to"),
+				receive, send);
+	}
+
+	private static Endpoint endpoint(Properties properties, String name, String protocol, String hostKey,
+			String portKey, String username, List<String> errors) {
+		String host = value(properties, name, hostKey);
+		String port = value(properties, name, portKey);
+		int number = -1;
+		try {
+			number = port == null ? -1 : Integer.parseInt(port);
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		if (host == null)
+			errors.add(key(name, hostKey) + " is missing");
+		if (number < 1 || number > 65535)
+			errors.add(key(name, portKey) + " must be a port number, not " + port);
+		if (host == null || number < 1 || number > 65535 || username == null)
+			return null;
+		return new Endpoint(protocol, host, number, username);
+	}
+
+	/**
+	 * @return String - the account's own value, else the flat one, trimmed; NULL if blank
+	 */
+	private static String value(Properties properties, String name, String key) {
+		String value = properties.getProperty(key(name, key));
+		if (value == null || value.isBlank())
+			value = properties.getProperty(key);
+		return value == null || value.isBlank() ? null : value.trim();
+	}
+
+	private static String key(String name, String key) {
+		return DEFAULT_ACCOUNT.equals(name) ? key : "account." + name + "." + key;
+	}
+
+	/**
+	 * The configuration in use: the -Dpvt.email.config file, watched, if set, else the classpath resource
+	 * @return Supplier - current configuration on every call
+	 * @throws IllegalArgumentException - if the configuration is invalid now
+	 */
+	public static Supplier<AccountConfig> current(String resource) throws IOException {
+		String file = System.getProperty(CONFIG_PROPERTY);
+		if (file != null && !file.isBlank())
+			return watch(Paths.get(file))::get;
+		AccountConfig loaded = loadResource(resource);
+		return () -> loaded;
+	}
+
+	/**
+	 * Load the file and keep reloading it when it changes
+	 * @return Live - current configuration, close to stop watching
+	 * @throws IllegalArgumentException - if the file is invalid now
+	 */
+	public static Live watch(Path file) throws IOException {
+		Path absolute = file.toAbsolutePath();
+		Live live = new Live(absolute, load(absolute, null));
+		live.start();
+		return live;
+	}
+
+	/**
+	 * The current configuration of a watched file. An invalid or unreadable change is reported and the
+	 * previous configuration kept.
+	 */
+	public static final class Live implements Closeable {
+		/** Quiet time after the last change event before the file is read */
+		static final long SETTLE_MILLIS = 200;
+
+		private final Path file;
+		private final AtomicReference<AccountConfig> current;
+		private final WatchService watcher;
+		private final Thread thread;
+
+		private Live(Path file, AccountConfig initial) throws IOException {
+			this.file = file;
+			this.current = new AtomicReference<AccountConfig>(initial);
+			this.watcher = file.getFileSystem().newWatchService();
+			file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			this.thread = new Thread(this::run, "config-watch");
+			thread.setDaemon(true);
+		}
+
+		private void start() {
+			thread.start();
+		}
+
+		public AccountConfig get() {
+			return current.get();
+		}
+
+		/**
+		 * Reload now, as the watcher does on a change
+		 * @return boolean - TRUE if the file was valid and is now in use
+		 */
+		public boolean reload() {
+			try {
+				current.set(load(file, current.get()));
+				return true;
+			} catch (IOException | IllegalArgumentException e) {
+				System.err.println("Keeping the previous account configuration - " + e.getMessage());
+				return false;
+			}
+		}
+
+		private void run() {
+			try {
+				while (true) {
+					boolean changed = false;
+					// editors truncate then write, wait for the events to settle before reading
+					for (WatchKey key = watcher.take(); key != null; key = watcher.poll(SETTLE_MILLIS,
+							TimeUnit.MILLISECONDS)) {
+						for (WatchEvent<?> event : key.pollEvents())
+							changed |= file.getFileName().equals(event.context())
+									|| event.kind() == StandardWatchEventKinds.OVERFLOW;
+						key.reset();
+					}
+					if (changed && reload())
+						System.out.println("Reloaded " + file);
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				// closed
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			watcher.close();
+		}
+	}
+}
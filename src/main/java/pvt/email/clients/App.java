@@ -3,23 +3,26 @@ package pvt.email.clients;
 import java.util.InputMismatchException;
 import java.util.Scanner;
 import java.io.IOException;
+import java.nio.file.Paths;
+import javax.mail.MessagingException;
 import java.util.Properties;
 import com.microsoft.graph.models.extensions.User;
 
+import java.time.DateTimeException;
 import java.time.DayOfWeek;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
-import java.time.format.FormatStyle;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAdjusters;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import com.microsoft.graph.models.extensions.DateTimeTimeZone;
-import com.microsoft.graph.models.extensions.Event;
-import com.microsoft.graph.models.extensions.Message;
 
 /**
  * Graph Tutorial
@@ -27,6 +30,10 @@ import com.microsoft.graph.models.extensions.Message;
  */
 public class App {
 	public static void main(String[] args) {
+		if (Daemon.requested(args)) {
+			Daemon.main(args);
+			return;
+		}
 		System.out.println("Java Graph Tutorial");
 		System.out.println();
 
@@ -53,6 +60,14 @@ public class App {
 		String timeZone = "UTC-08";
 		if (null != user.mailboxSettings.timeZone)
 			timeZone = user.mailboxSettings.timeZone;
+		try {
+			TimeZones.zoneOf(timeZone);
+		} catch (DateTimeException e) {
+			// e.g. "Customized Time Zone", neither a Windows nor an IANA name
+			String fallback = ZoneId.systemDefault().getId();
+			System.out.println("Unknown time zone " + timeZone + ", using " + fallback + " instead");
+			timeZone = fallback;
+		}
 
 		System.out.println("Time zone: " + timeZone);
 		System.out.println();
@@ -60,6 +75,8 @@ public class App {
 		Scanner input = new Scanner(System.in);
 
 		int choice = -1;
+		// Kept for the session, each listing only asks for mails received since the previous one
+		ConversationThreader conversations = new ConversationThreader();
 
 		while (choice != 0) {
 			System.out.println("Please choose one of the following options:");
@@ -68,6 +85,12 @@ public class App {
 			System.out.println("2. View this week's calendar");
 			System.out.println("3. Add an event");
 			System.out.println("4. Show all mails");
+			System.out.println("5. Crawl all mail folders");
+			System.out.println("6. Show folder statistics");
+			System.out.println("7. Search cached mails");
+			System.out.println("8. Show conversations");
+			System.out.println("9. Mailbox analytics");
+			System.out.println("10. Export all mail folders");
 
 			try {
 				choice = input.nextInt();
@@ -99,6 +122,34 @@ public class App {
 				// List all mails
 				listMessages(accessToken);
 				break;
+			case 5:
+				// Count the mails of every folder
+				crawlMailFolders(accessToken);
+				break;
+			case 6:
+				// Counts and sizes of every folder, without listing any mail
+				FolderStatistics.print(FolderStatistics.graph(accessToken, "/me"));
+				break;
+			case 7:
+				// Ranked search over the mails kept in the message store
+				System.out.println("Search for:");
+				searchMessages(input.nextLine());
+				break;
+			case 8:
+				// Mails grouped by conversationId, most recent conversation first
+				conversations.graph(accessToken, "/me/messages");
+				conversations.print(30);
+				break;
+			case 9:
+				// Top senders, sizes and volume per day, in bounded memory
+				MailboxAnalytics analytics = new MailboxAnalytics();
+				analytics.graph(accessToken, "/me/messages");
+				analytics.print(20);
+				break;
+			case 10:
+				// mbox or one .eml per message, resumed when the directory holds a previous export
+				exportMessages(accessToken, input);
+				break;
 			default:
 				System.out.println("Invalid choice");
 			}
@@ -108,23 +159,108 @@ public class App {
 	}
 	
 	private static void listMessages(String accessToken) {
-		List<Message>  messages = Graph.getAllMails(accessToken);
 		System.out.println("Mails:");
-		for (Message message : messages) {
-			System.out.println("Parent Folder ID: " + message.parentFolderId);
-			System.out.println("  From: " + message.from);
-			System.out.println("  Subject: " + message.subject);
+		MessageRules rules = loadRules();
+		try (MessageStore cache = MessageStore.open("me", "messages")) {
+			if (cache != null) {
+				// Served from the local store, refreshed once it is older than pvt.email.store.ttl
+				if (!cache.isFresh()) {
+					cache.sync(accessToken, "/me");
+					SearchIndex.update(cache);
+				}
+				// the store keeps subject and sender address, the rules see those
+				GraphStream.MessageSummary stored = new GraphStream.MessageSummary();
+				for (int i = 0, n = cache.size(); i < n; i++) {
+					if (cache.isExpunged(i))
+						continue;
+					String[] strings = cache.readStrings(i);
+					System.out.println("Parent Folder ID: " + strings[3]);
+					System.out.println("  From: " + strings[1]);
+					System.out.println("  Subject: " + strings[0]);
+					if (rules != null) {
+						stored.subject = strings[0];
+						stored.fromAddress = strings[1];
+						System.out.println("  Rules: " + rules.describe(rules.evaluate(stored)));
+					}
+				}
+				if (rules != null)
+					rules.printHits();
+				return;
+			}
+		} catch (IOException | MessagingException e) {
+			System.out.println("Unable to use the message store - " + e.getMessage());
+		}
+		// Printed while the pages stream in, nothing is kept. The rules also get every header.
+		GraphStream.streamMessages(accessToken,
+				"parentFolderId,from,sender,subject" + (rules != null ? ",internetMessageHeaders" : ""),
+				GraphStream.MAX_PAGE_SIZE, message -> {
+					System.out.println("Parent Folder ID: " + message.parentFolderId);
+					System.out.println("  From: " + message.fromName + " <" + message.fromAddress + ">");
+					System.out.println("  Subject: " + message.subject);
+					if (rules != null)
+						System.out.println("  Rules: " + rules.describe(rules.evaluate(message)));
+				});
+		if (rules != null)
+			rules.printHits();
+	}
+
+	private static MessageRules loadRules() {
+		try {
+			return MessageRules.load();
+		} catch (IOException | IllegalArgumentException e) {
+			System.out.println("Unable to load the message rules - " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static void searchMessages(String query) {
+		try (MessageStore cache = MessageStore.open("me", "messages")) {
+			if (cache == null) {
+				System.out.println("Searching needs a message store, set " + MessageStore.DIR_PROPERTY);
+				return;
+			}
+			SearchIndex.update(cache);
+			SearchIndex index = SearchIndex.open(cache);
+			SearchIndex.print(cache, index.search(query, 20));
+		} catch (IOException | MessagingException e) {
+			System.out.println("Unable to search the message store - " + e.getMessage());
+		}
+	}
+
+	private static void exportMessages(String accessToken, Scanner input) {
+		System.out.println("Export directory:");
+		String directory = input.nextLine();
+		System.out.println("Format, mbox or eml:");
+		MailboxExporter.Format format = "eml".equalsIgnoreCase(input.nextLine().trim()) ? MailboxExporter.Format.EML
+				: MailboxExporter.Format.MBOX;
+		try {
+			System.out.println(new MailboxExporter(Paths.get(directory), format, 4, 4 * 1024 * 1024)
+					.exportGraph(accessToken, "/me"));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
-	private static String formatDateTimeTimeZone(DateTimeTimeZone date) {
-		LocalDateTime dateTime = LocalDateTime.parse(date.dateTime);
+	private static void crawlMailFolders(String accessToken) {
+		try {
+			MailboxCrawler.Result result = new MailboxCrawler(MailboxCrawler.console(), 4, 4)
+					.crawl(Collections.singletonList(new MailboxCrawler.GraphAccount("me", accessToken, "/me")));
+			System.out.println(result);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	static String formatDateTimeTimeZone(DateTimeTimeZone date) {
+		return formatDateTimeTimeZone(date.dateTime, date.timeZone);
+	}
 
-		return dateTime.format(DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT)) + " (" + date.timeZone + ")";
+	static String formatDateTimeTimeZone(String dateTime, String timeZone) {
+		return TimeZones.format(dateTime, timeZone);
 	}
 
 	private static void listCalendarEvents(String accessToken, String timeZone) {
-		ZoneId tzId = GraphToIana.getZoneIdFromWindows("Pacific Standard Time");
+		ZoneId tzId = TimeZones.zoneOf(timeZone);
 
 		// Get midnight of the first day of the week (assumed Sunday)
 		// in the user's timezone, then convert to UTC
@@ -134,17 +270,15 @@ public class App {
 		// Add 7 days to get the end of the week
 		ZonedDateTime endOfWeek = startOfWeek.plusDays(7);
 
-		// Get the user's events
-		List<Event> events = Graph.getCalendarView(accessToken, startOfWeek, endOfWeek, timeZone);
-
 		System.out.println("Events:");
 
-		for (Event event : events) {
+		// Get the user's events, printed while the pages stream in
+		GraphStream.streamCalendarView(accessToken, startOfWeek, endOfWeek, timeZone, event -> {
 			System.out.println("Subject: " + event.subject);
-			System.out.println("  Organizer: " + event.organizer.emailAddress.name);
-			System.out.println("  Start: " + formatDateTimeTimeZone(event.start));
-			System.out.println("  End: " + formatDateTimeTimeZone(event.end));
-		}
+			System.out.println("  Organizer: " + event.organizerName);
+			System.out.println("  Start: " + formatDateTimeTimeZone(event.startDateTime, event.startTimeZone));
+			System.out.println("  End: " + formatDateTimeTimeZone(event.endDateTime, event.endTimeZone));
+		});
 
 		System.out.println();
 	}
@@ -159,8 +293,34 @@ public class App {
 			subject = input.nextLine();
 		}
 
-		// Prompt for start date/time
+		// Prompt for attendees
+		HashSet<String> attendees = new HashSet<String>();
+		System.out.print("Would you like to add attendees? (y/n): ");
+		if (input.nextLine().trim().toLowerCase().startsWith("y")) {
+			String attendee = "";
+			do {
+				System.out.print("Enter an email address (leave blank to finalize the list): ");
+				attendee = input.nextLine();
+
+				if (!attendee.isBlank()) {
+					attendees.add(attendee);
+				}
+			} while (!attendee.isBlank());
+		}
+
+		// Offer free slots of everyone invited
 		LocalDateTime start = null;
+		LocalDateTime end = null;
+		System.out.print("Would you like to find a free slot? (y/n): ");
+		if (input.nextLine().trim().toLowerCase().startsWith("y")) {
+			LocalDateTime[] slot = findSlot(accessToken, timeZone, attendees, input);
+			if (slot != null) {
+				start = slot[0];
+				end = slot[1];
+			}
+		}
+
+		// Prompt for start date/time
 		while (start == null) {
 			System.out.print("Start (mm/dd/yyyy hh:mm AM/PM): ");
 			String date = input.nextLine();
@@ -173,7 +333,6 @@ public class App {
 		}
 
 		// Prompt for end date/time
-		LocalDateTime end = null;
 		while (end == null) {
 			System.out.print("End (mm/dd/yyyy hh:mm AM/PM): ");
 			String date = input.nextLine();
@@ -190,21 +349,6 @@ public class App {
 			}
 		}
 
-		// Prompt for attendees
-		HashSet<String> attendees = new HashSet<String>();
-		System.out.print("Would you like to add attendees? (y/n): ");
-		if (input.nextLine().trim().toLowerCase().startsWith("y")) {
-			String attendee = "";
-			do {
-				System.out.print("Enter an email address (leave blank to finalize the list): ");
-				attendee = input.nextLine();
-
-				if (!attendee.isBlank()) {
-					attendees.add(attendee);
-				}
-			} while (!attendee.isBlank());
-		}
-
 		// Prompt for body
 		String body = null;
 		System.out.print("Would you like to add a body? (y/n): ");
@@ -232,4 +376,52 @@ public class App {
 
 		System.out.println();
 	}
+
+	/**
+	 * Suggest slots free for the user and all attendees over the next two weeks of working hours
+	 * @return LocalDateTime[] - start and end of the chosen slot in the user's time zone, NULL if none was chosen
+	 */
+	private static LocalDateTime[] findSlot(String accessToken, String timeZone, Set<String> attendees,
+			Scanner input) {
+		int minutes = 0;
+		while (minutes <= 0) {
+			System.out.print("Duration in minutes: ");
+			try {
+				minutes = Integer.parseInt(input.nextLine().trim());
+			} catch (NumberFormatException e) {
+				System.out.println("Invalid input, try again.");
+			}
+		}
+
+		ZoneId zone = TimeZones.zoneOf(timeZone);
+		ZonedDateTime now = ZonedDateTime.now(zone);
+		// first slot on the next quarter hour
+		ZonedDateTime windowStart = now.truncatedTo(ChronoUnit.HOURS).plusMinutes((now.getMinute() / 15 + 1) * 15);
+		SlotFinder finder = new SlotFinder(windowStart, windowStart.plusDays(14), 15);
+		finder.setWorkingHours(zone, LocalTime.of(9, 0), LocalTime.of(17, 0));
+		finder.calendarView(accessToken, "me", "/me");
+		if (!attendees.isEmpty())
+			finder.schedule(accessToken, attendees);
+		if (!finder.getUnknown().isEmpty())
+			System.out.println("No availability for " + finder.getUnknown() + ", assumed free.");
+
+		List<SlotFinder.Slot> slots = finder.find(minutes, 5);
+		if (slots.isEmpty()) {
+			System.out.println("No common free slot in the next two weeks.");
+			return null;
+		}
+		for (int i = 0; i < slots.size(); i++)
+			System.out.println((i + 1) + " - " + TimeZones.format(slots.get(i).start, zone) + " to "
+					+ TimeZones.format(slots.get(i).end, zone));
+		System.out.print("Pick a slot (any other number to enter times by hand): ");
+		try {
+			int choice = Integer.parseInt(input.nextLine().trim());
+			if (choice >= 1 && choice <= slots.size())
+				return new LocalDateTime[] { LocalDateTime.ofInstant(slots.get(choice - 1).start, zone),
+						LocalDateTime.ofInstant(slots.get(choice - 1).end, zone) };
+		} catch (NumberFormatException e) {
+			// enter by hand
+		}
+		return null;
+	}
 }
\ No newline at end of file
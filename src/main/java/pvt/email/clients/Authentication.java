@@ -2,47 +2,102 @@ package pvt.email.clients;
 
 import java.net.MalformedURLException;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 
 import com.microsoft.aad.msal4j.DeviceCode;
 import com.microsoft.aad.msal4j.DeviceCodeFlowParameters;
+import com.microsoft.aad.msal4j.IAccount;
 import com.microsoft.aad.msal4j.IAuthenticationResult;
 import com.microsoft.aad.msal4j.PublicClientApplication;
+import com.microsoft.aad.msal4j.SilentParameters;
 
 /**
  * Authentication
+ * <p>
+ * The MSAL application and its token cache are kept for the process. A token is handed out again until shortly
+ * before it expires, then refreshed silently; only the first sign in (or a failed refresh) runs the device code
+ * flow. Long running callers can ask for a token on every request.
+ * </p>
  */
 public class Authentication {
 
+	/** Tokens are refreshed this long before they expire */
+	private static final long REFRESH_MARGIN_MILLIS = 5 * 60 * 1000;
+
 	private static String applicationId;
+	private static PublicClientApplication app;
+	private static IAuthenticationResult result;
 	// Set authority to allow only organizational accounts
 	// Device code flow only supports organizational accounts
 	private final static String authority = "https://login.microsoftonline.com/common/";
 
-	public static void initialize(String applicationId) {
+	public static synchronized void initialize(String applicationId) {
+		if (!applicationId.equals(Authentication.applicationId)) {
+			app = null;
+			result = null;
+		}
 		Authentication.applicationId = applicationId;
 	}
 
 	public static String getUserAccessToken(String[] scopes) {
+		return getUserAccessToken(scopes, true);
+	}
+
+	/**
+	 * Never asks the user: for callers nobody watches, which must not block on the device code flow
+	 * @return String - a cached or silently refreshed token, NULL if only a new sign in would give one
+	 */
+	public static String getUserAccessTokenSilently(String[] scopes) {
+		return getUserAccessToken(scopes, false);
+	}
+
+	private static synchronized String getUserAccessToken(String[] scopes, boolean interactive) {
 		if (applicationId == null) {
 			System.out.println("You must initialize Authentication before calling getUserAccessToken");
 			return null;
 		}
 
+		// Replayed Graph responses don't check the token, and there is no login server offline
+		if (TransportRecorder.get().isReplaying()) {
+			System.out.println("Replaying a recording, skipping sign in");
+			return "replay";
+		}
+
 		Set<String> scopeSet = Set.of(scopes);
 
-		ExecutorService pool = Executors.newFixedThreadPool(1);
-		PublicClientApplication app;
-		try {
-			// Build the MSAL application object with
-			// app ID and authority
-			app = PublicClientApplication.builder(applicationId).authority(authority).executorService(pool).build();
-		} catch (MalformedURLException e) {
-			return null;
+		if (app == null) {
+			ExecutorService pool = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "msal");
+				thread.setDaemon(true);
+				return thread;
+			});
+			try {
+				// Build the MSAL application object with
+				// app ID and authority
+				app = PublicClientApplication.builder(applicationId).authority(authority).executorService(pool)
+						.build();
+			} catch (MalformedURLException e) {
+				pool.shutdown();
+				return null;
+			}
 		}
 
+		// Still valid, or refreshed from the token cache without user interaction
+		if (result != null && result.scopes() != null
+				&& Set.of(result.scopes().split(" ")).containsAll(scopeSet)
+				&& result.expiresOnDate().getTime() - System.currentTimeMillis() > REFRESH_MARGIN_MILLIS)
+			return result.accessToken();
+		IAuthenticationResult silent = acquireSilently(scopeSet);
+		if (silent != null) {
+			result = silent;
+			return silent.accessToken();
+		}
+		if (!interactive)
+			return null;
+
 		// Create consumer to receive the DeviceCode object
 		// This method gets executed during the flow and provides
 		// the URL the user logs into and the device code to enter
@@ -52,14 +107,14 @@ public class Authentication {
 		};
 
 		// Request a token, passing the requested permission scopes
-		IAuthenticationResult result = app
+		long start = System.nanoTime();
+		result = app
 				.acquireToken(DeviceCodeFlowParameters.builder(scopeSet, deviceCodeConsumer).build())
 				.exceptionally(ex -> {
 					System.out.println("Unable to authenticate - " + ex.getMessage());
 					return null;
 				}).join();
-
-		pool.shutdown();
+		Metrics.TOKEN_ACQUIRE.recordSince(start);
 
 		if (result != null) {
 			return result.accessToken();
@@ -67,4 +122,23 @@ public class Authentication {
 
 		return null;
 	}
+
+	/**
+	 * @return IAuthenticationResult - a token for the signed in account from the cache, refreshed if needed;
+	 *         NULL if nobody signed in yet or the refresh token no longer works
+	 */
+	private static IAuthenticationResult acquireSilently(Set<String> scopeSet) {
+		if (result == null || result.account() == null)
+			return null;
+		long start = System.nanoTime();
+		try {
+			IAccount account = result.account();
+			IAuthenticationResult silent = app.acquireTokenSilently(SilentParameters.builder(scopeSet, account).build())
+					.join();
+			Metrics.TOKEN_ACQUIRE.recordSince(start);
+			return silent;
+		} catch (MalformedURLException | CompletionException e) {
+			return null;
+		}
+	}
 }
\ No newline at end of file
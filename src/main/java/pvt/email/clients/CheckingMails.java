@@ -2,23 +2,29 @@ package pvt.email.clients;
 
 import java.io.Console;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Properties;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.function.Supplier;
 
 import javax.mail.Address;
-import javax.mail.Authenticator;
+import javax.mail.FetchProfile;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.Transport;
+import javax.mail.UIDFolder;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
+import com.sun.mail.imap.IMAPFolder;
+
 /**
  * POC code for :
  * 1. Retrieve some mails
@@ -27,25 +33,27 @@ import javax.mail.internet.MimeMessage;
  */
 public class CheckingMails {
 
-	private static final String POP3 = "pop3s";
-	private static final String IMAP = "imaps";
-	private static final String SMTP = "smtp";
+	private static final String IMAP = AccountConfig.IMAP;
 	private static final String PROTOCOL_RECEIVE = "PROTOCOL_RECEIVE";
-	private static final String PROTOCOL_SEND = "PROTOCOL_SEND";
 
-	private String password = null;
-	private Properties oAuthProperties = null;
+	/** Passwords typed at the console, per account */
+	private final Map<String, String> passwords = new HashMap<String, String>();
+	private Supplier<AccountConfig> config;
+	private String accountName;
 	private String propertyFile;
 	private Scanner sc;
+	/** Conversations per folder, kept between calls so only new mails get fetched */
+	private final Map<String, ConversationThreader> conversations = new HashMap<String, ConversationThreader>();
 
 	/**
 	 * Constructor takes property file that contains email server details and user name
 	 * Also, initialize the Scanner object with current Input Stream (System.in)
-	 * @param proportyFile - property file name, included under maven resources folder
+	 * @param proportyFile - property file name, included under maven resources folder. A file set with
+	 *            -Dpvt.email.config is used instead, and reloaded whenever it changes.
 	 */
 	public CheckingMails(String proportyFile) {
 		this.propertyFile = proportyFile;
-		loadProperties(this.propertyFile);
+		this.config = loadConfig(this.propertyFile);
 		sc = new Scanner(System.in);
 	}
 	
@@ -58,62 +66,76 @@ public class CheckingMails {
 	 */
 	public void sendEmail() {
 		System.out.println("Loading session and Authenticating");
-		final Session session = Session.getInstance(getProtocolProporties(PROTOCOL_SEND), new Authenticator() {
-
-			@Override
-			protected PasswordAuthentication getPasswordAuthentication() {
-				return new PasswordAuthentication(getProperty("username"), getPassword());
-			}
-
-		});
-		if(null == session) {
-			System.err.println("Session is null, cann't proceed");
+		final AccountConfig.Account account = account();
+		if (account.getSend() == null) {
+			System.err.println("No PROTOCOL_SEND configured for " + account.getName() + ", cann't proceed");
 			return ;
 		}
+		final Session session = account.getSend().getSession();
 		
 		System.out.println("Authenticated, will try to send an email");
 
 		try {
-			final Message message = new MimeMessage(session) {
-				//Print the message to console
-				@Override
-				public String toString() {
-					StringBuilder stringBuilder = new StringBuilder();
-					try {
-						stringBuilder.append("\n").append("From : ").append("\n");
-						for (Address address : this.getFrom())
-							stringBuilder.append(address).append("\n");
-						stringBuilder.append("\n").append("To : ").append("\n");
-						for (Address address : this.getRecipients(Message.RecipientType.TO))
-							stringBuilder.append(address).append("\n");
-						stringBuilder.append("Subject : ").append("\n").append(this.getSubject());
-						stringBuilder.append("\n").append("Sent Date : ").append(this.getSentDate());
-					} catch (MessagingException e) {
-						e.printStackTrace();
-					}
-					return stringBuilder.toString();
-				}
-			};
-			
 			//Get Mail field details
-			message.setFrom(new InternetAddress(getProperty("username")));
-			message.setRecipient(Message.RecipientType.TO, new InternetAddress(getUserInput("to")));
-			message.setSubject(getUserInput("subject"));
-			message.setText(getUserInput("messageContent"));
-			message.setSentDate(new Date());
+			final Message message = createMessage(session, account.getUsername(), getUserInput("to"),
+					getUserInput("subject"), getUserInput("messageContent"));
 			System.out.println("Sending the mail as details below :");
 			System.out.println(message);
 			
 			//Send email here, this throws exception if fails
-			Transport.send(message);
+			long start = System.nanoTime();
+			Transport.send(message, account.getUsername(), getPassword(account));
+			Metrics.MAIL_SEND.recordSince(start);
 			
 			System.out.println("Email Sent");
 		} catch (final MessagingException ex) {
+			Metrics.MAIL_ERRORS.increment();
 			System.err.println("Error: " + ex.getMessage());
 			ex.printStackTrace();
 		}
 	}
 
+	/**
+	 * Build the MIME message that {@link #sendEmail()} hands to the Transport.
+	 * toString() is overridden to print the message details to console.
+	 * @param session - Mail session the message belongs to
+	 * @param from - Sender address
+	 * @param to - Recipient address
+	 * @param subject - Email Subject
+	 * @param content - Email content, sent as plain text
+	 * @return Message - ready to send message, with sent date set to now
+	 * @throws MessagingException - if any of the addresses can't be parsed
+	 */
+	static Message createMessage(Session session, String from, String to, String subject, String content)
+			throws MessagingException {
+		final Message message = new MimeMessage(session) {
+			//Print the message to console
+			@Override
+			public String toString() {
+				StringBuilder stringBuilder = new StringBuilder();
+				try {
+					stringBuilder.append("\n").append("From : ").append("\n");
+					for (Address address : this.getFrom())
+						stringBuilder.append(address).append("\n");
+					stringBuilder.append("\n").append("To : ").append("\n");
+					for (Address address : this.getRecipients(Message.RecipientType.TO))
+						stringBuilder.append(address).append("\n");
+					stringBuilder.append("Subject : ").append("\n").append(this.getSubject());
+					stringBuilder.append("\n").append("Sent Date : ").append(this.getSentDate());
+				} catch (MessagingException e) {
+					e.printStackTrace();
+				}
+				return stringBuilder.toString();
+			}
+		};
+		message.setFrom(new InternetAddress(from));
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress(to));
+		message.setSubject(subject);
+		message.setText(content);
+		message.setSentDate(new Date());
+		return message;
+	}
+
 	/**
 	 * Return user input as String for the given text message
 	 * @param userMessage : show it to user, must be informative
@@ -136,46 +158,250 @@ public class CheckingMails {
 				folderName = "INBOX";
 			// create the folder object and open it
 			Folder emailFolder = store.getFolder(folderName);
+			if (emailFolder instanceof UIDFolder && printCachedMails(emailFolder)) {
+				store.close();
+				return;
+			}
+			long start = System.nanoTime();
 			emailFolder.open(Folder.READ_ONLY);
+			Metrics.MAIL_FOLDER_OPEN.recordSince(start);
 
 			// retrieve the messages from the folder in an array and print it
+			start = System.nanoTime();
 			Message[] messages = emailFolder.getMessages();
 			System.out.println("messages.length---" + messages.length);
 
-			for (int i = 0, n = messages.length; i < n && i < 30; i++) {
-				Message message = messages[i];
-				System.out.println("---------------------------------");
-				System.out.println("Email Number " + (i + 1));
-				System.out.println("Subject: " + message.getSubject());
-				System.out.println(
-						"From: " + ((message.getFrom() != null && message.getFrom().length != 0) ? message.getFrom()[0]
-								: "NULL"));
-				System.out.println("Text: " + message.getContent().toString());
+			MessageRules rules = loadRules();
+			Message[] shown = Arrays.copyOf(messages, Math.min(messages.length, 30));
+			FetchProfile profile = new FetchProfile();
+			profile.add(FetchProfile.Item.ENVELOPE);
+			if (rules != null)
+				// all headers of the shown mails in one FETCH, not one per mail when the rules read them
+				profile.add(IMAPFolder.FetchProfileItem.HEADERS);
+			emailFolder.fetch(shown, profile);
+			for (int i = 0; i < shown.length; i++) {
+				System.out.println(renderHeader(shown[i], i + 1));
+				if (rules != null)
+					System.out.println("Rules: " + rules.describe(rules.evaluate(shown[i])));
 			}
+			Metrics.MAIL_FETCH.recordSince(start);
+			Metrics.MESSAGES_FETCHED.add(Math.min(messages.length, 30));
+			if (rules != null)
+				rules.printHits();
 			// close the store and folder objects
 			emailFolder.close(false);
 			store.close();
 		} catch (Exception e) {
+			Metrics.MAIL_ERRORS.increment();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sync the local message store with the folder and print the first 30 mails from it
+	 * @param folder - closed IMAP folder
+	 * @return boolean - FALSE if no message store is configured
+	 */
+	private boolean printCachedMails(Folder folder) throws MessagingException, IOException {
+		try (MessageStore cache = MessageStore.open(account().getUsername(), folder.getFullName())) {
+			if (cache == null)
+				return false;
+			int fetched = cache.sync(folder);
+			if (fetched > 0)
+				SearchIndex.update(cache);
+			System.out.println("messages.length---" + cache.count() + " (" + fetched + " new)");
+			MessageRules rules = loadRules();
+			for (int i = 0, n = cache.size(), shown = 0; i < n && shown < 30; i++) {
+				if (cache.isExpunged(i))
+					continue;
+				MimeMessage message = cache.readMessage(i);
+				System.out.println(renderHeader(message, ++shown));
+				if (rules != null)
+					System.out.println("Rules: " + rules.describe(rules.evaluate(message)));
+			}
+			if (rules != null)
+				rules.printHits();
+			return true;
+		}
+	}
+
+	/**
+	 * @return MessageRules - rules set with -Dpvt.email.rules, NULL if none or if they can't be read
+	 */
+	private static MessageRules loadRules() {
+		try {
+			return MessageRules.load();
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println("Unable to load the message rules - " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Search the mails cached from a folder, without connecting to the server
+	 * @param folderName - Email Folder Name, by default it's Inbox
+	 * @param query - words to look for in subject, sender and text
+	 */
+	public void searchCachedMails(String folderName, String query) {
+		if (folderName.isBlank())
+			folderName = "INBOX";
+		try (MessageStore cache = MessageStore.open(account().getUsername(), folderName)) {
+			if (cache == null) {
+				System.err.println("Searching needs a message store, set " + MessageStore.DIR_PROPERTY);
+				return;
+			}
+			SearchIndex.update(cache);
+			SearchIndex index = SearchIndex.open(cache);
+			SearchIndex.print(cache, index.search(query, 20));
+		} catch (MessagingException | IOException e) {
+			Metrics.MAIL_ERRORS.increment();
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Print the most recent conversations of a folder. IMAP only.
+	 * @param folderName - Email Folder Name, by default it's Inbox
+	 */
+	public void showConversations(String folderName) {
+		if (!account().receivesWith(IMAP)) {
+			System.err.println("Conversations need " + IMAP + " as " + PROTOCOL_RECEIVE);
+			return;
+		}
+		if (folderName.isBlank())
+			folderName = "INBOX";
+		try {
+			Store store = getStore();
+			ConversationThreader threader = conversations.computeIfAbsent(folderName, f -> new ConversationThreader());
+			System.out.println(threader.imap(store.getFolder(folderName)) + " new mails");
+			threader.print(30);
+			store.close();
+		} catch (MessagingException e) {
+			Metrics.MAIL_ERRORS.increment();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Print top senders, distinct senders, sizes and volume per day of a folder. IMAP only.
+	 * @param folderName - Email Folder Name, by default it's Inbox
+	 */
+	public void analyseFolder(String folderName) {
+		if (!account().receivesWith(IMAP)) {
+			System.err.println("Mailbox analytics need " + IMAP + " as " + PROTOCOL_RECEIVE);
+			return;
+		}
+		if (folderName.isBlank())
+			folderName = "INBOX";
+		try {
+			Store store = getStore();
+			MailboxAnalytics analytics = new MailboxAnalytics();
+			analytics.imap(store.getFolder(folderName));
+			analytics.print(20);
+			store.close();
+		} catch (MessagingException e) {
+			Metrics.MAIL_ERRORS.increment();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Export every folder of the account, resuming a previous export to the same directory. IMAP only.
+	 * @param directory - export target
+	 * @param format - mbox or eml
+	 */
+	public void exportMails(String directory, String format) {
+		if (!account().receivesWith(IMAP)) {
+			System.err.println("Exporting needs " + IMAP + " as " + PROTOCOL_RECEIVE);
+			return;
+		}
+		try {
+			Store store = getStore();
+			MailboxExporter exporter = new MailboxExporter(Paths.get(directory),
+					"eml".equalsIgnoreCase(format.trim()) ? MailboxExporter.Format.EML : MailboxExporter.Format.MBOX,
+					4, 4 * 1024 * 1024);
+			System.out.println(exporter.exportImap(store));
+			store.close();
+		} catch (MessagingException e) {
+			Metrics.MAIL_ERRORS.increment();
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Crawl every folder of the account and print the number of mails in each. IMAP only.
+	 */
+	public void crawlFolders() {
+		if (!account().receivesWith(IMAP)) {
+			System.err.println("Crawling folders needs " + IMAP + " as " + PROTOCOL_RECEIVE);
+			return;
+		}
+		AccountConfig.Account config = account();
+		AccountConfig.Endpoint imap = config.getReceive();
+		MailboxCrawler.ImapAccount account = new MailboxCrawler.ImapAccount(config.getUsername(), imap.getSession(),
+				IMAP, imap.getHost(), imap.getPort(), config.getUsername(), getPassword(config));
+		try {
+			System.out.println(new MailboxCrawler(MailboxCrawler.console(), 4, 4)
+					.crawl(Collections.singletonList(account)));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Print message count, unread count and size of every folder, without opening any of them. IMAP only.
+	 */
+	public void folderStatistics() {
+		if (!account().receivesWith(IMAP)) {
+			System.err.println("Folder statistics need " + IMAP + " as " + PROTOCOL_RECEIVE);
+			return;
+		}
+		try {
+			Store store = getStore();
+			FolderStatistics.print(FolderStatistics.imap(store));
+			store.close();
+		} catch (MessagingException e) {
+			Metrics.MAIL_ERRORS.increment();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Render the console listing of a single message, as printed by {@link #checkMails(String)}
+	 * @param message - Message to render
+	 * @param number - Position of the message in the listing, starting with 1
+	 * @return String - Subject, sender and text of the message
+	 * @throws MessagingException - if the headers can't be read
+	 * @throws IOException - if the content can't be read
+	 */
+	static String renderHeader(Message message, int number) throws MessagingException, IOException {
+		StringBuilder stringBuilder = new StringBuilder();
+		stringBuilder.append("---------------------------------").append("\n");
+		stringBuilder.append("Email Number ").append(number).append("\n");
+		stringBuilder.append("Subject: ").append(message.getSubject()).append("\n");
+		Address[] from = message.getFrom();
+		stringBuilder.append("From: ").append((from != null && from.length != 0) ? from[0] : "NULL").append("\n");
+		stringBuilder.append("Text: ").append(message.getContent().toString());
+		return stringBuilder.toString();
+	}
+
 	/**
 	 * <p>
 	 * Create a Store Object for Mail Recieve. Following steps are followed <br>
-	 * 1. Fetch all Receive protocol details and construct a properties object <br>
-	 * 2. Create a new Session with the properties <br>
+	 * 1. Take the current account and its Receive endpoint <br>
+	 * 2. Use the Session precomputed for that endpoint <br>
 	 * 3. Return the created Store object from Session <br>
 	 * </p>
-	 * @param protocol
-	 * @return Mail Store Object
+	 * @return Mail Store Object, NULL if the account does not receive
 	 * @throws MessagingException
 	 */
 	private Store getStore() throws MessagingException {
-		// create properties field
-		Properties properties = getProtocolProporties(PROTOCOL_RECEIVE);
-		Session emailSession = Session.getDefaultInstance(properties);
-		return connectSessionStore(emailSession);
+		AccountConfig.Account account = account();
+		if (account.getReceive() == null)
+			return null;
+		return connectSessionStore(account, account.getReceive().getSession());
 	}
 
 	/**
@@ -184,124 +410,116 @@ public class CheckingMails {
 	 * Only POP3 and IMAP can be provided as Receive protocol in proporties file, otherwise it would return null.
 	 * 
 	 * </p>
+	 * @param account - Account whose Receive endpoint and credentials are used
 	 * @param emailSession - Using this session object to create store object
 	 * @return Store - Created Mail Store Object
 	 * @throws MessagingException - Might happen if credentials don't work or server details are incorrect
 	 */
-	private Store connectSessionStore(Session emailSession) throws MessagingException {
+	private Store connectSessionStore(AccountConfig.Account account, Session emailSession)
+			throws MessagingException {
 		Store store = null;
-		switch (getProperty(PROTOCOL_RECEIVE)) {
-		case POP3:
+		long start = System.nanoTime();
+		switch (account.getReceive().getProtocol()) {
+		case AccountConfig.POP3:
 			// create the POP3 store object and connect with the pop server
-			store = emailSession.getStore(POP3);
+			store = emailSession.getStore(AccountConfig.POP3);
 			// Connect to the store
-			store.connect(getProperty("POP3_HOST"), getProperty("username"), getPassword());
+			store.connect(account.getReceive().getHost(), account.getUsername(), getPassword(account));
 			break;
 		case IMAP:
 			// create the IMAP store object and connect with the imap server
 			store = emailSession.getStore(IMAP);
 			// Connect to the store
-			store.connect(getProperty("IMAP4_HOST"), getProperty("username"), getPassword());
+			store.connect(account.getReceive().getHost(), account.getUsername(), getPassword(account));
 			break;
 		default:
 			return null;	
 		}
+		Metrics.MAIL_CONNECT.recordSince(start);
 		return store;
 	}
 
 	/**
 	 * <p>
-	 * Create Properties object for the requested protocol from initialized properties files. 
-	 * Only POP3, IMAP and SMTP can be provided as protocol, otherwise it would return null.
+	 * Load the accounts, from the -Dpvt.email.config file if set, else from the given property file.
+	 * The file is watched and every valid change takes effect for the next connection or send.
 	 * </p>
-	 * @param protocol - protocol for which properties to be fetched
-	 * @return Properties - Mail Server and User Properties 
+	 * @param propertyFile - property file to be used
+	 * @return Supplier - the current configuration, NULL is returned if it can't be read and error message is printed
 	 */
-	private Properties getProtocolProporties(String protocol) {
-		Properties properties = new Properties();
-		switch (getProperty(protocol)) {
-		case POP3:
-			properties.put("mail.pop3.host", getProperty("POP3_HOST"));
-			properties.put("mail.pop3.port", getProperty("POP3_PORT"));
-			properties.put("mail.pop3.starttls.enable", "true");
-			break;
-		case SMTP:
-			properties.put("mail.smtp.port", getProperty("SMTP_PORT"));
-			properties.put("mail.smtp.host", getProperty("SMTP_HOST"));
-			// properties.put("mail.smtp.ssl.enable", "true");
-			properties.put("mail.smtp.auth", "true");
-			properties.put("mail.smtp.starttls.enable", "true");
-			break;
-		case IMAP:
-			properties.put("mail.imap.user", getProperty("username"));
-			properties.put("mail.imap.host", getProperty("IMAP4_HOST"));
-			properties.put("mail.imap.port", getProperty("IMAP4_PORT"));
-			properties.put("mail.imap.ssl.enable", "true");
-			break;
-		default:
+	private Supplier<AccountConfig> loadConfig(String propertyFile) {
+		try {
+			return AccountConfig.current(propertyFile);
+		} catch (IOException | IllegalArgumentException e) {
+			String file = System.getProperty(AccountConfig.CONFIG_PROPERTY);
+			System.err.println("Unable to read " + (file != null ? file : propertyFile)
+					+ " configuration. Make sure you have a properly formatted  " + propertyFile + " file. - "
+					+ e.getMessage());
 			return null;
 		}
-		return properties;
 	}
 
 	/**
-	 * <p>
-	 * Populate properties object by loading properties from the given property file.
-	 * </p>
-	 * @param propertyFile - property file to be used
-	 * @return Properties - Properties object, NULL is returned if file is not found and error message is printed
+	 * <p> The account in use, the default one until another is picked. </p>
+	 * @return Account - from the current configuration, the default one if the picked account was removed
 	 */
-	private Properties loadProperties(String propertyFile) {
-		oAuthProperties = new Properties();
-		try {
-			oAuthProperties.load(App.class.getResourceAsStream(propertyFile));
-		} catch (IOException e) {
-			System.err.println("Unable to read " + propertyFile
-					+ " configuration. Make sure you have a properly formatted  " + propertyFile + " file.");
-			return null;
-		}
-		return oAuthProperties;
+	public AccountConfig.Account account() {
+		AccountConfig current = config.get();
+		AccountConfig.Account account = accountName == null ? null : current.getAccount(accountName);
+		return account != null ? account : current.getDefaultAccount();
 	}
 
 	/**
-	 * <p> Get a specific property from the properties object. </p>
-	 * @return String - Value of the requested property 
+	 * Pick the account the next operations use
 	 */
-	public String getProperty(String propertyName) {
-		System.out.println(propertyName + " - " + oAuthProperties.getProperty(propertyName));
-		return oAuthProperties.getProperty(propertyName);
+	public void switchAccount() {
+		String current = account().getName();
+		for (AccountConfig.Account account : config.get().getAccounts())
+			System.out.println((account.getName().equals(current) ? "* " : "  ") + account);
+		String name = getUserInput("Type Account Name : ").trim();
+		if (config.get().getAccount(name) == null) {
+			System.err.println("No account " + name);
+			return;
+		}
+		accountName = name;
 	}
 
 	/**
-	 * <p>This is supposed to ask user to type in password. <br>
-	 * Console object must be available for this to success. Otherwise, it looks for password from the property file</p>
-	 * @return String - get Password from user or property file. Returns NULL if both fails
+	 * <p>The password configured for the account, else typed in once. <br>
+	 * Console object must be available for typing it in.</p>
+	 * @return String - get Password from property file or user. Returns NULL if both fails
 	 */
-	private String getPassword() {
-		if (null == password || password.isBlank() || password.isEmpty()) {
+	private String getPassword(AccountConfig.Account account) {
+		if (account.getPassword() != null)
+			return account.getPassword();
+		return passwords.computeIfAbsent(account.getName(), name -> {
 			Console cons;
-			char[] passwd = null;
-			if ((cons = System.console()) != null) {
-				passwd = cons.readPassword("[%s]", "Password : ");
-				password = Arrays.toString(passwd);
-			} else {
+			if ((cons = System.console()) == null) {
 				System.err.println("Console not found");
-				password = getProperty("password");
+				return null;
 			}
-		}
-		return password;
+			char[] passwd = cons.readPassword("[%s]", "Password for " + account.getUsername() + " : ");
+			return passwd == null ? null : new String(passwd);
+		});
 	}
 
 	/**
 	 * Just loop through 3 choices that user have
 	 * 1. Read Email from a folder (default - Inbox)
 	 * 2. Send an Email to an user
-	 * 3. Close the program
+	 * 3. Crawl all folders
+	 * 4. Folder statistics
+	 * 5. Search cached mails
+	 * 6. Conversations of a folder
+	 * 7. Mailbox analytics
+	 * 8. Export all folders
+	 * 9. Switch account
+	 * 10. Close the program
 	 */
 	private void userInteraction() {
 		System.out.println("Starting user Interaction");
 		while (true) {
-			int input = Integer.parseInt(getUserInput("1 - Read, 2 - Send Email, Any other number - Exit..."));
+			int input = Integer.parseInt(getUserInput("1 - Read, 2 - Send Email, 3 - Crawl all folders, 4 - Folder statistics, 5 - Search cached mails, 6 - Conversations, 7 - Analytics, 8 - Export, 9 - Switch account, Any other number - Exit..."));
 			switch (input) {
 			case 1:
 				checkMails(getUserInput("Type Folder Name to view details : "));
@@ -309,6 +527,27 @@ public class CheckingMails {
 			case 2:
 				sendEmail();
 				break;
+			case 3:
+				crawlFolders();
+				break;
+			case 4:
+				folderStatistics();
+				break;
+			case 5:
+				searchCachedMails(getUserInput("Type Folder Name to search : "), getUserInput("Search for : "));
+				break;
+			case 6:
+				showConversations(getUserInput("Type Folder Name to view conversations : "));
+				break;
+			case 7:
+				analyseFolder(getUserInput("Type Folder Name to analyse : "));
+				break;
+			case 8:
+				exportMails(getUserInput("Type the export directory : "), getUserInput("Format, mbox or eml : "));
+				break;
+			case 9:
+				switchAccount();
+				break;
 			default:
 				System.exit(0);
 			}
@@ -316,7 +555,13 @@ public class CheckingMails {
 	}
 
 	public static void main(String[] args) {
+		if (Daemon.requested(args)) {
+			Daemon.main(args);
+			return;
+		}
 		CheckingMails checkingMails = new CheckingMails("oAuth-O365.properties");
+		if (checkingMails.config == null)
+			return;
 		checkingMails.userInteraction();
 	}
 
@@ -0,0 +1,539 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeUtility;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.INTERNALDATE;
+import com.sun.mail.imap.protocol.UID;
+
+import okhttp3.HttpUrl;
+
+/**
+ * <p>
+ * Groups the messages of a folder into conversations. <br>
+ * IMAP: the JWZ algorithm over Message-ID, In-Reply-To and References, with root messages that only differ by a
+ * Re:/Fwd: prefix grouped together. The headers are fetched with a single UID FETCH of
+ * BODY.PEEK[HEADER.FIELDS (...)] and read response by response, so no Message object is created. <br>
+ * Graph: messages with the same conversationId form one conversation. <br>
+ * Containers live in parallel int arrays, found through an open-addressing table of message ids, so a folder of
+ * half a million messages costs a few arrays and the id strings. Messages are linked in as they arrive; calling
+ * {@link #imap(Folder)} or {@link #graph(String, String)} again only adds the messages received since. A new
+ * UIDVALIDITY of the IMAP folder starts over.
+ * </p>
+ */
+public class ConversationThreader {
+
+	private static final String HEADER_FIELDS = "BODY.PEEK[HEADER.FIELDS (MESSAGE-ID IN-REPLY-TO REFERENCES SUBJECT)]";
+	private static final String GRAPH_SELECT = "conversationId,subject,receivedDateTime";
+	private static final int NONE = -1;
+
+	// containers: one per message id seen, or per message without an id
+	private String[] keys = new String[1024];
+	private int[] parent = new int[1024];
+	private int[] firstChild = new int[1024];
+	private int[] nextSibling = new int[1024];
+	private int[] messageOf = new int[1024];
+	private int containers;
+	// open addressing over keys, slot holds container + 1
+	private int[] table = new int[2048];
+
+	// messages
+	private String[] subjects = new String[1024];
+	private long[] dates = new long[1024];
+	private int[] containerOf = new int[1024];
+	private int messages;
+
+	private long uidValidity;
+	private long lastUid;
+	private String lastReceived;
+	// Graph ids received at lastReceived, the next call asks for ge lastReceived and skips them
+	private final Set<String> seenAtLast = new HashSet<String>();
+
+	/**
+	 * @return int - number of messages threaded
+	 */
+	public int size() {
+		return messages;
+	}
+
+	/**
+	 * Thread one message
+	 * @param messageId - Message-ID, NULL if the message has none
+	 * @param references - References followed by In-Reply-To, oldest first, may be empty
+	 * @param subject - decoded subject
+	 * @param date - epoch milliseconds
+	 * @return int - message number
+	 */
+	public synchronized int add(String messageId, List<String> references, String subject, long date) {
+		int container = messageId == null ? NONE : find(messageId);
+		// a duplicate Message-ID gets a container of its own, without the id
+		if (container == NONE || messageOf[container] != NONE)
+			container = newContainer(container == NONE ? messageId : null);
+		int message = newMessage(subject, date, container);
+		messageOf[container] = message;
+
+		// chain the references, never re-parenting a container that already has a parent
+		int previous = NONE;
+		for (String reference : references) {
+			int referenced = findOrCreate(reference);
+			if (previous != NONE && referenced != previous && parent[referenced] == NONE
+					&& !isAncestor(referenced, previous))
+				link(previous, referenced);
+			previous = referenced;
+		}
+		// the last reference is the parent, whatever was assumed before
+		if (previous != NONE && previous != container && !isAncestor(container, previous)) {
+			if (parent[container] != NONE)
+				unlink(container);
+			link(previous, container);
+		}
+		return message;
+	}
+
+	/**
+	 * Thread one Graph message under its conversation
+	 * @return int - message number
+	 */
+	public synchronized int addConversation(String conversationId, String subject, long date) {
+		int container = newContainer(null);
+		int message = newMessage(subject, date, container);
+		messageOf[container] = message;
+		if (conversationId != null)
+			link(findOrCreate("conversation:" + conversationId), container);
+		return message;
+	}
+
+	/**
+	 * Forget every message, the next call threads the folder from the start
+	 */
+	private synchronized void clear() {
+		Arrays.fill(keys, 0, containers, null);
+		Arrays.fill(subjects, 0, messages, null);
+		Arrays.fill(table, 0);
+		containers = 0;
+		messages = 0;
+		lastUid = 0;
+		lastReceived = null;
+		seenAtLast.clear();
+	}
+
+	private int newMessage(String subject, long date, int container) {
+		if (messages == subjects.length) {
+			int capacity = messages * 2;
+			subjects = Arrays.copyOf(subjects, capacity);
+			dates = Arrays.copyOf(dates, capacity);
+			containerOf = Arrays.copyOf(containerOf, capacity);
+		}
+		subjects[messages] = subject;
+		dates[messages] = date;
+		containerOf[messages] = container;
+		return messages++;
+	}
+
+	private int newContainer(String key) {
+		if (containers == keys.length) {
+			int capacity = containers * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			parent = Arrays.copyOf(parent, capacity);
+			firstChild = Arrays.copyOf(firstChild, capacity);
+			nextSibling = Arrays.copyOf(nextSibling, capacity);
+			messageOf = Arrays.copyOf(messageOf, capacity);
+		}
+		int container = containers++;
+		keys[container] = key;
+		parent[container] = NONE;
+		firstChild[container] = NONE;
+		nextSibling[container] = NONE;
+		messageOf[container] = NONE;
+		if (key != null) {
+			if (containers * 2 > table.length)
+				rehash(table.length * 2);
+			table[slot(key)] = container + 1;
+		}
+		return container;
+	}
+
+	private int find(String key) {
+		return table[slot(key)] - 1;
+	}
+
+	private int findOrCreate(String key) {
+		int container = find(key);
+		return container != NONE ? container : newContainer(key);
+	}
+
+	/**
+	 * Slot of a key: the one holding it, or the empty one it would go into
+	 */
+	private int slot(String key) {
+		int mask = table.length - 1;
+		int hash = key.hashCode();
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (table[slot] != 0 && !key.equals(keys[table[slot] - 1]))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		for (int container = 0; container < containers; container++) {
+			if (keys[container] != null)
+				table[slot(keys[container])] = container + 1;
+		}
+	}
+
+	/**
+	 * @return boolean - TRUE if ancestor is descendant or one of its parents
+	 */
+	private boolean isAncestor(int ancestor, int descendant) {
+		for (int container = descendant; container != NONE; container = parent[container]) {
+			if (container == ancestor)
+				return true;
+		}
+		return false;
+	}
+
+	private void link(int parentContainer, int child) {
+		parent[child] = parentContainer;
+		nextSibling[child] = firstChild[parentContainer];
+		firstChild[parentContainer] = child;
+	}
+
+	private void unlink(int child) {
+		int parentContainer = parent[child];
+		if (firstChild[parentContainer] == child) {
+			firstChild[parentContainer] = nextSibling[child];
+		} else {
+			int sibling = firstChild[parentContainer];
+			while (nextSibling[sibling] != child)
+				sibling = nextSibling[sibling];
+			nextSibling[sibling] = nextSibling[child];
+		}
+		parent[child] = NONE;
+		nextSibling[child] = NONE;
+	}
+
+	/**
+	 * One conversation
+	 */
+	public static final class Conversation {
+		public final String subject;
+		/** Message numbers, in thread order: each reply after the message it answers */
+		public final int[] messages;
+		/** Indentation of each message */
+		public final int[] depths;
+		public final long latest;
+
+		Conversation(String subject, int[] messages, int[] depths, long latest) {
+			this.subject = subject;
+			this.messages = messages;
+			this.depths = depths;
+			this.latest = latest;
+		}
+	}
+
+	/**
+	 * Current conversations, most recently active first
+	 */
+	public synchronized List<Conversation> conversations() {
+		// root of every container, filled top-down so each lookup is one step
+		int[] rootOf = new int[containers];
+		Arrays.fill(rootOf, NONE);
+		int[] path = new int[64];
+		for (int container = 0; container < containers; container++) {
+			int length = 0;
+			int walk = container;
+			while (rootOf[walk] == NONE && parent[walk] != NONE) {
+				if (length == path.length)
+					path = Arrays.copyOf(path, length * 2);
+				path[length++] = walk;
+				walk = parent[walk];
+			}
+			int root = rootOf[walk] == NONE ? walk : rootOf[walk];
+			rootOf[walk] = root;
+			while (length > 0)
+				rootOf[path[--length]] = root;
+		}
+
+		// roots that hold messages; replies whose original is missing join the root with the same base subject
+		Map<String, Integer> bySubject = new HashMap<String, Integer>();
+		int[] groupOf = new int[containers];
+		Arrays.fill(groupOf, NONE);
+		List<int[]> groups = new ArrayList<int[]>();
+		for (int message = 0; message < messages; message++) {
+			int root = rootOf[containerOf[message]];
+			if (groupOf[root] != NONE)
+				continue;
+			String base = baseSubject(subjectOf(root));
+			Integer group = base.isEmpty() || keys[root] != null && keys[root].startsWith("conversation:") ? null
+					: bySubject.get(base);
+			if (group == null) {
+				group = groups.size();
+				groups.add(new int[] { root });
+				if (!base.isEmpty())
+					bySubject.put(base, group);
+			} else {
+				int[] roots = groups.get(group);
+				roots = Arrays.copyOf(roots, roots.length + 1);
+				// the original goes first
+				if (!isReply(subjectOf(root)) && isReply(subjectOf(roots[0]))) {
+					roots[roots.length - 1] = roots[0];
+					roots[0] = root;
+				} else {
+					roots[roots.length - 1] = root;
+				}
+				groups.set(group, roots);
+			}
+			groupOf[root] = group;
+		}
+
+		List<Conversation> result = new ArrayList<Conversation>(groups.size());
+		int[] order = new int[16];
+		int[] depths = new int[16];
+		int[] stack = new int[64];
+		int[] stackDepths = new int[64];
+		for (int[] roots : groups) {
+			int count = 0;
+			long latest = Long.MIN_VALUE;
+			for (int root : roots) {
+				// depth-first, children oldest first; empty containers are skipped, their children moved up
+				int top = 0;
+				stack[top] = root;
+				stackDepths[top++] = 0;
+				while (top > 0) {
+					int container = stack[--top];
+					int depth = stackDepths[top];
+					int message = messageOf[container];
+					if (message != NONE) {
+						if (count == order.length) {
+							order = Arrays.copyOf(order, count * 2);
+							depths = Arrays.copyOf(depths, count * 2);
+						}
+						order[count] = message;
+						depths[count++] = depth;
+						latest = Math.max(latest, dates[message]);
+						depth++;
+					}
+					// children are linked newest first, pushing them in that order pops the oldest first
+					for (int child = firstChild[container]; child != NONE; child = nextSibling[child]) {
+						if (top == stack.length) {
+							stack = Arrays.copyOf(stack, top * 2);
+							stackDepths = Arrays.copyOf(stackDepths, top * 2);
+						}
+						stack[top] = child;
+						stackDepths[top++] = depth;
+					}
+				}
+			}
+			String subject = count == 0 ? null : subjects[order[0]];
+			result.add(new Conversation(subject, Arrays.copyOf(order, count), Arrays.copyOf(depths, count), latest));
+		}
+		result.sort((a, b) -> Long.compare(b.latest, a.latest));
+		return result;
+	}
+
+	/**
+	 * Subject of the first message found in a thread
+	 */
+	private String subjectOf(int container) {
+		while (messageOf[container] == NONE && firstChild[container] != NONE)
+			container = firstChild[container];
+		return messageOf[container] == NONE ? null : subjects[messageOf[container]];
+	}
+
+	/**
+	 * @return String - lower-cased subject without Re:, Fwd: and the like
+	 */
+	static String baseSubject(String subject) {
+		if (subject == null)
+			return "";
+		String base = subject.trim().toLowerCase(Locale.ROOT);
+		while (true) {
+			int colon = base.indexOf(':');
+			if (colon < 1 || colon > 6)
+				return base;
+			String prefix = base.substring(0, colon).replaceAll("\\[\\d+\\]$", "").trim();
+			if (!prefix.equals("re") && !prefix.equals("fw") && !prefix.equals("fwd") && !prefix.equals("aw")
+					&& !prefix.equals("sv") && !prefix.equals("wg"))
+				return base;
+			base = base.substring(colon + 1).trim();
+		}
+	}
+
+	private static boolean isReply(String subject) {
+		return subject != null && !baseSubject(subject).equals(subject.trim().toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Message ids in a References or In-Reply-To header, in order
+	 */
+	static List<String> messageIds(String header, List<String> ids) {
+		if (header == null)
+			return ids;
+		int start = header.indexOf('<');
+		while (start >= 0) {
+			int end = header.indexOf('>', start);
+			if (end < 0)
+				break;
+			ids.add(header.substring(start, end + 1));
+			start = header.indexOf('<', end);
+		}
+		return ids;
+	}
+
+	/**
+	 * Thread the messages of an IMAP folder received since the last call
+	 * @param folder - closed IMAP folder
+	 * @return int - number of messages added
+	 */
+	public int imap(Folder folder) throws MessagingException {
+		IMAPFolder imapFolder = (IMAPFolder) folder;
+		long start = System.nanoTime();
+		folder.open(Folder.READ_ONLY);
+		Metrics.MAIL_FOLDER_OPEN.recordSince(start);
+		try {
+			// new UIDVALIDITY: the UIDs threaded so far name other messages now, or none
+			long folderUidValidity = imapFolder.getUIDValidity();
+			if (folderUidValidity != uidValidity) {
+				clear();
+				uidValidity = folderUidValidity;
+			}
+			start = System.nanoTime();
+			int added = (Integer) imapFolder.doCommand(protocol -> {
+				synchronized (protocol) {
+					try {
+						Argument args = new Argument();
+						args.writeAtom((lastUid + 1) + ":*");
+						args.writeAtom("(UID INTERNALDATE " + HEADER_FIELDS + ")");
+						String tag = protocol.writeCommand("UID FETCH", args);
+						List<Response> untagged = new ArrayList<Response>();
+						int count = 0;
+						while (true) {
+							Response response = protocol.readResponse();
+							if (response.isTagged() && tag.equals(response.getTag())) {
+								protocol.notifyResponseHandlers(untagged.toArray(new Response[0]));
+								protocol.handleResult(response);
+								return count;
+							}
+							if (response.isBYE())
+								protocol.handleResult(response);
+							if (response instanceof FetchResponse) {
+								if (add((FetchResponse) response))
+									count++;
+							} else if (response.isUnTagged()) {
+								untagged.add(response);
+							}
+						}
+					} catch (IOException e) {
+						throw new ProtocolException("Unable to fetch headers", e);
+					}
+				}
+			});
+			Metrics.MAIL_FETCH.recordSince(start);
+			Metrics.MESSAGES_FETCHED.add(added);
+			return added;
+		} finally {
+			folder.close(false);
+		}
+	}
+
+	private boolean add(FetchResponse response) throws ProtocolException {
+		UID uid = response.getItem(UID.class);
+		BODY body = response.getItem(BODY.class);
+		// n:* always matches the last message, even below n
+		if (uid == null || body == null || uid.uid <= lastUid)
+			return false;
+		lastUid = uid.uid;
+		InternetHeaders headers;
+		try {
+			headers = new InternetHeaders(body.getByteArrayInputStream());
+		} catch (MessagingException e) {
+			throw new ProtocolException("Unreadable headers of UID " + uid.uid, e);
+		}
+		List<String> references = messageIds(headers.getHeader("References", " "), new ArrayList<String>());
+		if (references.isEmpty())
+			messageIds(headers.getHeader("In-Reply-To", " "), references);
+		List<String> messageId = messageIds(headers.getHeader("Message-ID", null), new ArrayList<String>(1));
+		String subject = headers.getHeader("Subject", null);
+		try {
+			subject = subject == null ? null : MimeUtility.decodeText(MimeUtility.unfold(subject));
+		} catch (UnsupportedEncodingException e) {
+			// keep it encoded
+		}
+		INTERNALDATE date = response.getItem(INTERNALDATE.class);
+		add(messageId.isEmpty() ? null : messageId.get(0), references, subject,
+				date == null ? 0 : date.getDate().getTime());
+		return true;
+	}
+
+	/**
+	 * Thread the messages of a Graph collection received since the last call
+	 * @param accessToken - Authentication token
+	 * @param path - message collection, e.g. /me/messages
+	 * @return long - number of messages added
+	 */
+	@SuppressWarnings("try")
+	public long graph(String accessToken, String path) {
+		HttpUrl.Builder url = HttpUrl.get(Graph.getServiceRoot(accessToken) + path).newBuilder()
+				.addQueryParameter("$select", GRAPH_SELECT)
+				.addQueryParameter("$orderby", "receivedDateTime")
+				.addQueryParameter("$top", String.valueOf(GraphStream.MAX_PAGE_SIZE));
+		if (lastReceived != null)
+			url.addQueryParameter("$filter", "receivedDateTime ge " + lastReceived);
+		try (GraphTracer.Trace trace = GraphTracer.begin("conversations")) {
+			long[] added = {0};
+			GraphStream.streamPages(accessToken, url.build(), null, GraphStream::parseMessage, message -> {
+				// received at lastReceived and threaded by the previous call
+				if (seenAtLast.contains(message.id))
+					return;
+				long date = message.receivedDateTime == null ? 0
+						: OffsetDateTime.parse(message.receivedDateTime).toInstant().toEpochMilli();
+				addConversation(message.conversationId, message.subject, date);
+				added[0]++;
+				if (message.receivedDateTime != null && !message.receivedDateTime.equals(lastReceived)) {
+					seenAtLast.clear();
+					lastReceived = message.receivedDateTime;
+				}
+				seenAtLast.add(message.id);
+			});
+			return added[0];
+		}
+	}
+
+	/**
+	 * Print the most recently active conversations as trees
+	 */
+	public void print(int limit) {
+		List<Conversation> conversations = conversations();
+		for (int i = 0; i < conversations.size() && i < limit; i++) {
+			Conversation conversation = conversations.get(i);
+			System.out.println(conversation.subject + " - " + conversation.messages.length + " messages");
+			for (int j = 0; j < conversation.messages.length; j++) {
+				char[] indent = new char[2 + 2 * Math.min(conversation.depths[j], 20)];
+				Arrays.fill(indent, ' ');
+				System.out.println(new String(indent) + subjects[conversation.messages[j]]);
+			}
+		}
+		System.out.println(messages + " mails in " + conversations.size() + " conversations");
+	}
+}
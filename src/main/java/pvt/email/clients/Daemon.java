@@ -0,0 +1,914 @@
+package pvt.email.clients;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Service;
+import javax.mail.Store;
+import javax.mail.Transport;
+import javax.mail.UIDFolder;
+import javax.mail.internet.MimeMessage;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.graph.models.extensions.User;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import okhttp3.HttpUrl;
+
+/**
+ * <p>
+ * Headless mode: everything slow is set up once, then commands are served over a local HTTP/JSON API. <br>
+ * At startup the Graph sign in, which also builds the Graph client and its connection pool, and one connection
+ * to every configured mail account (store and SMTP transport) are warmed up in parallel. Requests borrow warm
+ * connections from per account pools and give them back, so a scripted caller pays neither JVM start, sign in nor
+ * TLS handshake per operation.
+ * </p>
+ * <p>
+ * Only bound to the loopback address, and only for the local user: every request needs
+ * "Authorization: Bearer &lt;token&gt;", with the random token written at startup to a file only the owner can read
+ * ({@link #TOKEN_FILE_PROPERTY}). A Host other than localhost is refused, so a DNS rebinding page cannot read
+ * responses, and POST bodies must be application/json, which a web page cannot send cross origin without a
+ * preflight.
+ * </p>
+ * <pre>
+ * GET  /health                                           warm-up state
+ * GET  /messages?source=graph|imap&amp;account=&amp;folder=&amp;limit=
+ * GET  /search?q=&amp;account=&amp;folder=&amp;limit=              ranked hits from the message store
+ * POST /send     {"account":..,"to":..,"subject":..,"text":..}
+ * POST /events   {"subject":..,"start":"2026-10-20T10:00","end":..,"timeZone":..,"attendees":[..],"body":..}
+ * GET  /metrics                                          as {@link MetricsEndpoint}
+ * </pre>
+ * <p>
+ * Listings are written while they stream in, with chunked transfer encoding: a message reaches the caller as
+ * soon as its Graph page or FETCH response is read. An error after the first byte ends the object with an
+ * "error" field instead of a status code.
+ * </p>
+ */
+public class Daemon {
+
+	public static final String PORT_PROPERTY = "pvt.email.daemon.port";
+	public static final String THREADS_PROPERTY = "pvt.email.daemon.threads";
+	/** Where the API token is written, defaults to .email-daemon-token in the user's home */
+	public static final String TOKEN_FILE_PROPERTY = "pvt.email.daemon.token.file";
+
+	static final int DEFAULT_PORT = 8765;
+	static final int DEFAULT_THREADS = 16;
+	static final int DEFAULT_LIMIT = 50;
+
+	private final String appId;
+	private final String[] appScopes;
+	private final Supplier<AccountConfig> config;
+	/** "Bearer " and the API token, compared in constant time */
+	private final byte[] authorization;
+	private final String apiToken;
+	/** Warm-up state per component, e.g. "graph" or "work/imaps" */
+	private final Map<String, String> status = new ConcurrentSkipListMap<String, String>();
+	private final ConcurrentHashMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+	/** One search per message store at a time, a store is locked while open */
+	private final ConcurrentHashMap<String, Object> storeLocks = new ConcurrentHashMap<String, Object>();
+	private volatile boolean graphReady;
+	private volatile String timeZone = "UTC";
+	private HttpServer server;
+
+	/**
+	 * A request handler, the query string already decoded
+	 */
+	private interface Command {
+		void run(HttpExchange exchange, Map<String, String> query) throws Exception;
+	}
+
+	/**
+	 * Warm connections of one account. A pool replaced by a configuration reload closes what comes back to it.
+	 */
+	private static final class Pool {
+		final AccountConfig.Account account;
+		final Queue<Store> stores = new ConcurrentLinkedQueue<Store>();
+		final Queue<Transport> transports = new ConcurrentLinkedQueue<Transport>();
+		volatile boolean retired;
+
+		Pool(AccountConfig.Account account) {
+			this.account = account;
+		}
+
+		Store borrowStore() throws MessagingException {
+			AccountConfig.Endpoint receive = account.getReceive();
+			if (receive == null)
+				throw new IllegalArgumentException(account.getName() + " has no PROTOCOL_RECEIVE");
+			Store store;
+			while ((store = stores.poll()) != null) {
+				if (store.isConnected())
+					return store;
+			}
+			long start = System.nanoTime();
+			store = receive.getSession().getStore(receive.getProtocol());
+			try {
+				store.connect(receive.getHost(), receive.getPort(), account.getUsername(), account.getPassword());
+			} catch (MessagingException | RuntimeException e) {
+				close(store);
+				throw e;
+			}
+			Metrics.MAIL_CONNECT.recordSince(start);
+			return store;
+		}
+
+		Transport borrowTransport() throws MessagingException {
+			AccountConfig.Endpoint send = account.getSend();
+			if (send == null)
+				throw new IllegalArgumentException(account.getName() + " has no PROTOCOL_SEND");
+			Transport transport;
+			while ((transport = transports.poll()) != null) {
+				if (transport.isConnected())
+					return transport;
+			}
+			long start = System.nanoTime();
+			transport = send.getSession().getTransport(send.getProtocol());
+			try {
+				transport.connect(send.getHost(), send.getPort(), account.getUsername(), account.getPassword());
+			} catch (MessagingException | RuntimeException e) {
+				close(transport);
+				throw e;
+			}
+			Metrics.MAIL_CONNECT.recordSince(start);
+			return transport;
+		}
+
+		void release(Store store) {
+			stores.offer(store);
+			if (retired)
+				closeAll(stores);
+		}
+
+		void release(Transport transport) {
+			transports.offer(transport);
+			if (retired)
+				closeAll(transports);
+		}
+
+		void retire() {
+			retired = true;
+			closeAll(stores);
+			closeAll(transports);
+		}
+
+		private static void closeAll(Queue<? extends Service> services) {
+			Service service;
+			while ((service = services.poll()) != null)
+				close(service);
+		}
+	}
+
+	/**
+	 * Stops a listing once enough messages are written
+	 */
+	private static final class LimitReached extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		static final LimitReached INSTANCE = new LimitReached();
+
+		private LimitReached() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * Writes messages to the response as they arrive
+	 */
+	private static final class Listing implements Consumer<GraphStream.MessageSummary> {
+		final JsonWriter json;
+		final int limit;
+		int count;
+
+		Listing(JsonWriter json, int limit) {
+			this.json = json;
+			this.limit = limit;
+		}
+
+		@Override
+		public void accept(GraphStream.MessageSummary message) {
+			try {
+				json.beginObject();
+				json.name("id").value(message.id);
+				json.name("subject").value(message.subject);
+				json.name("fromName").value(message.fromName != null ? message.fromName : message.senderName);
+				json.name("fromAddress")
+						.value(message.fromAddress != null ? message.fromAddress : message.senderAddress);
+				json.name("receivedDateTime").value(message.receivedDateTime);
+				json.name("folder").value(message.parentFolderId);
+				json.name("isRead").value(message.isRead);
+				json.endObject();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (++count >= limit)
+				throw LimitReached.INSTANCE;
+		}
+
+		/**
+		 * Close the listing, with the error that cut it short if any
+		 */
+		void end(Exception error) throws IOException {
+			json.endArray().name("count").value(count);
+			if (error != null) {
+				Metrics.DAEMON_ERRORS.increment();
+				json.name("error").value(String.valueOf(error.getMessage()));
+			}
+			json.endObject();
+		}
+	}
+
+	/**
+	 * @param oAuth - app.id and app.scopes for Graph, Graph is off without an app.id
+	 * @param config - mail accounts, NULL if there are none
+	 */
+	public Daemon(Properties oAuth, Supplier<AccountConfig> config) {
+		String id = oAuth.getProperty("app.id");
+		this.appId = id == null || id.isBlank() ? null : id.trim();
+		this.appScopes = oAuth.getProperty("app.scopes", "").split(",");
+		this.config = config;
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		this.apiToken = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+		this.authorization = ("Bearer " + apiToken).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return String - the bearer token every request must carry
+	 */
+	public String getToken() {
+		return apiToken;
+	}
+
+	/**
+	 * Write the API token to a file only the owner can read or write, replacing an older one
+	 */
+	public void writeToken(Path file) throws IOException {
+		Path directory = file.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		Path temporary;
+		try {
+			temporary = Files.createTempFile(directory, ".token", ".tmp",
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// not POSIX, the file inherits the ACL of the user's directory
+			temporary = Files.createTempFile(directory, ".token", ".tmp");
+		}
+		Files.write(temporary, apiToken.getBytes(StandardCharsets.US_ASCII));
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Start serving, the warm-up can run meanwhile
+	 * @param port - local port to listen on, 0 picks a free one
+	 * @param threads - requests served at once
+	 * @return int - the port the API listens on
+	 */
+	public synchronized int start(int port, int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/health", exchange -> handle(exchange, "GET", this::health));
+		server.createContext("/messages", exchange -> handle(exchange, "GET", this::messages));
+		server.createContext("/search", exchange -> handle(exchange, "GET", this::search));
+		server.createContext("/send", exchange -> handle(exchange, "POST", this::send));
+		server.createContext("/events", exchange -> handle(exchange, "POST", this::createEvent));
+		server.createContext("/metrics", exchange -> handle(exchange, "GET", (e, query) -> MetricsEndpoint.handle(e)));
+		server.setExecutor(Executors.newFixedThreadPool(threads, threads("daemon-")));
+		server.start();
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop serving and close every pooled connection
+	 */
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			((ExecutorService) server.getExecutor()).shutdown();
+			server = null;
+		}
+		pools.values().forEach(Pool::retire);
+	}
+
+	/**
+	 * Sign in to Graph and connect every account, all at once
+	 */
+	public void warmUp() {
+		long start = System.nanoTime();
+		ExecutorService warmup = Executors.newCachedThreadPool(threads("warmup-"));
+		List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+		if (appId != null) {
+			status.put("graph", "warming up");
+			tasks.add(GraphAsync.<Void>supply(() -> {
+				warmUpGraph();
+				return null;
+			}));
+		}
+		if (config != null) {
+			for (AccountConfig.Account account : config.get().getAccounts()) {
+				if (account.getReceive() != null) {
+					status.put(account.getName() + "/" + account.getReceive().getProtocol(), "warming up");
+					tasks.add(CompletableFuture.runAsync(() -> warmUpStore(account), warmup));
+				}
+				if (account.getSend() != null) {
+					status.put(account.getName() + "/" + account.getSend().getProtocol(), "warming up");
+					tasks.add(CompletableFuture.runAsync(() -> warmUpTransport(account), warmup));
+				}
+			}
+		}
+		CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+		warmup.shutdown();
+		System.out.println("Warm in " + (System.nanoTime() - start) / 1_000_000 + " ms - " + status);
+	}
+
+	private void warmUpGraph() {
+		long start = System.nanoTime();
+		try {
+			Authentication.initialize(appId);
+			String token = Authentication.getUserAccessToken(appScopes);
+			if (token == null) {
+				status.put("graph", "sign in failed");
+				return;
+			}
+			User user = Graph.getUser(token);
+			if (user.mailboxSettings != null && user.mailboxSettings.timeZone != null)
+				timeZone = user.mailboxSettings.timeZone;
+			graphReady = true;
+			status.put("graph", "ready in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+		} catch (RuntimeException e) {
+			status.put("graph", "failed - " + e.getMessage());
+		}
+	}
+
+	private void warmUpStore(AccountConfig.Account account) {
+		long start = System.nanoTime();
+		String component = account.getName() + "/" + account.getReceive().getProtocol();
+		try {
+			Pool pool = pool(account);
+			pool.release(pool.borrowStore());
+			status.put(component, "ready in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+		} catch (MessagingException | RuntimeException e) {
+			Metrics.MAIL_ERRORS.increment();
+			status.put(component, "failed - " + e.getMessage());
+		}
+	}
+
+	private void warmUpTransport(AccountConfig.Account account) {
+		long start = System.nanoTime();
+		String component = account.getName() + "/" + account.getSend().getProtocol();
+		try {
+			Pool pool = pool(account);
+			pool.release(pool.borrowTransport());
+			status.put(component, "ready in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+		} catch (MessagingException | RuntimeException e) {
+			Metrics.MAIL_ERRORS.increment();
+			status.put(component, "failed - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return Pool - of the account as currently configured; a reloaded account gets a new pool
+	 */
+	private Pool pool(AccountConfig.Account account) {
+		Pool[] replaced = new Pool[1];
+		Pool pool = pools.compute(account.getName(), (name, old) -> {
+			if (old != null && old.account == account)
+				return old;
+			replaced[0] = old;
+			return new Pool(account);
+		});
+		if (replaced[0] != null)
+			replaced[0].retire();
+		return pool;
+	}
+
+	private AccountConfig.Account account(String name) {
+		if (config == null)
+			throw new IllegalStateException("No mail accounts configured");
+		AccountConfig current = config.get();
+		if (name == null || name.isBlank())
+			return current.getDefaultAccount();
+		AccountConfig.Account account = current.getAccount(name);
+		if (account == null)
+			throw new IllegalArgumentException("No account " + name);
+		return account;
+	}
+
+	private String token() {
+		if (appId == null)
+			throw new IllegalStateException("Graph is off, oAuth.properties has no app.id");
+		if (!graphReady)
+			throw new IllegalStateException("Graph is not signed in - " + status.get("graph"));
+		// a request thread must not start a device code sign in nobody sees
+		String token = Authentication.getUserAccessTokenSilently(appScopes);
+		if (token == null)
+			throw new IllegalStateException(
+					"The Graph sign in expired and could not be refreshed, restart the daemon");
+		return token;
+	}
+
+	private void handle(HttpExchange exchange, String method, Command command) {
+		long start = System.nanoTime();
+		try {
+			if (refused(exchange, method))
+				Metrics.DAEMON_ERRORS.increment();
+			else
+				command.run(exchange, query(exchange.getRequestURI()));
+		} catch (Exception e) {
+			Metrics.DAEMON_ERRORS.increment();
+			int code = e instanceof IllegalArgumentException || e instanceof DateTimeParseException ? 400
+					: e instanceof IllegalStateException ? 503 : e instanceof MessagingException ? 502 : 500;
+			// nothing can be reported once the response started
+			if (exchange.getResponseCode() == -1) {
+				try {
+					respond(exchange, code, "error", String.valueOf(e.getMessage()));
+				} catch (IOException closed) {
+					// the caller is gone
+				}
+			}
+		} finally {
+			exchange.close();
+			Metrics.DAEMON_REQUEST.recordSince(start);
+		}
+	}
+
+	/**
+	 * Answer requests that are not for this API
+	 * @return boolean - whether the request was refused
+	 */
+	private boolean refused(HttpExchange exchange, String method) throws IOException {
+		String host = exchange.getRequestHeaders().getFirst("Host");
+		if (host == null || !isLocal(host)) {
+			respond(exchange, 403, "error", "Host must be localhost");
+			return true;
+		}
+		String given = exchange.getRequestHeaders().getFirst("Authorization");
+		if (given == null || !MessageDigest.isEqual(authorization, given.getBytes(StandardCharsets.US_ASCII))) {
+			exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+			respond(exchange, 401, "error", "Authorization: Bearer <token> is missing or wrong");
+			return true;
+		}
+		if (!method.equals(exchange.getRequestMethod())) {
+			respond(exchange, 405, "error", "Use " + method);
+			return true;
+		}
+		String type = exchange.getRequestHeaders().getFirst("Content-Type");
+		if ("POST".equals(method) && (type == null
+				|| !type.split(";", 2)[0].trim().equalsIgnoreCase("application/json"))) {
+			respond(exchange, 415, "error", "Content-Type must be application/json");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param host - Host header, with or without port
+	 */
+	static boolean isLocal(String host) {
+		String name = host.trim().toLowerCase(Locale.ROOT);
+		int colon = name.lastIndexOf(':');
+		if (colon >= 0 && name.indexOf(']') < colon)
+			name = name.substring(0, colon);
+		return name.equals("localhost") || name.equals("127.0.0.1") || name.equals("[::1]");
+	}
+
+	private void health(HttpExchange exchange, Map<String, String> query) throws IOException {
+		try (JsonWriter json = stream(exchange)) {
+			json.beginObject();
+			json.name("timeZone").value(timeZone);
+			for (Map.Entry<String, String> entry : status.entrySet())
+				json.name(entry.getKey()).value(entry.getValue());
+			json.endObject();
+		}
+	}
+
+	private void messages(HttpExchange exchange, Map<String, String> query) throws IOException, MessagingException {
+		int limit = limit(query);
+		String folder = query.getOrDefault("folder", "");
+		String source = query.getOrDefault("source", graphReady && !query.containsKey("account") ? "graph" : "imap");
+		if ("graph".equals(source)) {
+			String token = token();
+			// the folder is one path segment, whatever characters it holds; dot segments would still navigate
+			if (folder.equals(".") || folder.equals(".."))
+				throw new IllegalArgumentException("No folder " + folder);
+			HttpUrl.Builder url = HttpUrl.get(Graph.getServiceRoot(token) + "/me").newBuilder();
+			if (!folder.isBlank())
+				url.addPathSegment("mailFolders").addPathSegment(folder);
+			HttpUrl path = url.addPathSegment("messages").build();
+			try (JsonWriter json = stream(exchange)) {
+				json.beginObject().name("messages").beginArray();
+				Listing listing = new Listing(json, limit);
+				Exception error = null;
+				try {
+					GraphStream.streamMessages(token, path, MailboxCrawler.GRAPH_SELECT,
+							Math.min(limit, GraphStream.MAX_PAGE_SIZE), listing);
+				} catch (LimitReached e) {
+					// enough
+				} catch (RuntimeException e) {
+					error = e;
+				}
+				listing.end(error);
+			}
+		} else if ("imap".equals(source)) {
+			AccountConfig.Account account = account(query.get("account"));
+			if (!account.receivesWith(AccountConfig.IMAP))
+				throw new IllegalArgumentException(account.getName() + " does not receive with " + AccountConfig.IMAP);
+			imapMessages(exchange, pool(account), folder.isBlank() ? "INBOX" : folder, limit);
+		} else {
+			throw new IllegalArgumentException("source must be graph or imap");
+		}
+	}
+
+	/**
+	 * Newest first, fetched in batches of at most {@link MailboxCrawler#IMAP_BATCH} and written as they come
+	 */
+	private void imapMessages(HttpExchange exchange, Pool pool, String folderName, int limit)
+			throws IOException, MessagingException {
+		Store store = pool.borrowStore();
+		Folder folder = store.getFolder(folderName);
+		try {
+			long start = System.nanoTime();
+			folder.open(Folder.READ_ONLY);
+			Metrics.MAIL_FOLDER_OPEN.recordSince(start);
+			int total = folder.getMessageCount();
+			FetchProfile profile = new FetchProfile();
+			profile.add(FetchProfile.Item.ENVELOPE);
+			profile.add(FetchProfile.Item.FLAGS);
+			profile.add(UIDFolder.FetchProfileItem.UID);
+			try (JsonWriter json = stream(exchange)) {
+				json.beginObject().name("total").value(total).name("messages").beginArray();
+				Listing listing = new Listing(json, limit);
+				Exception error = null;
+				try {
+					for (int last = total; last >= 1; last -= MailboxCrawler.IMAP_BATCH) {
+						int first = Math.max(Math.max(1, last - MailboxCrawler.IMAP_BATCH + 1),
+								last - (limit - listing.count) + 1);
+						start = System.nanoTime();
+						Message[] batch = folder.getMessages(first, last);
+						folder.fetch(batch, profile);
+						Metrics.MAIL_FETCH.recordSince(start);
+						Metrics.MESSAGES_FETCHED.add(batch.length);
+						for (int i = batch.length - 1; i >= 0; i--)
+							listing.accept(MailboxCrawler.ImapAccount.summarize((UIDFolder) folder, batch[i]));
+					}
+				} catch (LimitReached e) {
+					// enough
+				} catch (MessagingException | RuntimeException e) {
+					Metrics.MAIL_ERRORS.increment();
+					error = e;
+				}
+				listing.end(error);
+			}
+		} finally {
+			if (folder.isOpen())
+				close(folder);
+			pool.release(store);
+		}
+	}
+
+	/**
+	 * The store is opened for this request only, so the interactive clients can use it between requests. An IMAP
+	 * folder is synced first over a pooled connection; if that fails the cached messages are searched, with
+	 * "synced":false.
+	 */
+	private void search(HttpExchange exchange, Map<String, String> query) throws IOException, MessagingException {
+		String text = query.get("q");
+		if (text == null || text.isBlank())
+			throw new IllegalArgumentException("q is missing");
+		int limit = limit(query);
+		AccountConfig.Account account = account(query.get("account"));
+		String folder = query.getOrDefault("folder", "INBOX");
+		if (folder.isBlank())
+			folder = "INBOX";
+		synchronized (storeLocks.computeIfAbsent(account.getUsername() + "\n" + folder, key -> new Object())) {
+			MessageStore store;
+			try {
+				store = MessageStore.open(account.getUsername(), folder);
+			} catch (IOException e) {
+				// mostly another process using it
+				throw new IllegalStateException(e.getMessage());
+			}
+			if (store == null)
+				throw new IllegalStateException("Searching needs a message store, set " + MessageStore.DIR_PROPERTY);
+			try {
+				boolean synced = !account.receivesWith(AccountConfig.IMAP) || sync(pool(account), store, folder);
+				SearchIndex.update(store);
+				SearchIndex index = SearchIndex.open(store);
+				SearchIndex.Hits hits = index.search(text, limit);
+				try (JsonWriter json = stream(exchange)) {
+					json.beginObject().name("synced").value(synced).name("total").value(hits.total);
+					json.name("hits").beginArray();
+					for (int i = 0; i < hits.records.length; i++) {
+						String[] strings = store.readStrings(hits.records[i]);
+						json.beginObject();
+						json.name("score").value(hits.scores[i]);
+						json.name("uid").value(store.getUid(hits.records[i]));
+						json.name("date").value(Instant.ofEpochMilli(store.getDate(hits.records[i])).toString());
+						json.name("subject").value(strings[0]);
+						json.name("sender").value(strings[1]);
+						json.name("id").value(strings[2]);
+						json.endObject();
+					}
+					json.endArray().endObject();
+				}
+			} finally {
+				store.close();
+			}
+		}
+	}
+
+	/**
+	 * @return boolean - FALSE if the folder could not be synced
+	 */
+	private static boolean sync(Pool pool, MessageStore store, String folder) throws IOException {
+		try {
+			Store mailStore = pool.borrowStore();
+			try {
+				store.sync(mailStore.getFolder(folder));
+			} finally {
+				pool.release(mailStore);
+			}
+			return true;
+		} catch (MessagingException e) {
+			Metrics.MAIL_ERRORS.increment();
+			return false;
+		}
+	}
+
+	private void send(HttpExchange exchange, Map<String, String> query) throws IOException, MessagingException {
+		Map<String, Object> body = readBody(exchange);
+		AccountConfig.Account account = account(string(body, "account"));
+		if (account.getSend() == null)
+			throw new IllegalArgumentException(account.getName() + " has no PROTOCOL_SEND");
+		String to = string(body, "to") != null ? string(body, "to") : account.getTo();
+		if (to == null)
+			throw new IllegalArgumentException("to is missing");
+		Message message = CheckingMails.createMessage(account.getSend().getSession(), account.getUsername(), to,
+				string(body, "subject"), string(body, "text") != null ? string(body, "text") : "");
+		message.saveChanges();
+
+		Pool pool = pool(account);
+		Transport transport = pool.borrowTransport();
+		try {
+			long start = System.nanoTime();
+			transport.sendMessage(message, message.getAllRecipients());
+			Metrics.MAIL_SEND.recordSince(start);
+		} catch (MessagingException e) {
+			Metrics.MAIL_ERRORS.increment();
+			// the connection may be unusable, don't hand it out again
+			close(transport);
+			throw e;
+		}
+		pool.release(transport);
+		respond(exchange, 200, "messageId", ((MimeMessage) message).getMessageID());
+	}
+
+	private void createEvent(HttpExchange exchange, Map<String, String> query) throws IOException {
+		Map<String, Object> body = readBody(exchange);
+		String subject = string(body, "subject");
+		if (subject == null || subject.isBlank())
+			throw new IllegalArgumentException("subject is missing");
+		if (string(body, "start") == null || string(body, "end") == null)
+			throw new IllegalArgumentException("start and end are required, e.g. 2026-10-20T10:00");
+		LocalDateTime start = LocalDateTime.parse(string(body, "start"));
+		LocalDateTime end = LocalDateTime.parse(string(body, "end"));
+		if (!end.isAfter(start))
+			throw new IllegalArgumentException("end must be after start");
+		String eventZone = string(body, "timeZone") != null ? string(body, "timeZone") : timeZone;
+		@SuppressWarnings("unchecked")
+		List<String> attendees = (List<String>) body.getOrDefault("attendees", Collections.emptyList());
+
+		Graph.createEvent(token(), eventZone, subject, start, end, new HashSet<String>(attendees),
+				string(body, "body"));
+		respond(exchange, 201, "timeZone", eventZone);
+	}
+
+	private static int limit(Map<String, String> query) {
+		String limit = query.get("limit");
+		try {
+			int value = limit == null ? DEFAULT_LIMIT : Integer.parseInt(limit);
+			if (value > 0)
+				return value;
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("limit must be a positive number, not " + limit);
+	}
+
+	static Map<String, String> query(URI uri) {
+		Map<String, String> query = new HashMap<String, String>();
+		String raw = uri.getRawQuery();
+		if (raw == null)
+			return query;
+		for (String pair : raw.split("&")) {
+			if (pair.isEmpty())
+				continue;
+			int equals = pair.indexOf('=');
+			String name = equals < 0 ? pair : pair.substring(0, equals);
+			String value = equals < 0 ? "" : pair.substring(equals + 1);
+			query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return query;
+	}
+
+	/**
+	 * Read a flat JSON object of strings and string arrays
+	 */
+	static Map<String, Object> readBody(HttpExchange exchange) throws IOException {
+		Map<String, Object> body = new HashMap<String, Object>();
+		try (InputStream in = exchange.getRequestBody();
+				JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				JsonToken token = reader.peek();
+				if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+					body.put(name, reader.nextString());
+				} else if (token == JsonToken.BEGIN_ARRAY) {
+					List<String> values = new ArrayList<String>();
+					reader.beginArray();
+					while (reader.hasNext())
+						values.add(reader.nextString());
+					reader.endArray();
+					body.put(name, values);
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} catch (IllegalStateException e) {
+			// gson reports unexpected tokens this way
+			throw new IllegalArgumentException("Expected a JSON object of strings - " + e.getMessage());
+		}
+		return body;
+	}
+
+	private static String string(Map<String, Object> body, String name) {
+		Object value = body.get(name);
+		return value instanceof String ? (String) value : null;
+	}
+
+	/**
+	 * Start a chunked JSON response
+	 */
+	private static JsonWriter stream(HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(200, 0);
+		return new JsonWriter(new BufferedWriter(
+				new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192));
+	}
+
+	/**
+	 * Send a one field JSON object
+	 */
+	private static void respond(HttpExchange exchange, int code, String name, String value) throws IOException {
+		StringWriter text = new StringWriter();
+		try (JsonWriter json = new JsonWriter(text)) {
+			json.beginObject().name(name).value(value).endObject();
+		}
+		byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(code, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static void close(Service service) {
+		try {
+			service.close();
+		} catch (MessagingException e) {
+			// closing anyway
+		}
+	}
+
+	private static void close(Folder folder) {
+		try {
+			folder.close(false);
+		} catch (MessagingException e) {
+			// closing anyway
+		}
+	}
+
+	private static ThreadFactory threads(String prefix) {
+		AtomicInteger number = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + number.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * @return boolean - whether the arguments ask for daemon mode, --daemon
+	 */
+	public static boolean requested(String[] args) {
+		return Arrays.asList(args).contains("--daemon");
+	}
+
+	/**
+	 * Run headless until the JVM is stopped. The port is the first numeric argument, else
+	 * -Dpvt.email.daemon.port, else {@link #DEFAULT_PORT}. Graph settings come from oAuth.properties, mail accounts
+	 * as for {@link CheckingMails}.
+	 */
+	public static void main(String[] args) {
+		Properties oAuth = new Properties();
+		try (InputStream in = App.class.getResourceAsStream("oAuth.properties")) {
+			if (in != null)
+				oAuth.load(in);
+			else
+				System.err.println("No oAuth.properties, Graph commands are off");
+		} catch (IOException e) {
+			System.err.println("Unable to read oAuth.properties, Graph commands are off - " + e.getMessage());
+		}
+		Supplier<AccountConfig> config = null;
+		try {
+			config = AccountConfig.current("oAuth-O365.properties");
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println("No mail accounts, mail commands are off - " + e.getMessage());
+		}
+
+		int port = Integer.getInteger(PORT_PROPERTY, DEFAULT_PORT);
+		for (String arg : args) {
+			if (arg.matches("\\d+"))
+				port = Integer.parseInt(arg);
+		}
+		Daemon daemon = new Daemon(oAuth, config);
+		Path tokenFile = Paths.get(System.getProperty(TOKEN_FILE_PROPERTY,
+				Paths.get(System.getProperty("user.home"), ".email-daemon-token").toString()));
+		try {
+			daemon.writeToken(tokenFile);
+		} catch (IOException e) {
+			System.err.println("Unable to write the API token to " + tokenFile + " - " + e.getMessage());
+			return;
+		}
+		try {
+			port = daemon.start(port, Math.max(1, Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS)));
+		} catch (IOException e) {
+			System.err.println("Unable to listen on port " + port + " - " + e.getMessage());
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			daemon.stop();
+			try {
+				Files.deleteIfExists(tokenFile);
+			} catch (IOException e) {
+				// the next start replaces it
+			}
+		}, "daemon-stop"));
+		System.out.println("Listening on http://localhost:" + port + "/, API token in " + tokenFile);
+		daemon.warmUp();
+
+		// the server threads are daemon threads, keep the JVM up until it is stopped
+		try {
+			Thread.currentThread().join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.Store;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.ListInfo;
+import com.sun.mail.imap.protocol.Status;
+
+import okhttp3.HttpUrl;
+
+/**
+ * <p>
+ * Message counts, unread counts and sizes of every folder of a mailbox, without opening any of them. <br>
+ * IMAP: one LIST "" "*" RETURN (STATUS (...)) when the server has LIST-STATUS (RFC 5819), otherwise LIST
+ * followed by STATUS commands, pipelined in windows of {@link #PIPELINE_WINDOW}. The size is asked for when the
+ * server has STATUS=SIZE (RFC 8438). No folder is SELECTed. <br>
+ * Graph: mailFolders/delta, which returns the whole folder tree flat with totalItemCount, unreadItemCount and
+ * sizeInBytes, in as few pages as the server allows.
+ * </p>
+ */
+public class FolderStatistics {
+
+	/** STATUS commands written before their responses are read */
+	static final int PIPELINE_WINDOW = 64;
+
+	static final String GRAPH_SELECT = "displayName,parentFolderId,childFolderCount,totalItemCount,unreadItemCount,sizeInBytes";
+
+	/**
+	 * Statistics of one folder. Values the server did not report are -1.
+	 */
+	public static final class FolderStatus {
+		/** IMAP full name, or Graph folder id */
+		public final String id;
+		/** Display path, e.g. Inbox/Projects */
+		public final String path;
+		public final long messages;
+		public final long unseen;
+		/** IMAP only */
+		public final long uidNext;
+		public final long sizeInBytes;
+
+		FolderStatus(String id, String path, long messages, long unseen, long uidNext, long sizeInBytes) {
+			this.id = id;
+			this.path = path;
+			this.messages = messages;
+			this.unseen = unseen;
+			this.uidNext = uidNext;
+			this.sizeInBytes = sizeInBytes;
+		}
+
+		@Override
+		public String toString() {
+			return path + " - " + messages + " messages, " + unseen + " unread"
+					+ (sizeInBytes >= 0 ? ", " + sizeInBytes + " bytes" : "");
+		}
+	}
+
+	/**
+	 * Statistics of every selectable folder of a connected IMAP store
+	 * @param store - connected IMAP store
+	 * @return List - one entry per folder, in LIST order
+	 * @throws MessagingException - if LIST fails or the server rejects a STATUS with BAD
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<FolderStatus> imap(Store store) throws MessagingException {
+		IMAPFolder root = (IMAPFolder) store.getDefaultFolder();
+		long start = System.nanoTime();
+		List<FolderStatus> statuses = (List<FolderStatus>) root.doCommand(protocol -> {
+			synchronized (protocol) {
+				try {
+					String items = protocol.hasCapability("STATUS=SIZE") ? "MESSAGES UNSEEN UIDNEXT SIZE"
+							: "MESSAGES UNSEEN UIDNEXT";
+					if (protocol.hasCapability("LIST-STATUS"))
+						return listStatus(protocol, items);
+					return pipelinedStatus(protocol, items);
+				} catch (IOException e) {
+					throw new ProtocolException("Unable to read folder statistics", e);
+				}
+			}
+		});
+		Metrics.FOLDER_STATUS.recordSince(start);
+		return statuses;
+	}
+
+	/**
+	 * LIST "" "*" RETURN (STATUS (items)), one round trip for the whole tree
+	 */
+	private static List<FolderStatus> listStatus(IMAPProtocol protocol, String items) throws ProtocolException {
+		Argument args = new Argument();
+		args.writeString("");
+		args.writeString("*");
+		args.writeAtom("RETURN (STATUS (" + items + "))");
+		Response[] responses = protocol.command("LIST", args);
+		protocol.notifyResponseHandlers(responses);
+		protocol.handleResult(responses[responses.length - 1]);
+
+		Map<String, ListInfo> folders = new LinkedHashMap<String, ListInfo>();
+		Map<String, Status> statuses = new HashMap<String, Status>();
+		for (Response response : responses) {
+			if (!(response instanceof IMAPResponse))
+				continue;
+			IMAPResponse imapResponse = (IMAPResponse) response;
+			if (imapResponse.keyEquals("LIST")) {
+				ListInfo folder = new ListInfo(imapResponse);
+				folders.put(folder.name, folder);
+			} else if (imapResponse.keyEquals("STATUS")) {
+				Status status = new Status(imapResponse);
+				statuses.put(status.mbox, status);
+			}
+		}
+		List<FolderStatus> result = new ArrayList<FolderStatus>(folders.size());
+		for (ListInfo folder : folders.values()) {
+			Status status = statuses.get(folder.name);
+			if (folder.canOpen && status != null)
+				result.add(toFolderStatus(folder, status));
+		}
+		return result;
+	}
+
+	/**
+	 * LIST, then one STATUS per folder. The commands of a window are written back to back and the responses
+	 * read afterwards, so a window costs one round trip instead of one per folder.
+	 */
+	private static List<FolderStatus> pipelinedStatus(IMAPProtocol protocol, String items)
+			throws ProtocolException, IOException {
+		List<ListInfo> folders = new ArrayList<ListInfo>();
+		ListInfo[] listed = protocol.list("", "*");
+		if (listed != null) {
+			for (ListInfo folder : listed) {
+				if (folder.canOpen)
+					folders.add(folder);
+			}
+		}
+
+		List<FolderStatus> result = new ArrayList<FolderStatus>(folders.size());
+		for (int first = 0; first < folders.size(); first += PIPELINE_WINDOW) {
+			List<ListInfo> window = folders.subList(first, Math.min(folders.size(), first + PIPELINE_WINDOW));
+			Map<String, ListInfo> byTag = new HashMap<String, ListInfo>();
+			for (ListInfo folder : window) {
+				Argument args = new Argument();
+				if (protocol.supportsUtf8())
+					args.writeString(folder.name, StandardCharsets.UTF_8);
+				else
+					args.writeString(BASE64MailboxEncoder.encode(folder.name));
+				args.writeAtom("(" + items + ")");
+				byTag.put(protocol.writeCommand("STATUS", args), folder);
+			}
+
+			Map<String, Status> statuses = new HashMap<String, Status>();
+			List<Response> untagged = new ArrayList<Response>();
+			Response failed = null;
+			int pending = window.size();
+			while (pending > 0) {
+				Response response = protocol.readResponse();
+				if (response.isTagged() && byTag.containsKey(response.getTag())) {
+					pending--;
+					// NO: the folder went away or may not be read, leave it out. BAD is thrown once the replies
+					// to the rest of the window are read, so the connection stays usable.
+					if (response.isBAD() && failed == null)
+						failed = response;
+				} else if (response.isBYE()) {
+					protocol.handleResult(response);
+				} else if (response instanceof IMAPResponse && ((IMAPResponse) response).keyEquals("STATUS")) {
+					Status status = new Status(response);
+					statuses.put(status.mbox, status);
+				} else if (response.isUnTagged()) {
+					untagged.add(response);
+				}
+			}
+			protocol.notifyResponseHandlers(untagged.toArray(new Response[0]));
+			if (failed != null)
+				protocol.handleResult(failed);
+
+			for (ListInfo folder : window) {
+				Status status = statuses.get(folder.name);
+				if (status != null)
+					result.add(toFolderStatus(folder, status));
+			}
+		}
+		return result;
+	}
+
+	private static FolderStatus toFolderStatus(ListInfo folder, Status status) {
+		String path = folder.separator == '/' || folder.separator == '\0' ? folder.name
+				: folder.name.replace(folder.separator, '/');
+		return new FolderStatus(folder.name, path, status.total, status.unseen, status.uidnext,
+				status.getItem("SIZE"));
+	}
+
+	/**
+	 * Statistics of every folder of a Graph mailbox
+	 * @param accessToken - Authentication token
+	 * @param userPath - /me or /users/{id | userPrincipalName}
+	 * @return List - one entry per folder, parents before their children
+	 */
+	@SuppressWarnings("try")
+	public static List<FolderStatus> graph(String accessToken, String userPath) {
+		Map<String, GraphStream.FolderSummary> folders = new LinkedHashMap<String, GraphStream.FolderSummary>();
+		long start = System.nanoTime();
+		HttpUrl url = HttpUrl.get(Graph.getServiceRoot(accessToken) + userPath + "/mailFolders/delta").newBuilder()
+				.addQueryParameter("$select", GRAPH_SELECT).build();
+		try (GraphTracer.Trace trace = GraphTracer.begin("folderStatistics")) {
+			// delta pages are sized with odata.maxpagesize, not $top
+			GraphStream.streamPages(accessToken, url, "odata.maxpagesize=" + GraphStream.MAX_PAGE_SIZE,
+					GraphStream::parseFolder, folder -> folders.put(folder.id, folder));
+		}
+		Metrics.FOLDER_STATUS.recordSince(start);
+
+		Map<String, String> paths = new HashMap<String, String>();
+		List<FolderStatus> result = new ArrayList<FolderStatus>(folders.size());
+		for (GraphStream.FolderSummary folder : folders.values())
+			result.add(new FolderStatus(folder.id, path(folder, folders, paths), folder.totalItemCount,
+					folder.unreadItemCount, -1, folder.sizeInBytes));
+		result.sort((a, b) -> a.path.compareTo(b.path));
+		return result;
+	}
+
+	/**
+	 * Path of a Graph folder, built from the display names up to the first folder outside the listing
+	 * (the message folder root)
+	 */
+	private static String path(GraphStream.FolderSummary folder, Map<String, GraphStream.FolderSummary> folders,
+			Map<String, String> paths) {
+		String path = paths.get(folder.id);
+		if (path != null)
+			return path;
+		GraphStream.FolderSummary parent = folder.parentFolderId == null ? null : folders.get(folder.parentFolderId);
+		// the parent link is only followed upwards, so a cycle would need a server bug; cut it anyway
+		paths.put(folder.id, folder.displayName);
+		path = parent == null ? folder.displayName : path(parent, folders, paths) + "/" + folder.displayName;
+		paths.put(folder.id, path);
+		return path;
+	}
+
+	/**
+	 * Print a statistics table
+	 */
+	public static void print(List<FolderStatus> statuses) {
+		long messages = 0;
+		long unseen = 0;
+		for (FolderStatus status : statuses) {
+			System.out.println(status);
+			messages += Math.max(0, status.messages);
+			unseen += Math.max(0, status.unseen);
+		}
+		System.out.println(statuses.size() + " folders, " + messages + " messages, " + unseen + " unread");
+	}
+}
@@ -6,8 +6,21 @@ import java.time.format.DateTimeFormatter;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Function;
 
+import com.microsoft.graph.authentication.IAuthenticationProvider;
+import com.microsoft.graph.concurrency.IExecutors;
+import com.microsoft.graph.core.DefaultClientConfig;
+import com.microsoft.graph.core.IClientConfig;
+import com.microsoft.graph.http.CoreHttpProvider;
+import com.microsoft.graph.http.IBaseCollectionPage;
+import com.microsoft.graph.http.IHttpProvider;
+import com.microsoft.graph.http.IRequestBuilder;
+import com.microsoft.graph.httpcore.HttpClients;
+import com.microsoft.graph.httpcore.RedirectHandler;
+import com.microsoft.graph.httpcore.RetryHandler;
 import com.microsoft.graph.logger.DefaultLogger;
+import com.microsoft.graph.logger.ILogger;
 import com.microsoft.graph.logger.LoggerLevel;
 import com.microsoft.graph.models.extensions.Attendee;
 import com.microsoft.graph.models.extensions.DateTimeTimeZone;
@@ -23,10 +36,11 @@ import com.microsoft.graph.options.Option;
 import com.microsoft.graph.options.QueryOption;
 import com.microsoft.graph.requests.extensions.GraphServiceClient;
 import com.microsoft.graph.requests.extensions.IEventCollectionPage;
-import com.microsoft.graph.requests.extensions.IEventCollectionRequestBuilder;
 import com.microsoft.graph.models.extensions.Message;
 import com.microsoft.graph.requests.extensions.IMessageCollectionPage;
-import com.microsoft.graph.requests.extensions.IMessageCollectionRequestBuilder;
+
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
 /**
  * Graph
  */
@@ -34,6 +48,7 @@ public class Graph {
 
 	private static IGraphServiceClient graphClient = null;
 	private static SimpleAuthProvider authProvider = null;
+	private static OkHttpClient httpClient = null;
 
 	/**
 	 * Create an Event is user's calendar
@@ -45,10 +60,24 @@ public class Graph {
 	 * @param attendees - A Set of attendees
 	 * @param body - Description of the event
 	 */
+	@SuppressWarnings("try")
 	public static void createEvent(String accessToken, String timeZone, String subject, LocalDateTime start,
 			LocalDateTime end, Set<String> attendees, String body) {
 		ensureGraphClient(accessToken);
 
+		Event newEvent = newEvent(timeZone, subject, start, end, attendees, body);
+
+		// POST /me/events
+		try (GraphTracer.Trace trace = GraphTracer.begin("createEvent")) {
+			graphClient.me().events().buildRequest().post(newEvent);
+		}
+	}
+
+	/**
+	 * Build the Event posted by {@link #createEvent}
+	 */
+	static Event newEvent(String timeZone, String subject, LocalDateTime start, LocalDateTime end,
+			Set<String> attendees, String body) {
 		Event newEvent = new Event();
 
 		newEvent.subject = subject;
@@ -80,9 +109,7 @@ public class Graph {
 			// Treat body as plain text
 			newEvent.body.contentType = BodyType.TEXT;
 		}
-
-		// POST /me/events
-		graphClient.me().events().buildRequest().post(newEvent);
+		return newEvent;
 	}
 
 	/**
@@ -91,26 +118,20 @@ public class Graph {
 	 * @param accessToken - Authentication token
 	 * @return List<Message> - all mails as a list of Message objects
 	 */
+	@SuppressWarnings("try")
 	public static List<Message> getAllMails(String accessToken){
 		ensureGraphClient(accessToken);
-		IMessageCollectionPage messages = graphClient.me().messages()
-			.buildRequest()
-			.select("sender,subject")
-			.get();
-		List<Message> allMessages = new LinkedList<Message>();
-		while (messages != null) {
-			allMessages.addAll(messages.getCurrentPage());
-			IMessageCollectionRequestBuilder nextPage = messages.getNextPage();
-			if (nextPage == null) {
-				break;
-			} else {
-				messages = nextPage.buildRequest().get();
-			}
+		try (GraphTracer.Trace trace = GraphTracer.begin("getAllMails")) {
+			long start = System.nanoTime();
+			IMessageCollectionPage messages = graphClient.me().messages()
+				.buildRequest()
+				.select("sender,subject")
+				.get();
+			pageFetched(start);
+			return collectPages(messages, nextPage -> nextPage.buildRequest().get());
 		}
-		return allMessages;
-		
 	}
-	
+
 	/**
 	 * Get calendar details, for a given time duration
 	 * @param accessToken - Authentication token, recieved from server
@@ -119,10 +140,29 @@ public class Graph {
 	 * @param timeZone - TimeZone
 	 * @return List<Event> - List of all events in the given time frame
 	 */
+	@SuppressWarnings("try")
 	public static List<Event> getCalendarView(String accessToken, ZonedDateTime viewStart, ZonedDateTime viewEnd,
 			String timeZone) {
 		ensureGraphClient(accessToken);
 
+		List<Option> options = calendarViewOptions(viewStart, viewEnd, timeZone);
+		List<Option> pagingOptions = calendarViewPagingOptions(timeZone);
+
+		try (GraphTracer.Trace trace = GraphTracer.begin("getCalendarView")) {
+			// GET /me/events
+			long start = System.nanoTime();
+			IEventCollectionPage eventPage = graphClient.me().calendarView().buildRequest(options)
+					.select("subject,organizer,start,end").top(25).get();
+			pageFetched(start);
+
+			return collectPages(eventPage, nextPage -> nextPage.buildRequest(pagingOptions).get());
+		}
+	}
+
+	/**
+	 * Options of the first calendar view request
+	 */
+	static List<Option> calendarViewOptions(ZonedDateTime viewStart, ZonedDateTime viewEnd, String timeZone) {
 		List<Option> options = new LinkedList<Option>();
 		options.add(new QueryOption("startDateTime", viewStart.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME)));
 		options.add(new QueryOption("endDateTime", viewEnd.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME)));
@@ -131,39 +171,57 @@ public class Graph {
 
 		// Start and end times adjusted to user's time zone
 		options.add(new HeaderOption("Prefer", "outlook.timezone=\"" + timeZone + "\""));
+		return options;
+	}
 
-		// GET /me/events
-		IEventCollectionPage eventPage = graphClient.me().calendarView().buildRequest(options)
-				.select("subject,organizer,start,end").top(25).get();
-
-		List<Event> allEvents = new LinkedList<Event>();
-
-		// Create a separate list of options for the paging requests
-		// paging request should not include the query parameters from the initial
-		// request, but should include the headers.
+	/**
+	 * Options of the calendar view paging requests.
+	 * Paging requests should not include the query parameters from the initial
+	 * request, but should include the headers.
+	 */
+	static List<Option> calendarViewPagingOptions(String timeZone) {
 		List<Option> pagingOptions = new LinkedList<Option>();
 		pagingOptions.add(new HeaderOption("Prefer", "outlook.timezone=\"" + timeZone + "\""));
+		return pagingOptions;
+	}
 
-		while (eventPage != null) {
-			allEvents.addAll(eventPage.getCurrentPage());
-
-			IEventCollectionRequestBuilder nextPage = eventPage.getNextPage();
-
+	/**
+	 * Walk a paged Graph collection and gather every item into one list
+	 * @param page - First page, as returned by the initial request
+	 * @param fetchNext - Fetches the page behind a next page request builder
+	 * @return List<T> - items of all pages, in server order
+	 */
+	static <T, B extends IRequestBuilder> List<T> collectPages(IBaseCollectionPage<T, B> page,
+			Function<B, ? extends IBaseCollectionPage<T, B>> fetchNext) {
+		List<T> allItems = new LinkedList<T>();
+		while (page != null) {
+			allItems.addAll(page.getCurrentPage());
+			B nextPage = page.getNextPage();
 			if (nextPage == null) {
 				break;
 			} else {
-				eventPage = nextPage.buildRequest(pagingOptions).get();
+				long start = System.nanoTime();
+				page = fetchNext.apply(nextPage);
+				pageFetched(start);
 			}
 		}
+		return allItems;
+	}
 
-		return allEvents;
+	/**
+	 * Account for one page handed back by the SDK
+	 * @param start - System.nanoTime() taken before the page was requested
+	 */
+	static void pageFetched(long start) {
+		Metrics.GRAPH_PAGE.recordSince(start);
+		GraphTracer.pageDone();
 	}
 
 	/**
 	 * Check if the Access token is valid and user can connect to the server
 	 * @param accessToken
 	 */
-	private static void ensureGraphClient(String accessToken) {
+	private static synchronized void ensureGraphClient(String accessToken) {
 		if (graphClient == null) {
 			// Create the auth provider
 			authProvider = new SimpleAuthProvider(accessToken);
@@ -173,22 +231,102 @@ public class Graph {
 			logger.setLoggingLevel(LoggerLevel.ERROR);
 
 			// Build a Graph client
-			graphClient = GraphServiceClient.builder().authenticationProvider(authProvider).logger(logger)
-					.buildClient();
+			graphClient = GraphServiceClient.builder().authenticationProvider(authProvider)
+					.httpProvider(createHttpProvider(authProvider, logger)).executors(GraphAsync.sdkExecutors())
+					.logger(logger).buildClient();
+		} else {
+			// the client outlives a token, it sends the latest one it was given
+			authProvider.setAccessToken(accessToken);
 		}
 	}
 
+	/**
+	 * Build the HTTP pipeline of the Graph client. Same middleware as the SDK default
+	 * (retry and redirect handling), with the transport recorder in front when one is active.
+	 * @param authProvider - adds the access token to every request
+	 * @param logger - SDK logger
+	 * @return IHttpProvider - provider for the GraphServiceClient builder
+	 */
+	private static IHttpProvider createHttpProvider(SimpleAuthProvider authProvider, ILogger logger) {
+		IClientConfig config = new DefaultClientConfig() {
+			// deprecated, but still the type the client config returns, see SimpleAuthProvider
+			@SuppressWarnings("deprecation")
+			@Override
+			public IAuthenticationProvider getAuthenticationProvider() {
+				return authProvider;
+			}
+
+			@Override
+			public ILogger getLogger() {
+				return logger;
+			}
+
+			// callback style requests run on the shared, bounded executor of GraphAsync
+			@Override
+			public IExecutors getExecutors() {
+				return GraphAsync.sdkExecutors();
+			}
+		};
+
+		OkHttpClient.Builder pipeline = HttpClients.custom();
+		if (GraphTracer.isEnabled())
+			pipeline.addInterceptor(GraphTracer.spanInterceptor());
+		Interceptor recorder = TransportRecorder.get().interceptor();
+		if (recorder != null)
+			pipeline.addInterceptor(recorder);
+		pipeline.addInterceptor(new RetryHandler()).addInterceptor(new RedirectHandler());
+		// inside the retry handler, so every attempt is timed on its own
+		if (GraphTracer.isEnabled())
+			pipeline.addInterceptor(GraphTracer.attemptInterceptor());
+		pipeline.addInterceptor(Metrics.graphRequestInterceptor());
+		httpClient = pipeline.build();
+
+		return new CoreHttpProvider(config, httpClient);
+	}
+
+	/**
+	 * HTTP pipeline of the Graph client, for requests made without the SDK (see {@link GraphStream}).
+	 * Requests have to carry the Authorization header themselves.
+	 * @param accessToken - Authentication token
+	 * @return OkHttpClient - the shared client, with retry, recording, tracing and metrics
+	 */
+	static OkHttpClient getHttpClient(String accessToken) {
+		ensureGraphClient(accessToken);
+		return httpClient;
+	}
+
+	/**
+	 * @param accessToken - Authentication token
+	 * @return IGraphServiceClient - the shared Graph client
+	 */
+	static IGraphServiceClient getGraphClient(String accessToken) {
+		ensureGraphClient(accessToken);
+		return graphClient;
+	}
+
+	/**
+	 * @param accessToken - Authentication token
+	 * @return String - Graph service root, e.g. https://graph.microsoft.com/v1.0
+	 */
+	static String getServiceRoot(String accessToken) {
+		ensureGraphClient(accessToken);
+		return graphClient.getServiceRoot();
+	}
+
 	/**
 	 * Fetch current user details
 	 * @param accessToken - Authentication token, Server provided
 	 * @return User - User details 
 	 */
+	@SuppressWarnings("try")
 	public static User getUser(String accessToken) {
 		ensureGraphClient(accessToken);
 
 		// GET /me to get authenticated user
-		User me = graphClient.me().buildRequest().select("displayName,mailboxSettings").get();
+		try (GraphTracer.Trace trace = GraphTracer.begin("getUser")) {
+			User me = graphClient.me().buildRequest().select("displayName,mailboxSettings").get();
 
-		return me;
+			return me;
+		}
 	}
 }
\ No newline at end of file
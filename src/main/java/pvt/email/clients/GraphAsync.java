@@ -0,0 +1,324 @@
+package pvt.email.clients;
+
+import java.lang.reflect.Method;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.microsoft.graph.concurrency.ICallback;
+import com.microsoft.graph.concurrency.IExecutors;
+import com.microsoft.graph.concurrency.IProgressCallback;
+import com.microsoft.graph.core.ClientException;
+import com.microsoft.graph.http.IBaseCollectionPage;
+import com.microsoft.graph.http.IRequestBuilder;
+import com.microsoft.graph.models.extensions.Event;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.models.extensions.Message;
+import com.microsoft.graph.models.extensions.User;
+import com.microsoft.graph.requests.extensions.IEventCollectionPage;
+import com.microsoft.graph.requests.extensions.IEventCollectionRequestBuilder;
+import com.microsoft.graph.requests.extensions.IMessageCollectionPage;
+import com.microsoft.graph.requests.extensions.IMessageCollectionRequestBuilder;
+
+/**
+ * <p>
+ * Non-blocking counterpart of {@link Graph}. Every call returns a CompletableFuture right away. <br>
+ * Requests go through the SDK callback API, and the SDK runs them on one shared executor: virtual threads
+ * when the runtime has them (Java 21+), otherwise a pool of platform threads. Either way at most
+ * pvt.email.graph.concurrency requests (default 64) are in flight at once; the rest wait in line without
+ * holding a thread of the caller. Paged collections chain page after page through callbacks, so no thread
+ * is parked between pages.
+ * </p>
+ * <p>
+ * The SDK and {@link GraphStream} send each request blocking, so a request in flight holds its thread until
+ * the response is read. On virtual threads that costs next to nothing. On the platform pool it costs a whole
+ * thread, so the pool is kept at pvt.email.graph.platformThreads (default the number of cores, at least 4)
+ * and requests beyond that wait in line: before Java 21 the smaller of the two limits applies.
+ * </p>
+ * Fanning out over many calls:
+ * <pre>
+ * List&lt;CompletableFuture&lt;List&lt;Event&gt;&gt;&gt; views = ...;
+ * CompletableFuture.allOf(views.toArray(new CompletableFuture[0])).join();
+ * </pre>
+ */
+public class GraphAsync {
+
+	public static final String CONCURRENCY_PROPERTY = "pvt.email.graph.concurrency";
+
+	public static final String PLATFORM_THREADS_PROPERTY = "pvt.email.graph.platformThreads";
+
+	private static final int CONCURRENCY = Math.max(1, Integer.getInteger(CONCURRENCY_PROPERTY, 64));
+	private static final int PLATFORM_THREADS = Math.max(1, Integer.getInteger(PLATFORM_THREADS_PROPERTY,
+			Math.max(4, Runtime.getRuntime().availableProcessors())));
+	private static final Semaphore permits = new Semaphore(CONCURRENCY);
+	private static final Method newVirtualThreadExecutor = lookupVirtualThreadExecutor();
+	private static final ExecutorService executor = createExecutor();
+	private static final IExecutors sdkExecutors = new SdkExecutors();
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor(), looked up reflectively since the build targets Java 11
+	 */
+	private static Method lookupVirtualThreadExecutor() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static ExecutorService createExecutor() {
+		if (newVirtualThreadExecutor != null) {
+			try {
+				return (ExecutorService) newVirtualThreadExecutor.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.err.println("Unable to create virtual threads, using platform threads - " + e.getMessage());
+			}
+		}
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(PLATFORM_THREADS, PLATFORM_THREADS, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), runnable -> {
+					Thread thread = new Thread(runnable, "graph-async-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * @return boolean - TRUE if requests run on virtual threads
+	 */
+	public static boolean usesVirtualThreads() {
+		return newVirtualThreadExecutor != null && !(executor instanceof ThreadPoolExecutor);
+	}
+
+	/**
+	 * @return int - maximum number of requests in flight
+	 */
+	public static int getConcurrency() {
+		return usesVirtualThreads() ? CONCURRENCY : Math.min(CONCURRENCY, PLATFORM_THREADS);
+	}
+
+	/**
+	 * Run a task on the shared executor, once one of the permits is free.
+	 * The trace current on the calling thread carries over.
+	 */
+	static void execute(Runnable task) {
+		Runnable traced = GraphTracer.propagate(task);
+		executor.execute(() -> {
+			permits.acquireUninterruptibly();
+			try {
+				traced.run();
+			} finally {
+				permits.release();
+			}
+		});
+	}
+
+	/**
+	 * @return IExecutors - executors for the SDK, background work goes to the shared executor and
+	 *         callbacks run right on the thread that completed the request
+	 */
+	static IExecutors sdkExecutors() {
+		return sdkExecutors;
+	}
+
+	/**
+	 * Run any blocking Graph work (e.g. {@link GraphStream}) on the shared executor, under the same limit
+	 * @param work - the blocking work
+	 * @return CompletableFuture - completes with the result of the work
+	 */
+	public static <T> CompletableFuture<T> supply(Supplier<T> work) {
+		return CompletableFuture.supplyAsync(work, GraphAsync::execute);
+	}
+
+	/**
+	 * Run blocking Graph work on the shared executor and wait for it. Callers with workers of their own
+	 * (crawler, exporter) thereby count against the same limit as every other request.
+	 * @param work - the blocking work
+	 * @return T - result of the work, exceptions of the work are rethrown as they are
+	 */
+	static <T> T join(Supplier<T> work) {
+		try {
+			return supply(work).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Fetch current user details, see {@link Graph#getUser(String)}
+	 * @param accessToken - Authentication token
+	 * @return CompletableFuture - completes with the user
+	 */
+	public static CompletableFuture<User> getUser(String accessToken) {
+		IGraphServiceClient graphClient = Graph.getGraphClient(accessToken);
+		GraphTracer.Trace trace = GraphTracer.beginAsync("getUser");
+		CompletableFuture<User> user = new CompletableFuture<User>();
+		GraphTracer.runWithin(trace, () -> graphClient.me().buildRequest().select("displayName,mailboxSettings")
+				.get(completing(user)));
+		return user.whenComplete((result, failure) -> trace.close());
+	}
+
+	/**
+	 * Fetch all mails, see {@link Graph#getAllMails(String)}
+	 * @param accessToken - Authentication token
+	 * @return CompletableFuture - completes with the mails of all pages
+	 */
+	public static CompletableFuture<List<Message>> getAllMails(String accessToken) {
+		IGraphServiceClient graphClient = Graph.getGraphClient(accessToken);
+		GraphTracer.Trace trace = GraphTracer.beginAsync("getAllMails");
+		PageWalker<Message, IMessageCollectionRequestBuilder, IMessageCollectionPage> walker =
+				new PageWalker<Message, IMessageCollectionRequestBuilder, IMessageCollectionPage>(
+						(nextPage, callback) -> nextPage.buildRequest().get(callback));
+		GraphTracer.runWithin(trace,
+				() -> graphClient.me().messages().buildRequest().select("sender,subject").get(walker));
+		return walker.result.whenComplete((result, failure) -> trace.close());
+	}
+
+	/**
+	 * Get calendar details for a given time duration, see {@link Graph#getCalendarView}
+	 * @param accessToken - Authentication token
+	 * @param viewStart - Start DateTime
+	 * @param viewEnd - End DateTime
+	 * @param timeZone - TimeZone
+	 * @return CompletableFuture - completes with all events in the given time frame
+	 */
+	public static CompletableFuture<List<Event>> getCalendarView(String accessToken, ZonedDateTime viewStart,
+			ZonedDateTime viewEnd, String timeZone) {
+		IGraphServiceClient graphClient = Graph.getGraphClient(accessToken);
+		GraphTracer.Trace trace = GraphTracer.beginAsync("getCalendarView");
+		PageWalker<Event, IEventCollectionRequestBuilder, IEventCollectionPage> walker =
+				new PageWalker<Event, IEventCollectionRequestBuilder, IEventCollectionPage>((nextPage,
+						callback) -> nextPage.buildRequest(Graph.calendarViewPagingOptions(timeZone)).get(callback));
+		GraphTracer.runWithin(trace,
+				() -> graphClient.me().calendarView()
+						.buildRequest(Graph.calendarViewOptions(viewStart, viewEnd, timeZone))
+						.select("subject,organizer,start,end").top(25).get(walker));
+		return walker.result.whenComplete((result, failure) -> trace.close());
+	}
+
+	/**
+	 * Create an Event in user's calendar, see {@link Graph#createEvent}
+	 * @return CompletableFuture - completes with the event as created by the server
+	 */
+	public static CompletableFuture<Event> createEvent(String accessToken, String timeZone, String subject,
+			LocalDateTime start, LocalDateTime end, Set<String> attendees, String body) {
+		IGraphServiceClient graphClient = Graph.getGraphClient(accessToken);
+		Event newEvent = Graph.newEvent(timeZone, subject, start, end, attendees, body);
+		GraphTracer.Trace trace = GraphTracer.beginAsync("createEvent");
+		CompletableFuture<Event> created = new CompletableFuture<Event>();
+		GraphTracer.runWithin(trace,
+				() -> graphClient.me().events().buildRequest().post(newEvent, completing(created)));
+		return created.whenComplete((result, failure) -> trace.close());
+	}
+
+	/**
+	 * Stream the messages of a collection, see {@link GraphStream#streamMessages(String, String, String, int, Consumer)}.
+	 * The sink is called on the executor thread.
+	 * @return CompletableFuture - completes with the number of messages streamed
+	 */
+	public static CompletableFuture<Long> streamMessages(String accessToken, String path, String select,
+			int pageSize, Consumer<? super GraphStream.MessageSummary> sink) {
+		return supply(() -> GraphStream.streamMessages(accessToken, path, select, pageSize, sink));
+	}
+
+	private static <T> ICallback<T> completing(CompletableFuture<T> future) {
+		return new ICallback<T>() {
+			@Override
+			public void success(T result) {
+				future.complete(result);
+			}
+
+			@Override
+			public void failure(ClientException ex) {
+				future.completeExceptionally(ex);
+			}
+		};
+	}
+
+	/**
+	 * Gathers a paged collection, requesting the next page from the callback of the previous one
+	 */
+	private static final class PageWalker<T, B extends IRequestBuilder, P extends IBaseCollectionPage<T, B>>
+			implements ICallback<P> {
+		private final BiConsumer<B, ICallback<P>> fetchNext;
+		private final List<T> items = new ArrayList<T>();
+		private final CompletableFuture<List<T>> result = new CompletableFuture<List<T>>();
+		private long start = System.nanoTime();
+
+		PageWalker(BiConsumer<B, ICallback<P>> fetchNext) {
+			this.fetchNext = fetchNext;
+		}
+
+		@Override
+		public void success(P page) {
+			Graph.pageFetched(start);
+			items.addAll(page.getCurrentPage());
+			B nextPage = page.getNextPage();
+			if (nextPage == null) {
+				result.complete(items);
+				return;
+			}
+			start = System.nanoTime();
+			try {
+				fetchNext.accept(nextPage, this);
+			} catch (RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		}
+
+		@Override
+		public void failure(ClientException ex) {
+			result.completeExceptionally(ex);
+		}
+	}
+
+	/**
+	 * SDK executors on top of the shared executor
+	 */
+	private static final class SdkExecutors implements IExecutors {
+		@Override
+		public void performOnBackground(Runnable runnable) {
+			execute(runnable);
+		}
+
+		@Override
+		public <Result> void performOnForeground(Result result, ICallback<Result> callback) {
+			callback.success(result);
+		}
+
+		@Override
+		public <Result> void performOnForeground(int progress, int progressMax, IProgressCallback<Result> callback) {
+			callback.progress(progress, progressMax);
+		}
+
+		@Override
+		public <Result> void performOnForeground(ClientException ex, ICallback<Result> callback) {
+			callback.failure(ex);
+		}
+
+		@Override
+		public void shutdownBackgroundExecutors() {
+			// shared by every client, lives as long as the process
+		}
+	}
+}
@@ -0,0 +1,595 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.microsoft.graph.core.ClientException;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * <p>
+ * Fast path for message and event listings. <br>
+ * The SDK parses every page into a JSON tree and then into full Message/Event objects. Here each page is
+ * parsed incrementally, straight from the response stream, and only the selected fields are copied into small
+ * {@link MessageSummary} / {@link EventSummary} records, which are handed to the caller one by one.
+ * No tree and no page list is ever built. Requests go through the same HTTP pipeline as {@link Graph}.
+ * </p>
+ */
+public class GraphStream {
+
+	/** Largest page /me/messages serves */
+	public static final int MAX_PAGE_SIZE = 1000;
+
+	/** $expand of the message size, MAPI property PR_MESSAGE_SIZE, not exposed as a message field */
+	public static final String MESSAGE_SIZE_EXPAND = "singleValueExtendedProperties($filter=id eq 'Integer 0x0E08')";
+
+	/**
+	 * Selected fields of a message. Fields that were not selected stay NULL.
+	 */
+	public static final class MessageSummary {
+		public String id;
+		public String subject;
+		public String senderName;
+		public String senderAddress;
+		public String fromName;
+		public String fromAddress;
+		public String receivedDateTime;
+		public String parentFolderId;
+		public String conversationId;
+		public String internetMessageId;
+		public String bodyPreview;
+		public boolean isRead;
+		public boolean hasAttachments;
+		/** PR_MESSAGE_SIZE, only read when expanded with {@link #MESSAGE_SIZE_EXPAND}, -1 otherwise */
+		public long size = -1;
+		/** Name and value of every header, only read when internetMessageHeaders is selected */
+		public List<String[]> headers;
+		/** Delta queries only: the message was deleted or moved out of the folder, only the id is set */
+		public boolean removed;
+
+		@Override
+		public String toString() {
+			return subject + " (" + (fromAddress != null ? fromAddress : senderAddress) + ")";
+		}
+	}
+
+	/**
+	 * Selected fields of an event. Fields that were not selected stay NULL.
+	 */
+	public static final class EventSummary {
+		public String id;
+		public String subject;
+		public String organizerName;
+		public String organizerAddress;
+		public String startDateTime;
+		public String startTimeZone;
+		public String endDateTime;
+		public String endTimeZone;
+		public String showAs;
+		public boolean isAllDay;
+
+		@Override
+		public String toString() {
+			return subject + " (" + startDateTime + " - " + endDateTime + ")";
+		}
+	}
+
+	/**
+	 * Mail folder, as listed by /mailFolders and /childFolders
+	 */
+	public static final class FolderSummary {
+		public String id;
+		public String displayName;
+		public String parentFolderId;
+		public int childFolderCount;
+		public long totalItemCount;
+		public long unreadItemCount;
+		/** -1 unless selected */
+		public long sizeInBytes = -1;
+
+		@Override
+		public String toString() {
+			return displayName + " (" + totalItemCount + ")";
+		}
+	}
+
+	/**
+	 * Parses one element of the "value" array, positioned before its BEGIN_OBJECT
+	 */
+	interface ItemParser<T> {
+		T parse(JsonReader reader) throws IOException;
+	}
+
+	/**
+	 * Stream all messages of /me/messages
+	 * @param accessToken - Authentication token
+	 * @param select - $select list, e.g. "subject,from,parentFolderId"
+	 * @param pageSize - $top, up to {@link #MAX_PAGE_SIZE}
+	 * @param sink - receives every message, in server order
+	 * @return long - number of messages streamed
+	 */
+	public static long streamMessages(String accessToken, String select, int pageSize,
+			Consumer<? super MessageSummary> sink) {
+		return streamMessages(accessToken, "/me/messages", select, pageSize, sink);
+	}
+
+	/**
+	 * Stream all messages of a message collection
+	 * @param accessToken - Authentication token
+	 * @param path - collection below the service root, e.g. /me/mailFolders/{id}/messages
+	 * @param select - $select list
+	 * @param pageSize - $top, up to {@link #MAX_PAGE_SIZE}
+	 * @param sink - receives every message, in server order
+	 * @return long - number of messages streamed
+	 */
+	public static long streamMessages(String accessToken, String path, String select, int pageSize,
+			Consumer<? super MessageSummary> sink) {
+		return streamMessages(accessToken, HttpUrl.get(Graph.getServiceRoot(accessToken) + path), select, pageSize,
+				sink);
+	}
+
+	/**
+	 * Stream all messages of a message collection
+	 * @param accessToken - Authentication token
+	 * @param collection - URL of the collection, for paths built from untrusted segments
+	 * @param select - $select list
+	 * @param pageSize - $top, up to {@link #MAX_PAGE_SIZE}
+	 * @param sink - receives every message, in server order
+	 * @return long - number of messages streamed
+	 */
+	@SuppressWarnings("try")
+	public static long streamMessages(String accessToken, HttpUrl collection, String select, int pageSize,
+			Consumer<? super MessageSummary> sink) {
+		HttpUrl url = collection.newBuilder()
+				.addQueryParameter("$select", select)
+				.addQueryParameter("$top", String.valueOf(Math.min(pageSize, MAX_PAGE_SIZE))).build();
+		try (GraphTracer.Trace trace = GraphTracer.begin("streamMessages")) {
+			return streamPages(accessToken, url, null, GraphStream::parseMessage, sink);
+		}
+	}
+
+	/**
+	 * Fetch all mails through the streaming path. Same selection as {@link Graph#getAllMails(String)}.
+	 * @param accessToken - Authentication token
+	 * @return List<MessageSummary> - all mails
+	 */
+	public static List<MessageSummary> getAllMails(String accessToken) {
+		List<MessageSummary> messages = new ArrayList<MessageSummary>();
+		streamMessages(accessToken, "sender,subject", MAX_PAGE_SIZE, messages::add);
+		return messages;
+	}
+
+	/**
+	 * Stream the calendar view of the signed in user
+	 * @param accessToken - Authentication token
+	 * @param viewStart - Start DateTime
+	 * @param viewEnd - End DateTime
+	 * @param timeZone - Start and end of the events are given in this time zone
+	 * @param sink - receives every event, ordered by start
+	 * @return long - number of events streamed
+	 */
+	@SuppressWarnings("try")
+	public static long streamCalendarView(String accessToken, ZonedDateTime viewStart, ZonedDateTime viewEnd,
+			String timeZone, Consumer<? super EventSummary> sink) {
+		HttpUrl url = HttpUrl.get(Graph.getServiceRoot(accessToken) + "/me/calendarView").newBuilder()
+				.addQueryParameter("startDateTime", viewStart.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME))
+				.addQueryParameter("endDateTime", viewEnd.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME))
+				.addQueryParameter("$orderby", "start/dateTime")
+				.addQueryParameter("$select", "subject,organizer,start,end")
+				.addQueryParameter("$top", "100").build();
+		try (GraphTracer.Trace trace = GraphTracer.begin("streamCalendarView")) {
+			return streamPages(accessToken, url, "outlook.timezone=\"" + timeZone + "\"", GraphStream::parseEvent,
+					sink);
+		}
+	}
+
+	/**
+	 * Stream a folder collection, e.g. /me/mailFolders or /me/mailFolders/{id}/childFolders
+	 * @param accessToken - Authentication token
+	 * @param path - collection below the service root
+	 * @param sink - receives every folder
+	 * @return long - number of folders streamed
+	 */
+	public static long streamMailFolders(String accessToken, String path, Consumer<? super FolderSummary> sink) {
+		return streamMailFolders(accessToken, HttpUrl.get(Graph.getServiceRoot(accessToken) + path), sink);
+	}
+
+	/**
+	 * Stream a folder collection
+	 * @param accessToken - Authentication token
+	 * @param collection - URL of the collection, for paths built from untrusted segments
+	 * @param sink - receives every folder
+	 * @return long - number of folders streamed
+	 */
+	@SuppressWarnings("try")
+	public static long streamMailFolders(String accessToken, HttpUrl collection,
+			Consumer<? super FolderSummary> sink) {
+		HttpUrl url = collection.newBuilder()
+				.addQueryParameter("$top", "100").build();
+		try (GraphTracer.Trace trace = GraphTracer.begin("streamMailFolders")) {
+			return streamPages(accessToken, url, null, GraphStream::parseFolder, sink);
+		}
+	}
+
+	/**
+	 * Follow @odata.nextLink from the first page to the last, parsing each page as it arrives
+	 * @param prefer - Prefer header sent with every page, may be NULL
+	 * @return long - number of items handed to the sink
+	 */
+	static <T> long streamPages(String accessToken, HttpUrl firstPage, String prefer, ItemParser<T> parser,
+			Consumer<? super T> sink) {
+		return streamPages(accessToken, firstPage, prefer, parser, sink, null);
+	}
+
+	/**
+	 * Run a delta query, e.g. /me/mailFolders/{id}/messages/delta, to its last page
+	 * @param firstPage - the delta query, or the @odata.deltaLink of the previous round
+	 * @param sink - receives every changed item, removed ones included
+	 * @return String - @odata.deltaLink for the next round, NULL if the deltaLink expired (410 Gone) and the
+	 *         query has to start over
+	 */
+	static <T> String streamDelta(String accessToken, HttpUrl firstPage, ItemParser<T> parser,
+			Consumer<? super T> sink) {
+		String[] deltaLink = { null };
+		// delta pages are sized with odata.maxpagesize, not $top
+		long items = streamPages(accessToken, firstPage, "odata.maxpagesize=" + MAX_PAGE_SIZE, parser, sink,
+				deltaLink);
+		return items < 0 ? null : deltaLink[0];
+	}
+
+	private static <T> long streamPages(String accessToken, HttpUrl firstPage, String prefer, ItemParser<T> parser,
+			Consumer<? super T> sink, String[] deltaLink) {
+		long[] items = { 0 };
+		Consumer<T> counting = item -> {
+			sink.accept(item);
+			items[0]++;
+		};
+		String page = firstPage.toString();
+		while (page != null) {
+			long start = System.nanoTime();
+			Request.Builder request = new Request.Builder().url(page).header("Authorization", "Bearer " + accessToken)
+					.header("Accept", "application/json");
+			if (prefer != null)
+				request.header("Prefer", prefer);
+			try (Response response = Graph.getHttpClient(accessToken).newCall(request.build()).execute()) {
+				ResponseBody body = response.body();
+				if (deltaLink != null && response.code() == 410)
+					return -1;
+				if (!response.isSuccessful() || body == null)
+					throw new ClientException("Graph request failed with " + response.code() + " for " + page
+							+ (body == null ? "" : " - " + body.string()), null);
+				page = parsePage(body.charStream(), parser, counting, deltaLink);
+			} catch (IOException e) {
+				throw new ClientException("Unable to read Graph page " + page, e);
+			}
+			Metrics.GRAPH_PAGE.recordSince(start);
+			GraphTracer.pageDone();
+		}
+		return items[0];
+	}
+
+	/**
+	 * Parse one collection page, handing every element of "value" to the sink as soon as it is read
+	 * @param page - the page JSON, read incrementally
+	 * @return String - @odata.nextLink of the page, NULL on the last page
+	 */
+	static <T> String parsePage(Reader page, ItemParser<T> parser, Consumer<? super T> sink) throws IOException {
+		return parsePage(page, parser, sink, null);
+	}
+
+	/**
+	 * @param deltaLink - receives the @odata.deltaLink of the last page of a delta query, may be NULL
+	 */
+	private static <T> String parsePage(Reader page, ItemParser<T> parser, Consumer<? super T> sink,
+			String[] deltaLink) throws IOException {
+		String nextLink = null;
+		try (JsonReader reader = new JsonReader(page)) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("value".equals(name)) {
+					reader.beginArray();
+					while (reader.hasNext())
+						sink.accept(parser.parse(reader));
+					reader.endArray();
+				} else if ("@odata.nextLink".equals(name)) {
+					nextLink = reader.nextString();
+				} else if ("@odata.deltaLink".equals(name) && deltaLink != null) {
+					deltaLink[0] = reader.nextString();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		}
+		return nextLink;
+	}
+
+	static MessageSummary parseMessage(JsonReader reader) throws IOException {
+		MessageSummary message = new MessageSummary();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "id":
+				message.id = nextString(reader);
+				break;
+			case "subject":
+				message.subject = nextString(reader);
+				break;
+			case "sender":
+				String[] sender = parseEmailAddress(reader);
+				message.senderName = sender[0];
+				message.senderAddress = sender[1];
+				break;
+			case "from":
+				String[] from = parseEmailAddress(reader);
+				message.fromName = from[0];
+				message.fromAddress = from[1];
+				break;
+			case "receivedDateTime":
+				message.receivedDateTime = nextString(reader);
+				break;
+			case "parentFolderId":
+				message.parentFolderId = nextString(reader);
+				break;
+			case "conversationId":
+				message.conversationId = nextString(reader);
+				break;
+			case "internetMessageId":
+				message.internetMessageId = nextString(reader);
+				break;
+			case "bodyPreview":
+				message.bodyPreview = nextString(reader);
+				break;
+			case "isRead":
+				message.isRead = nextBoolean(reader);
+				break;
+			case "hasAttachments":
+				message.hasAttachments = nextBoolean(reader);
+				break;
+			case "singleValueExtendedProperties":
+				message.size = parseMessageSize(reader);
+				break;
+			case "internetMessageHeaders":
+				message.headers = parseHeaders(reader);
+				break;
+			case "@removed":
+				message.removed = true;
+				reader.skipValue();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return message;
+	}
+
+	static EventSummary parseEvent(JsonReader reader) throws IOException {
+		EventSummary event = new EventSummary();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "id":
+				event.id = nextString(reader);
+				break;
+			case "subject":
+				event.subject = nextString(reader);
+				break;
+			case "organizer":
+				String[] organizer = parseEmailAddress(reader);
+				event.organizerName = organizer[0];
+				event.organizerAddress = organizer[1];
+				break;
+			case "start":
+				String[] start = parseDateTimeTimeZone(reader);
+				event.startDateTime = start[0];
+				event.startTimeZone = start[1];
+				break;
+			case "end":
+				String[] end = parseDateTimeTimeZone(reader);
+				event.endDateTime = end[0];
+				event.endTimeZone = end[1];
+				break;
+			case "showAs":
+				event.showAs = nextString(reader);
+				break;
+			case "isAllDay":
+				event.isAllDay = nextBoolean(reader);
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return event;
+	}
+
+	static FolderSummary parseFolder(JsonReader reader) throws IOException {
+		FolderSummary folder = new FolderSummary();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "id":
+				folder.id = nextString(reader);
+				break;
+			case "displayName":
+				folder.displayName = nextString(reader);
+				break;
+			case "parentFolderId":
+				folder.parentFolderId = nextString(reader);
+				break;
+			case "childFolderCount":
+				folder.childFolderCount = (int) nextLong(reader);
+				break;
+			case "totalItemCount":
+				folder.totalItemCount = nextLong(reader);
+				break;
+			case "unreadItemCount":
+				folder.unreadItemCount = nextLong(reader);
+				break;
+			case "sizeInBytes":
+				folder.sizeInBytes = nextLong(reader);
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return folder;
+	}
+
+	/**
+	 * Read [{"id":"Integer 0xe08","value":"1234"}], the expansion of {@link #MESSAGE_SIZE_EXPAND}
+	 * @return long - the size, -1 if not there
+	 */
+	private static long parseMessageSize(JsonReader reader) throws IOException {
+		long size = -1;
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return size;
+		}
+		reader.beginArray();
+		while (reader.hasNext()) {
+			String id = null;
+			String value = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("id".equals(name))
+					id = nextString(reader);
+				else if ("value".equals(name))
+					value = nextString(reader);
+				else
+					reader.skipValue();
+			}
+			reader.endObject();
+			if (id != null && value != null && id.equalsIgnoreCase("Integer 0xe08"))
+				size = Long.parseLong(value);
+		}
+		reader.endArray();
+		return size;
+	}
+
+	/**
+	 * Read a recipient, {"emailAddress":{"name":..,"address":..}}
+	 * @return String[] - name and address
+	 */
+	private static String[] parseEmailAddress(JsonReader reader) throws IOException {
+		String[] nameAndAddress = new String[2];
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return nameAndAddress;
+		}
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if ("emailAddress".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String name = reader.nextName();
+					if ("name".equals(name))
+						nameAndAddress[0] = nextString(reader);
+					else if ("address".equals(name))
+						nameAndAddress[1] = nextString(reader);
+					else
+						reader.skipValue();
+				}
+				reader.endObject();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return nameAndAddress;
+	}
+
+	/**
+	 * Read [{"name":..,"value":..}, ...]
+	 * @return List<String[]> - name and value of every header
+	 */
+	private static List<String[]> parseHeaders(JsonReader reader) throws IOException {
+		List<String[]> headers = new ArrayList<String[]>();
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return headers;
+		}
+		reader.beginArray();
+		while (reader.hasNext()) {
+			String[] header = new String[2];
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("name".equals(name))
+					header[0] = nextString(reader);
+				else if ("value".equals(name))
+					header[1] = nextString(reader);
+				else
+					reader.skipValue();
+			}
+			reader.endObject();
+			if (header[0] != null)
+				headers.add(header);
+		}
+		reader.endArray();
+		return headers;
+	}
+
+	/**
+	 * Read {"dateTime":..,"timeZone":..}
+	 * @return String[] - date time and time zone
+	 */
+	private static String[] parseDateTimeTimeZone(JsonReader reader) throws IOException {
+		String[] dateTimeAndZone = new String[2];
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return dateTimeAndZone;
+		}
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if ("dateTime".equals(name))
+				dateTimeAndZone[0] = nextString(reader);
+			else if ("timeZone".equals(name))
+				dateTimeAndZone[1] = nextString(reader);
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return dateTimeAndZone;
+	}
+
+	private static String nextString(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		return reader.nextString();
+	}
+
+	private static long nextLong(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return 0;
+		}
+		return reader.nextLong();
+	}
+
+	private static boolean nextBoolean(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return false;
+		}
+		return reader.nextBoolean();
+	}
+}
@@ -0,0 +1,359 @@
+package pvt.email.clients;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * <p>
+ * Traces Graph calls down to the HTTP requests they make. Enabled with the system property
+ * pvt.email.trace=&lt;file&gt;, otherwise every method here is a no-op. <br>
+ * A {@link Trace} is one logical call (getAllMails, getCalendarView ...), opened with {@link #begin(String)} on the
+ * calling thread. Each HTTP request made while it is open becomes a {@link Span}, with: URL template, status,
+ * attempts (1 + retries), bytes received, time to first byte, time spent waiting between retries (throttling),
+ * time reading the body and SDK deserialization time. <br>
+ * When the trace closes it is appended to the trace file as one JSON line, e.g.
+ * {"call":"getAllMails","pages":143,...,"spans":[...]}
+ * </p>
+ */
+public class GraphTracer {
+
+	public static final String TRACE_PROPERTY = "pvt.email.trace";
+
+	private static final ThreadLocal<Trace> current = new ThreadLocal<Trace>();
+	private static final BufferedWriter traceFile = openTraceFile();
+	private static final Trace NONE = new Trace("none");
+
+	private static BufferedWriter openTraceFile() {
+		String file = System.getProperty(TRACE_PROPERTY);
+		if (file == null)
+			return null;
+		try {
+			return Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			System.err.println("Unable to open trace file " + file + " - " + e.getMessage());
+			return null;
+		}
+	}
+
+	public static boolean isEnabled() {
+		return traceFile != null;
+	}
+
+	/**
+	 * Open a trace for a logical call on this thread. Use with try-with-resources.
+	 * @param call - name of the call, e.g. "getAllMails"
+	 * @return Trace - the open trace
+	 */
+	public static Trace begin(String call) {
+		if (!isEnabled())
+			return NONE;
+		Trace trace = new Trace(call);
+		trace.parent = current.get();
+		current.set(trace);
+		return trace;
+	}
+
+	/**
+	 * Open a trace for a logical call that completes on other threads, e.g. through {@link GraphAsync}.
+	 * It is not made current here; run work under it with {@link #runWithin(Trace, Runnable)} and close it
+	 * from whichever thread completes the call.
+	 * @param call - name of the call, e.g. "getAllMails"
+	 * @return Trace - the open trace
+	 */
+	public static Trace beginAsync(String call) {
+		if (!isEnabled())
+			return NONE;
+		Trace trace = new Trace(call);
+		trace.detached = true;
+		return trace;
+	}
+
+	/**
+	 * Run a task with the given trace current on this thread
+	 */
+	static void runWithin(Trace trace, Runnable task) {
+		if (trace == NONE) {
+			task.run();
+			return;
+		}
+		Trace previous = current.get();
+		current.set(trace);
+		try {
+			task.run();
+		} finally {
+			current.set(previous);
+		}
+	}
+
+	/**
+	 * @return Runnable - the task, carrying the trace current at this point over to the thread that runs it
+	 */
+	static Runnable propagate(Runnable task) {
+		Trace trace = current.get();
+		if (trace == null)
+			return task;
+		return () -> runWithin(trace, task);
+	}
+
+	/**
+	 * A page of the current call was deserialized and handed back by the SDK
+	 */
+	public static void pageDone() {
+		Trace trace = current.get();
+		if (trace != null)
+			trace.pageDone(System.nanoTime());
+	}
+
+	/**
+	 * @return Interceptor - opens a span per request. Goes in front of the retry handler.
+	 */
+	static Interceptor spanInterceptor() {
+		return chain -> {
+			Trace trace = current.get();
+			Span span = new Span(chain.request(), System.nanoTime());
+			if (trace != null)
+				trace.add(span);
+			Request request = chain.request().newBuilder().tag(Span.class, span).build();
+			Response response;
+			try {
+				response = chain.proceed(request);
+			} catch (IOException e) {
+				span.error = e.getClass().getSimpleName();
+				span.end(System.nanoTime());
+				if (trace == null)
+					write(span.toJson());
+				throw e;
+			}
+			span.headersAt = System.nanoTime();
+			span.status = response.code();
+			if (trace == null)
+				span.standalone = true;
+			return countBody(response, span);
+		};
+	}
+
+	/**
+	 * @return Interceptor - times every attempt of a span. Goes behind the retry handler.
+	 */
+	static Interceptor attemptInterceptor() {
+		return chain -> {
+			Span span = chain.request().tag(Span.class);
+			long start = System.nanoTime();
+			Response response = chain.proceed(chain.request());
+			if (span != null) {
+				long elapsed = System.nanoTime() - start;
+				span.attempts++;
+				span.attemptNanos += elapsed;
+				span.ttfbNanos = elapsed;
+			}
+			return response;
+		};
+	}
+
+	private static Response countBody(Response response, Span span) {
+		ResponseBody body = response.body();
+		if (body == null) {
+			span.end(System.nanoTime());
+			return response;
+		}
+		ForwardingSource counting = new ForwardingSource(body.source()) {
+			@Override
+			public long read(Buffer sink, long byteCount) throws IOException {
+				long read = super.read(sink, byteCount);
+				if (read > 0)
+					span.bytes += read;
+				else if (read == -1)
+					span.end(System.nanoTime());
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				span.end(System.nanoTime());
+				super.close();
+			}
+		};
+		return response.newBuilder()
+				.body(ResponseBody.create(body.contentType(), body.contentLength(), Okio.buffer(counting))).build();
+	}
+
+	/**
+	 * URL with the ids taken out and only the names of the query parameters,
+	 * e.g. /v1.0/me/messages/{id}?$select&$skiptoken
+	 */
+	static String template(HttpUrl url) {
+		StringBuilder template = new StringBuilder();
+		for (String segment : url.pathSegments()) {
+			template.append('/');
+			template.append(looksLikeId(segment) ? "{id}" : segment);
+		}
+		char separator = '?';
+		for (String name : url.queryParameterNames()) {
+			template.append(separator).append(name);
+			separator = '&';
+		}
+		return template.toString();
+	}
+
+	private static boolean looksLikeId(String segment) {
+		if (segment.length() >= 16 || segment.indexOf('@') >= 0)
+			return true;
+		// GUIDs and numeric ids, but not the version segment
+		return !segment.startsWith("v1") && segment.chars().anyMatch(Character::isDigit);
+	}
+
+	private static void write(String json) {
+		synchronized (traceFile) {
+			try {
+				traceFile.write(json);
+				traceFile.newLine();
+				traceFile.flush();
+			} catch (IOException e) {
+				System.err.println("Unable to write trace - " + e.getMessage());
+			}
+		}
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * One HTTP request, as seen in front of the retry handler
+	 */
+	static class Span {
+		final String method;
+		final String template;
+		final long startNanos;
+		volatile int status;
+		volatile int attempts;
+		volatile long bytes;
+		volatile long attemptNanos;
+		volatile long ttfbNanos;
+		volatile long headersAt;
+		volatile long endAt;
+		volatile long deserializeNanos = -1;
+		volatile String error;
+		volatile boolean standalone;
+
+		Span(Request request, long startNanos) {
+			this.method = request.method();
+			this.template = template(request.url());
+			this.startNanos = startNanos;
+		}
+
+		synchronized void end(long now) {
+			if (endAt != 0)
+				return;
+			endAt = now;
+			if (standalone)
+				write(toJson());
+		}
+
+		String toJson() {
+			long headers = headersAt == 0 ? endAt : headersAt;
+			StringBuilder json = new StringBuilder(256);
+			json.append("{\"method\":").append(quote(method));
+			json.append(",\"url\":").append(quote(template));
+			json.append(",\"status\":").append(status);
+			json.append(",\"attempts\":").append(attempts);
+			json.append(",\"bytes\":").append(bytes);
+			json.append(",\"ttfbMs\":").append(millis(ttfbNanos));
+			json.append(",\"retryWaitMs\":").append(millis(Math.max(0, headers - startNanos - attemptNanos)));
+			json.append(",\"bodyMs\":").append(millis(Math.max(0, endAt - headers)));
+			if (deserializeNanos >= 0)
+				json.append(",\"deserializeMs\":").append(millis(deserializeNanos));
+			json.append(",\"totalMs\":").append(millis(Math.max(0, endAt - startNanos)));
+			if (error != null)
+				json.append(",\"error\":").append(quote(error));
+			return json.append('}').toString();
+		}
+	}
+
+	/**
+	 * One logical Graph call and the spans of all requests it made. <br>
+	 * Callers open it in a try-with-resources and never touch it again, hence their @SuppressWarnings("try").
+	 */
+	public static class Trace implements AutoCloseable {
+		private final String call;
+		private final long startNanos = System.nanoTime();
+		private final List<Span> spans = new ArrayList<Span>();
+		private Trace parent;
+		private boolean detached;
+		private int pages;
+
+		Trace(String call) {
+			this.call = call;
+		}
+
+		synchronized void add(Span span) {
+			spans.add(span);
+		}
+
+		synchronized void pageDone(long now) {
+			pages++;
+			if (!spans.isEmpty()) {
+				Span last = spans.get(spans.size() - 1);
+				if (last.endAt != 0 && last.deserializeNanos < 0)
+					last.deserializeNanos = now - last.endAt;
+			}
+		}
+
+		@Override
+		public void close() {
+			if (this == NONE)
+				return;
+			if (!detached) {
+				current.set(parent);
+				if (parent != null)
+					parent.pages += pages;
+			}
+			long duration = System.nanoTime() - startNanos;
+			StringBuilder json = new StringBuilder(256 + spans.size() * 256);
+			synchronized (this) {
+				long bytes = 0;
+				long retries = 0;
+				for (Span span : spans) {
+					bytes += span.bytes;
+					retries += Math.max(0, span.attempts - 1);
+				}
+				json.append("{\"call\":").append(quote(call));
+				json.append(",\"summary\":").append(quote(call + ": " + pages + " pages"));
+				json.append(",\"pages\":").append(pages);
+				json.append(",\"requests\":").append(spans.size());
+				json.append(",\"retries\":").append(retries);
+				json.append(",\"bytes\":").append(bytes);
+				json.append(",\"totalMs\":").append(millis(duration));
+				json.append(",\"spans\":[");
+				for (int i = 0; i < spans.size(); i++) {
+					if (i > 0)
+						json.append(',');
+					json.append(spans.get(i).toJson());
+				}
+				json.append("]}");
+			}
+			write(json.toString());
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package pvt.email.clients;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Lock-free latency histogram with log-linear buckets (8 per power of two, so about 12% precision),
+ * covering 1 ns up to about 36 minutes. <br>
+ * Recording is striped by thread over a few AtomicLongArrays, so concurrent writers rarely touch the
+ * same cache line, and it allocates nothing. Reading merges the stripes into a {@link Snapshot}.
+ * </p>
+ */
+public class LatencyHistogram implements Metrics.LatencyMXBean {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+	// per stripe: the bucket counts, then sum and max
+	private static final int SUM = BUCKETS;
+	private static final int MAX = BUCKETS + 1;
+	private static final int STRIPE_LENGTH = BUCKETS + 2;
+
+	private final String name;
+	private final AtomicLongArray[] stripes;
+	private final int stripeMask;
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+		int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+		stripes = new AtomicLongArray[stripeCount];
+		for (int i = 0; i < stripeCount; i++)
+			stripes[i] = new AtomicLongArray(STRIPE_LENGTH);
+		stripeMask = stripeCount - 1;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Record one latency
+	 * @param nanos - measured latency, negative values count as 0
+	 */
+	public void record(long nanos) {
+		long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+		AtomicLongArray stripe = stripes[stripe()];
+		stripe.incrementAndGet(bucket(value));
+		stripe.addAndGet(SUM, value);
+		long max;
+		while (value > (max = stripe.get(MAX)) && !stripe.compareAndSet(MAX, max, value)) {
+			// retry, another thread raised the max meanwhile
+		}
+	}
+
+	/**
+	 * Record the time elapsed since start
+	 * @param startNanos - System.nanoTime() taken when the operation started
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	private int stripe() {
+		long id = Thread.currentThread().getId();
+		// spread sequential thread ids over the stripes
+		id *= 0x9E3779B97F4A7C15L;
+		return (int) (id >>> 32) & stripeMask;
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+				+ (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @return long - smallest value that falls into the bucket
+	 */
+	static long bucketLowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * @return long - largest value that falls into the bucket
+	 */
+	static long bucketUpperBound(int bucket) {
+		if (bucket + 1 >= BUCKETS)
+			return MAX_VALUE;
+		return bucketLowerBound(bucket + 1) - 1;
+	}
+
+	/**
+	 * @return Snapshot - merged view of all stripes. Not atomic, concurrent recordings may be partly included.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long sum = 0;
+		long max = 0;
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = 0; i < BUCKETS; i++)
+				counts[i] += stripe.get(i);
+			sum += stripe.get(SUM);
+			max = Math.max(max, stripe.get(MAX));
+		}
+		return new Snapshot(counts, sum, max);
+	}
+
+	/**
+	 * Point in time copy of the histogram
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long sum, long max) {
+			this.counts = counts;
+			long total = 0;
+			for (long c : counts)
+				total += c;
+			this.count = total;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getSumNanos() {
+			return sum;
+		}
+
+		public long getMaxNanos() {
+			return max;
+		}
+
+		public double getMeanNanos() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param quantile - between 0 and 1, e.g. 0.99
+		 * @return long - upper bound of the bucket holding the quantile, capped by the max seen
+		 */
+		public long getQuantileNanos(double quantile) {
+			if (count == 0)
+				return 0;
+			long rank = (long) Math.ceil(quantile * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0)
+					return Math.min(bucketUpperBound(i), max);
+			}
+			return max;
+		}
+	}
+
+	// JMX view, in milliseconds
+
+	private static double millis(double nanos) {
+		return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	@Override
+	public long getCount() {
+		return snapshot().getCount();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return millis(snapshot().getMeanNanos());
+	}
+
+	@Override
+	public double getP50Millis() {
+		return millis(snapshot().getQuantileNanos(0.5));
+	}
+
+	@Override
+	public double getP90Millis() {
+		return millis(snapshot().getQuantileNanos(0.9));
+	}
+
+	@Override
+	public double getP99Millis() {
+		return millis(snapshot().getQuantileNanos(0.99));
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return millis(snapshot().getMaxNanos());
+	}
+}
@@ -0,0 +1,465 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.INTERNALDATE;
+import com.sun.mail.imap.protocol.RFC822SIZE;
+
+import okhttp3.HttpUrl;
+
+/**
+ * <p>
+ * Top senders, distinct senders, size distribution and volume per day of a mailbox, in one pass and in bounded
+ * memory. <br>
+ * Distinct senders are estimated with a HyperLogLog of 2^14 registers (about 1% error, 16 KB). Top senders come
+ * from a Count-Min Sketch (4 x 2^16 counters, 1 MB, conservative update) with the {@link #CANDIDATES} senders of
+ * highest estimate kept by name. Sizes go into power-of-two buckets and days into a primitive int to long map, so
+ * nothing grows with the number of messages. <br>
+ * Sources: IMAP as one FETCH of RFC822.SIZE, INTERNALDATE and the From header, read response by response; Graph
+ * message pages as they stream in; or the local {@link MessageStore}.
+ * </p>
+ */
+public class MailboxAnalytics {
+
+	/** Senders tracked by name as top sender candidates */
+	static final int CANDIDATES = 128;
+
+	private static final int HLL_BITS = 14;
+	private static final int SKETCH_DEPTH = 4;
+	private static final int SKETCH_BITS = 16;
+	private static final long DAY_MILLIS = 86_400_000L;
+
+	private long messages;
+	private long totalSize;
+	private long sizedMessages;
+	private final long[] sizeBuckets = new long[64];
+	private final byte[] registers = new byte[1 << HLL_BITS];
+	private final int[] sketch = new int[SKETCH_DEPTH << SKETCH_BITS];
+	private final DayCounts days = new DayCounts();
+
+	// top sender candidates, a min-heap on counts
+	private final long[] candidateHashes = new long[CANDIDATES];
+	private final long[] candidateCounts = new long[CANDIDATES];
+	private final String[] candidateNames = new String[CANDIDATES];
+	private int candidates;
+
+	/**
+	 * Messages per day, open addressing over epoch days
+	 */
+	static final class DayCounts {
+		private static final int EMPTY = Integer.MIN_VALUE;
+		private int[] keys = newKeys(256);
+		private long[] values = new long[256];
+		private int size;
+
+		private static int[] newKeys(int capacity) {
+			int[] keys = new int[capacity];
+			Arrays.fill(keys, EMPTY);
+			return keys;
+		}
+
+		void increment(int day) {
+			int slot = slot(keys, day);
+			if (keys[slot] == EMPTY) {
+				if ((size + 1) * 2 > keys.length) {
+					grow();
+					slot = slot(keys, day);
+				}
+				keys[slot] = day;
+				size++;
+			}
+			values[slot]++;
+		}
+
+		private static int slot(int[] keys, int day) {
+			int mask = keys.length - 1;
+			int slot = (day * 0x9E3779B9) >>> 7 & mask;
+			while (keys[slot] != EMPTY && keys[slot] != day)
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+
+		private void grow() {
+			int[] oldKeys = keys;
+			long[] oldValues = values;
+			keys = newKeys(oldKeys.length * 2);
+			values = new long[oldKeys.length * 2];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) {
+					int slot = slot(keys, oldKeys[i]);
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+
+		/**
+		 * @return long[][] - epoch days and counts, by day
+		 */
+		long[][] sorted() {
+			long[] packed = new long[size];
+			int n = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != EMPTY)
+					packed[n++] = (long) keys[i] << 32 | i;
+			}
+			Arrays.sort(packed);
+			long[][] result = new long[2][size];
+			for (int i = 0; i < size; i++) {
+				result[0][i] = packed[i] >> 32;
+				result[1][i] = values[(int) packed[i]];
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Count one message
+	 * @param sender - sender address, may be NULL
+	 * @param date - epoch milliseconds, 0 if unknown
+	 * @param size - size in bytes, -1 if unknown
+	 */
+	public synchronized void add(String sender, long date, long size) {
+		add(MessageStore.senderHash(sender), sender, date, size);
+	}
+
+	/**
+	 * Count one message
+	 * @return int - candidate slot the sender was just given, -1 if none
+	 */
+	private int add(long senderHash, String sender, long date, long size) {
+		messages++;
+		if (size >= 0) {
+			totalSize += size;
+			sizedMessages++;
+			sizeBuckets[64 - Long.numberOfLeadingZeros(size)]++;
+		}
+		if (date > 0)
+			days.increment((int) Math.floorDiv(date, DAY_MILLIS));
+		if (senderHash == 0)
+			return -1;
+
+		long hash = mix(senderHash);
+		int register = (int) (hash >>> (64 - HLL_BITS));
+		int rank = Long.numberOfLeadingZeros(hash << HLL_BITS | 1L << (HLL_BITS - 1)) + 1;
+		if (rank > registers[register])
+			registers[register] = (byte) rank;
+
+		long count = sketchAdd(hash);
+		if (candidates == CANDIDATES && count <= candidateCounts[0])
+			return -1;
+		for (int i = 0; i < candidates; i++) {
+			if (candidateHashes[i] == senderHash) {
+				candidateCounts[i] = count;
+				siftDown(i);
+				return -1;
+			}
+		}
+		if (candidates < CANDIDATES) {
+			candidateHashes[candidates] = senderHash;
+			candidateCounts[candidates] = count;
+			candidateNames[candidates] = sender;
+			return siftUp(candidates++);
+		}
+		candidateHashes[0] = senderHash;
+		candidateCounts[0] = count;
+		candidateNames[0] = sender;
+		return siftDown(0);
+	}
+
+	/**
+	 * Conservative update: only the smallest counters grow
+	 * @return long - the new estimate
+	 */
+	private long sketchAdd(long hash) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		int mask = (1 << SKETCH_BITS) - 1;
+		int minimum = Integer.MAX_VALUE;
+		for (int row = 0; row < SKETCH_DEPTH; row++)
+			minimum = Math.min(minimum, sketch[row << SKETCH_BITS | ((h1 + row * h2) & mask)]);
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			int index = row << SKETCH_BITS | ((h1 + row * h2) & mask);
+			if (sketch[index] == minimum)
+				sketch[index]++;
+		}
+		return minimum + 1L;
+	}
+
+	/**
+	 * Spread FNV hashes over all 64 bits (MurmurHash3 finalizer)
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		return hash ^ hash >>> 33;
+	}
+
+	private int siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (candidateCounts[parent] <= candidateCounts[i])
+				return i;
+			swap(i, parent);
+			i = parent;
+		}
+		return i;
+	}
+
+	private int siftDown(int i) {
+		while (true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < candidates && candidateCounts[left] < candidateCounts[smallest])
+				smallest = left;
+			if (right < candidates && candidateCounts[right] < candidateCounts[smallest])
+				smallest = right;
+			if (smallest == i)
+				return i;
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+
+	private void swap(int a, int b) {
+		long hash = candidateHashes[a];
+		candidateHashes[a] = candidateHashes[b];
+		candidateHashes[b] = hash;
+		long count = candidateCounts[a];
+		candidateCounts[a] = candidateCounts[b];
+		candidateCounts[b] = count;
+		String name = candidateNames[a];
+		candidateNames[a] = candidateNames[b];
+		candidateNames[b] = name;
+	}
+
+	/**
+	 * @return long - messages counted
+	 */
+	public synchronized long size() {
+		return messages;
+	}
+
+	/**
+	 * @return long - estimated number of distinct senders
+	 */
+	public synchronized long distinctSenders() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte register : registers) {
+			sum += 1.0 / (1L << register);
+			if (register == 0)
+				zeros++;
+		}
+		double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0)
+			estimate = m * Math.log((double) m / zeros);
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Sender with its estimated message count, never below the real count
+	 */
+	public static final class SenderCount {
+		public final String sender;
+		public final long count;
+
+		SenderCount(String sender, long count) {
+			this.sender = sender;
+			this.count = count;
+		}
+
+		@Override
+		public String toString() {
+			return sender + " - " + count;
+		}
+	}
+
+	/**
+	 * @return List - up to limit senders, most messages first
+	 */
+	public synchronized List<SenderCount> topSenders(int limit) {
+		Integer[] order = new Integer[candidates];
+		for (int i = 0; i < candidates; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(candidateCounts[b], candidateCounts[a]));
+		List<SenderCount> top = new ArrayList<SenderCount>(Math.min(limit, candidates));
+		for (int i = 0; i < candidates && i < limit; i++)
+			top.add(new SenderCount(candidateNames[order[i]], candidateCounts[order[i]]));
+		return top;
+	}
+
+	/**
+	 * Analyse an IMAP folder
+	 * @param folder - closed IMAP folder
+	 * @return long - number of messages counted
+	 */
+	public long imap(Folder folder) throws MessagingException {
+		IMAPFolder imapFolder = (IMAPFolder) folder;
+		long start = System.nanoTime();
+		folder.open(Folder.READ_ONLY);
+		Metrics.MAIL_FOLDER_OPEN.recordSince(start);
+		try {
+			if (folder.getMessageCount() == 0)
+				return 0;
+			start = System.nanoTime();
+			long counted = (Long) imapFolder.doCommand(protocol -> {
+				synchronized (protocol) {
+					try {
+						Argument args = new Argument();
+						args.writeAtom("1:*");
+						args.writeAtom("(RFC822.SIZE INTERNALDATE BODY.PEEK[HEADER.FIELDS (FROM)])");
+						String tag = protocol.writeCommand("FETCH", args);
+						List<Response> untagged = new ArrayList<Response>();
+						long count = 0;
+						while (true) {
+							Response response = protocol.readResponse();
+							if (response.isTagged() && tag.equals(response.getTag())) {
+								protocol.notifyResponseHandlers(untagged.toArray(new Response[0]));
+								protocol.handleResult(response);
+								return count;
+							}
+							if (response.isBYE())
+								protocol.handleResult(response);
+							if (response instanceof FetchResponse) {
+								add((FetchResponse) response);
+								count++;
+							} else if (response.isUnTagged()) {
+								untagged.add(response);
+							}
+						}
+					} catch (IOException e) {
+						throw new ProtocolException("Unable to fetch headers", e);
+					}
+				}
+			});
+			Metrics.MAIL_FETCH.recordSince(start);
+			Metrics.MESSAGES_FETCHED.add(counted);
+			return counted;
+		} finally {
+			folder.close(false);
+		}
+	}
+
+	private void add(FetchResponse response) throws ProtocolException {
+		RFC822SIZE size = response.getItem(RFC822SIZE.class);
+		INTERNALDATE date = response.getItem(INTERNALDATE.class);
+		BODY body = response.getItem(BODY.class);
+		String sender = null;
+		if (body != null) {
+			try {
+				String from = new InternetHeaders(body.getByteArrayInputStream()).getHeader("From", ",");
+				InternetAddress[] addresses = from == null ? null : InternetAddress.parseHeader(from, false);
+				if (addresses != null && addresses.length > 0)
+					sender = addresses[0].getAddress();
+			} catch (AddressException e) {
+				// counted without sender
+			} catch (MessagingException e) {
+				throw new ProtocolException("Unreadable headers", e);
+			}
+		}
+		add(sender, date == null ? 0 : date.getDate().getTime(), size == null ? -1 : size.size);
+	}
+
+	/**
+	 * Analyse a Graph message collection
+	 * @param accessToken - Authentication token
+	 * @param path - message collection, e.g. /me/messages
+	 * @return long - number of messages counted
+	 */
+	@SuppressWarnings("try")
+	public long graph(String accessToken, String path) {
+		HttpUrl url = HttpUrl.get(Graph.getServiceRoot(accessToken) + path).newBuilder()
+				.addQueryParameter("$select", "from,receivedDateTime")
+				.addQueryParameter("$expand", GraphStream.MESSAGE_SIZE_EXPAND)
+				.addQueryParameter("$top", String.valueOf(GraphStream.MAX_PAGE_SIZE)).build();
+		try (GraphTracer.Trace trace = GraphTracer.begin("mailboxAnalytics")) {
+			return GraphStream.streamPages(accessToken, url, null, GraphStream::parseMessage,
+					message -> add(message.fromAddress,
+							message.receivedDateTime == null ? 0
+									: OffsetDateTime.parse(message.receivedDateTime).toInstant().toEpochMilli(),
+							message.size));
+		}
+	}
+
+	/**
+	 * Analyse a local message store from its index, without reading the messages
+	 * @return long - number of messages counted
+	 */
+	public synchronized long store(MessageStore store) throws IOException {
+		int n = store.size();
+		long counted = 0;
+		for (int i = 0; i < n; i++) {
+			if (store.isExpunged(i))
+				continue;
+			counted++;
+			// headers-only records have no size
+			int size = store.getSize(i);
+			int slot = add(store.getSenderHash(i), null, store.getDate(i), size == 0 ? -1 : size);
+			// names are only read for the few senders that become candidates
+			if (slot >= 0)
+				candidateNames[slot] = store.getSender(i);
+		}
+		return counted;
+	}
+
+	/**
+	 * Print the report
+	 * @param top - number of top senders listed
+	 */
+	public synchronized void print(int top) {
+		System.out.println(messages + " messages, about " + distinctSenders() + " distinct senders");
+		System.out.println("Top senders:");
+		for (SenderCount sender : topSenders(top))
+			System.out.println("  " + sender);
+		if (sizedMessages > 0) {
+			System.out.println("Sizes (average " + totalSize / sizedMessages + " bytes):");
+			for (int bucket = 0; bucket < sizeBuckets.length; bucket++) {
+				if (sizeBuckets[bucket] > 0)
+					System.out.println(String.format(Locale.ROOT, "  < %s: %d", bytes(1L << bucket),
+							sizeBuckets[bucket]));
+			}
+		}
+		long[][] perDay = days.sorted();
+		if (perDay[0].length > 0) {
+			long busiest = 0;
+			for (long count : perDay[1])
+				busiest = Math.max(busiest, count);
+			System.out.println("Messages per day (" + perDay[0].length + " days, busiest " + busiest + "):");
+			for (int i = Math.max(0, perDay[0].length - 30); i < perDay[0].length; i++)
+				System.out.println("  " + LocalDate.ofEpochDay(perDay[0][i]) + ": " + perDay[1][i]);
+		}
+	}
+
+	private static String bytes(long bytes) {
+		if (bytes >= 1L << 30)
+			return (bytes >> 30) + " GB";
+		if (bytes >= 1L << 20)
+			return (bytes >> 20) + " MB";
+		if (bytes >= 1L << 10)
+			return (bytes >> 10) + " KB";
+		return bytes + " B";
+	}
+}
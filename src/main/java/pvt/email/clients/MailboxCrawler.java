@@ -0,0 +1,642 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.mail.Address;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.ENVELOPE;
+import com.sun.mail.imap.protocol.FLAGS;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.INTERNALDATE;
+import com.sun.mail.imap.protocol.UID;
+
+import okhttp3.HttpUrl;
+
+/**
+ * <p>
+ * Crawls every mail folder of a set of accounts, IMAP or Graph, into one {@link Sink}. <br>
+ * Each account starts with a discovery task (IMAP LIST "*", Graph /mailFolders and /childFolders) which queues
+ * one fetch task per folder. A fixed set of workers runs the tasks: at most globalLimit at once, and at most
+ * perAccountLimit per account (Graph throttles above 4 concurrent requests per mailbox). A worker sticks to
+ * one account while it has work, then steals from the tail of another account's queue. Graph requests run on
+ * the {@link GraphAsync} executor, within its process wide limit.
+ * </p>
+ * Usage:
+ * <pre>
+ * MailboxCrawler.Result result = new MailboxCrawler(sink, 32, 4)
+ *         .crawl(Arrays.asList(new MailboxCrawler.GraphAccount("me", accessToken, "/me")));
+ * </pre>
+ */
+public class MailboxCrawler {
+
+	/** Fields fetched per Graph message */
+	static final String GRAPH_SELECT = "subject,from,receivedDateTime,internetMessageId,conversationId,parentFolderId,isRead";
+	/** Messages fetched per IMAP FETCH */
+	static final int IMAP_BATCH = 500;
+
+	/**
+	 * Receives the crawl results. Calls are serialized, the sink does not have to be thread safe.
+	 */
+	public interface Sink {
+		/**
+		 * A folder was crawled completely
+		 * @param messages - number of messages handed to {@link #message}
+		 */
+		void folder(Account account, MailFolder folder, long messages);
+
+		void message(Account account, MailFolder folder, GraphStream.MessageSummary message);
+
+		/**
+		 * Listing or fetching a folder failed, the crawl goes on with the other folders
+		 * @param folder - NULL if discovery failed
+		 */
+		void failed(Account account, MailFolder folder, Exception e);
+	}
+
+	/**
+	 * @return Sink - prints one line per folder crawled, and the failures
+	 */
+	public static Sink console() {
+		return new Sink() {
+			@Override
+			public void folder(Account account, MailFolder folder, long messages) {
+				System.out.println(account + ": " + folder + " - " + messages + " messages");
+			}
+
+			@Override
+			public void message(Account account, MailFolder folder, GraphStream.MessageSummary message) {
+				// counted per folder only
+			}
+
+			@Override
+			public void failed(Account account, MailFolder folder, Exception e) {
+				System.err.println(account + ": " + (folder == null ? "folder listing" : folder) + " failed - "
+						+ e.getMessage());
+			}
+		};
+	}
+
+	/**
+	 * A folder of an account
+	 */
+	public static final class MailFolder {
+		/** Graph folder id, or IMAP full name */
+		public final String id;
+		/** Display path, e.g. Inbox/Projects */
+		public final String path;
+		public final boolean holdsMessages;
+		/** Child folders still to be listed (Graph only, IMAP lists the whole tree at once) */
+		public final boolean listChildren;
+
+		public MailFolder(String id, String path, boolean holdsMessages, boolean listChildren) {
+			this.id = id;
+			this.path = path;
+			this.holdsMessages = holdsMessages;
+			this.listChildren = listChildren;
+		}
+
+		@Override
+		public String toString() {
+			return path;
+		}
+	}
+
+	/**
+	 * A mailbox to crawl. Called from several workers at once, up to the per account limit.
+	 */
+	public abstract static class Account {
+		private final String name;
+
+		protected Account(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @param parent - folder to list the children of, NULL for the top level
+		 * @return List - the folders found
+		 */
+		protected abstract List<MailFolder> listFolders(MailFolder parent) throws Exception;
+
+		/**
+		 * Hand every message of the folder to the sink
+		 * @return long - number of messages
+		 */
+		protected abstract long fetch(MailFolder folder, Consumer<GraphStream.MessageSummary> sink) throws Exception;
+
+		/**
+		 * Release connections, called once the crawl is over
+		 */
+		protected void close() {
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * Mailbox read over Graph, e.g. /me or /users/{id | userPrincipalName}
+	 */
+	public static class GraphAccount extends Account {
+		private final String accessToken;
+		private final String userPath;
+
+		public GraphAccount(String name, String accessToken, String userPath) {
+			super(name);
+			this.accessToken = accessToken;
+			this.userPath = userPath;
+		}
+
+		@Override
+		protected List<MailFolder> listFolders(MailFolder parent) {
+			List<MailFolder> folders = new ArrayList<MailFolder>();
+			HttpUrl.Builder url = mailFolders();
+			if (parent != null)
+				url.addPathSegment(parent.id).addPathSegment("childFolders");
+			HttpUrl collection = url.build();
+			return GraphAsync.join(() -> {
+				GraphStream.streamMailFolders(accessToken, collection, folder -> folders.add(new MailFolder(folder.id,
+						parent == null ? folder.displayName : parent.path + "/" + folder.displayName, true,
+						folder.childFolderCount > 0)));
+				return folders;
+			});
+		}
+
+		@Override
+		protected long fetch(MailFolder folder, Consumer<GraphStream.MessageSummary> sink) {
+			HttpUrl collection = mailFolders().addPathSegment(folder.id).addPathSegment("messages").build();
+			return GraphAsync.join(() -> GraphStream.streamMessages(accessToken, collection, GRAPH_SELECT,
+					GraphStream.MAX_PAGE_SIZE, sink));
+		}
+
+		// folder ids are added as path segments, so they are encoded whatever the server hands out
+		private HttpUrl.Builder mailFolders() {
+			return HttpUrl.get(Graph.getServiceRoot(accessToken) + userPath).newBuilder()
+					.addPathSegment("mailFolders");
+		}
+	}
+
+	/**
+	 * Mailbox read over IMAP. Keeps one connection per concurrent task, reused across folders.
+	 */
+	public static class ImapAccount extends Account {
+		private final Session session;
+		private final String protocol;
+		private final String host;
+		private final int port;
+		private final String username;
+		private final String password;
+		private final Queue<Store> idleStores = new ConcurrentLinkedQueue<Store>();
+
+		/**
+		 * @param session - Session with the mail.imap(s).* properties
+		 * @param protocol - imap or imaps
+		 * @param port - server port, -1 for the protocol default
+		 */
+		public ImapAccount(String name, Session session, String protocol, String host, int port, String username,
+				String password) {
+			super(name);
+			this.session = session;
+			this.protocol = protocol;
+			this.host = host;
+			this.port = port;
+			this.username = username;
+			this.password = password;
+		}
+
+		private Store borrowStore() throws MessagingException {
+			Store store;
+			while ((store = idleStores.poll()) != null) {
+				if (store.isConnected())
+					return store;
+			}
+			long start = System.nanoTime();
+			store = session.getStore(protocol);
+			try {
+				store.connect(host, port, username, password);
+			} catch (MessagingException | RuntimeException e) {
+				close(store);
+				throw e;
+			}
+			Metrics.MAIL_CONNECT.recordSince(start);
+			return store;
+		}
+
+		@Override
+		protected List<MailFolder> listFolders(MailFolder parent) throws MessagingException {
+			List<MailFolder> folders = new ArrayList<MailFolder>();
+			Store store = borrowStore();
+			try {
+				// LIST "" "*", the whole tree in one round trip
+				for (Folder folder : store.getDefaultFolder().list("*")) {
+					folders.add(new MailFolder(folder.getFullName(), folder.getFullName(),
+							(folder.getType() & Folder.HOLDS_MESSAGES) != 0, false));
+				}
+			} finally {
+				idleStores.offer(store);
+			}
+			return folders;
+		}
+
+		@Override
+		protected long fetch(MailFolder mailFolder, Consumer<GraphStream.MessageSummary> sink)
+				throws MessagingException {
+			Store store = borrowStore();
+			IMAPFolder folder = (IMAPFolder) store.getFolder(mailFolder.id);
+			// a sink failure leaves the rest of the FETCH unread, that connection is not reused
+			boolean reusable = false;
+			try {
+				long start = System.nanoTime();
+				folder.open(Folder.READ_ONLY);
+				Metrics.MAIL_FOLDER_OPEN.recordSince(start);
+				if (folder.getMessageCount() == 0) {
+					reusable = true;
+					return 0;
+				}
+
+				// one UID FETCH for the whole folder, each summary is handed over as its response is read
+				start = System.nanoTime();
+				long count = (Long) folder.doCommand(protocol -> {
+					synchronized (protocol) {
+						try {
+							Argument args = new Argument();
+							args.writeAtom("1:*");
+							args.writeAtom("(UID FLAGS INTERNALDATE ENVELOPE)");
+							String tag = protocol.writeCommand("UID FETCH", args);
+							List<Response> untagged = new ArrayList<Response>();
+							long fetched = 0;
+							while (true) {
+								Response response = protocol.readResponse();
+								if (response.isTagged() && tag.equals(response.getTag())) {
+									protocol.notifyResponseHandlers(untagged.toArray(new Response[0]));
+									protocol.handleResult(response);
+									return fetched;
+								}
+								if (response.isBYE())
+									protocol.handleResult(response);
+								FetchResponse fetch = response instanceof FetchResponse ? (FetchResponse) response
+										: null;
+								// unsolicited flag updates carry no ENVELOPE
+								if (fetch != null && fetch.getItem(ENVELOPE.class) != null) {
+									sink.accept(summarize(mailFolder.id, fetch));
+									fetched++;
+								} else if (response.isUnTagged()) {
+									untagged.add(response);
+								}
+							}
+						} catch (IOException e) {
+							throw new ProtocolException("Unable to fetch envelopes", e);
+						}
+					}
+				});
+				Metrics.MAIL_FETCH.recordSince(start);
+				Metrics.MESSAGES_FETCHED.add(count);
+				reusable = true;
+				return count;
+			} finally {
+				if (reusable) {
+					if (folder.isOpen())
+						folder.close(false);
+					idleStores.offer(store);
+				} else {
+					close(folder);
+					close(store);
+				}
+			}
+		}
+
+		/**
+		 * @param folder - IMAP full name of the folder fetched
+		 * @param response - FETCH response with UID, FLAGS, INTERNALDATE and ENVELOPE
+		 */
+		static GraphStream.MessageSummary summarize(String folder, FetchResponse response) {
+			GraphStream.MessageSummary summary = new GraphStream.MessageSummary();
+			UID uid = response.getItem(UID.class);
+			if (uid != null)
+				summary.id = String.valueOf(uid.uid);
+			ENVELOPE envelope = response.getItem(ENVELOPE.class);
+			if (envelope.subject != null) {
+				try {
+					summary.subject = MimeUtility.decodeText(MimeUtility.unfold(envelope.subject));
+				} catch (UnsupportedEncodingException e) {
+					summary.subject = envelope.subject;
+				}
+			}
+			if (envelope.from != null && envelope.from.length != 0) {
+				summary.fromName = envelope.from[0].getPersonal();
+				summary.fromAddress = envelope.from[0].getAddress();
+			}
+			INTERNALDATE date = response.getItem(INTERNALDATE.class);
+			if (date != null && date.getDate() != null)
+				summary.receivedDateTime = date.getDate().toInstant().toString();
+			summary.internetMessageId = envelope.messageId;
+			summary.parentFolderId = folder;
+			FLAGS flags = response.getItem(FLAGS.class);
+			summary.isRead = flags != null && flags.contains(Flags.Flag.SEEN);
+			return summary;
+		}
+
+		static GraphStream.MessageSummary summarize(UIDFolder folder, Message message)
+				throws MessagingException {
+			GraphStream.MessageSummary summary = new GraphStream.MessageSummary();
+			summary.id = String.valueOf(folder.getUID(message));
+			summary.subject = message.getSubject();
+			Address[] from = message.getFrom();
+			if (from != null && from.length != 0) {
+				if (from[0] instanceof InternetAddress) {
+					summary.fromName = ((InternetAddress) from[0]).getPersonal();
+					summary.fromAddress = ((InternetAddress) from[0]).getAddress();
+				} else {
+					summary.fromAddress = from[0].toString();
+				}
+			}
+			if (message.getReceivedDate() != null)
+				summary.receivedDateTime = message.getReceivedDate().toInstant().toString();
+			if (message instanceof MimeMessage)
+				summary.internetMessageId = ((MimeMessage) message).getMessageID();
+			summary.parentFolderId = message.getFolder().getFullName();
+			summary.isRead = message.isSet(Flags.Flag.SEEN);
+			return summary;
+		}
+
+		@Override
+		protected void close() {
+			Store store;
+			while ((store = idleStores.poll()) != null)
+				close(store);
+		}
+
+		private static void close(Folder folder) {
+			try {
+				if (folder.isOpen())
+					folder.close(false);
+			} catch (MessagingException | RuntimeException e) {
+				// closing anyway
+			}
+		}
+
+		private static void close(Store store) {
+			try {
+				store.close();
+			} catch (MessagingException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Totals of a crawl
+	 */
+	public static final class Result {
+		public final int accounts;
+		public final long folders;
+		public final long messages;
+		public final long failures;
+		public final long elapsedNanos;
+
+		Result(int accounts, long folders, long messages, long failures, long elapsedNanos) {
+			this.accounts = accounts;
+			this.folders = folders;
+			this.messages = messages;
+			this.failures = failures;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return accounts + " accounts, " + folders + " folders, " + messages + " messages, " + failures
+					+ " failures in " + elapsedNanos / 1_000_000 + " ms";
+		}
+	}
+
+	private final Sink sink;
+	private final int globalLimit;
+	private final int perAccountLimit;
+
+	/**
+	 * @param sink - receives folders and messages of all accounts
+	 * @param globalLimit - folders crawled at once over all accounts, i.e. number of workers
+	 * @param perAccountLimit - folders crawled at once per account
+	 */
+	public MailboxCrawler(Sink sink, int globalLimit, int perAccountLimit) {
+		if (globalLimit < 1 || perAccountLimit < 1)
+			throw new IllegalArgumentException("Limits must be at least 1");
+		this.sink = sink;
+		this.globalLimit = globalLimit;
+		this.perAccountLimit = perAccountLimit;
+	}
+
+	/**
+	 * Crawl all folders of all accounts, returns when everything is done
+	 * @param accounts - accounts to crawl, closed at the end
+	 * @return Result - totals
+	 */
+	public Result crawl(List<? extends Account> accounts) throws InterruptedException {
+		return new Crawl(accounts).run();
+	}
+
+	/**
+	 * One unit of work: list the children of a folder, or fetch its messages
+	 */
+	private static final class Task {
+		final AccountQueue queue;
+		final MailFolder folder;
+		final boolean discover;
+
+		Task(AccountQueue queue, MailFolder folder, boolean discover) {
+			this.queue = queue;
+			this.folder = folder;
+			this.discover = discover;
+		}
+	}
+
+	/**
+	 * Tasks of one account and the number of them running
+	 */
+	private final class AccountQueue {
+		final Account account;
+		final Deque<Task> tasks = new ConcurrentLinkedDeque<Task>();
+		final AtomicInteger running = new AtomicInteger();
+
+		AccountQueue(Account account) {
+			this.account = account;
+		}
+
+		/**
+		 * @param steal - take from the tail, leaving the head to the workers at home on this account
+		 * @return Task - next task, NULL if none or the account is at its limit
+		 */
+		Task take(boolean steal) {
+			int current;
+			do {
+				current = running.get();
+				if (current >= perAccountLimit || tasks.isEmpty())
+					return null;
+			} while (!running.compareAndSet(current, current + 1));
+			Task task = steal ? tasks.pollLast() : tasks.pollFirst();
+			if (task == null)
+				running.decrementAndGet();
+			return task;
+		}
+	}
+
+	private final class Crawl {
+		private final List<AccountQueue> queues = new ArrayList<AccountQueue>();
+		// queued plus running tasks, the crawl is over when it drops to 0
+		private final AtomicLong pending = new AtomicLong();
+		private final AtomicLong folders = new AtomicLong();
+		private final AtomicLong messages = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final Object idle = new Object();
+
+		Crawl(List<? extends Account> accounts) {
+			for (Account account : accounts) {
+				AccountQueue queue = new AccountQueue(account);
+				queues.add(queue);
+				push(new Task(queue, null, true));
+			}
+		}
+
+		Result run() throws InterruptedException {
+			long start = System.nanoTime();
+			List<Thread> workers = new ArrayList<Thread>();
+			int workerCount = Math.max(1, Math.min(globalLimit, queues.size() * perAccountLimit));
+			for (int i = 0; i < workerCount; i++) {
+				int home = queues.isEmpty() ? 0 : i % queues.size();
+				Thread worker = new Thread(() -> work(home), "crawler-" + i);
+				worker.setDaemon(true);
+				worker.start();
+				workers.add(worker);
+			}
+			try {
+				for (Thread worker : workers)
+					worker.join();
+			} finally {
+				for (AccountQueue queue : queues)
+					queue.account.close();
+			}
+			return new Result(queues.size(), folders.get(), messages.get(), failures.get(),
+					System.nanoTime() - start);
+		}
+
+		private void push(Task task) {
+			pending.incrementAndGet();
+			// discovery first, it is what makes more work
+			if (task.discover)
+				task.queue.tasks.offerFirst(task);
+			else
+				task.queue.tasks.offerLast(task);
+			synchronized (idle) {
+				idle.notifyAll();
+			}
+		}
+
+		private void work(int home) {
+			while (pending.get() > 0) {
+				Task task = queues.isEmpty() ? null : queues.get(home).take(false);
+				if (task == null) {
+					task = steal(home);
+					if (task != null)
+						home = queues.indexOf(task.queue);
+				}
+				if (task == null) {
+					synchronized (idle) {
+						if (pending.get() > 0) {
+							try {
+								idle.wait(50);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								return;
+							}
+						}
+					}
+					continue;
+				}
+				try {
+					execute(task);
+				} finally {
+					task.queue.running.decrementAndGet();
+					pending.decrementAndGet();
+					synchronized (idle) {
+						idle.notifyAll();
+					}
+				}
+			}
+		}
+
+		private Task steal(int home) {
+			int size = queues.size();
+			int offset = size > 1 ? ThreadLocalRandom.current().nextInt(size) : 0;
+			for (int i = 0; i < size; i++) {
+				int victim = (offset + i) % size;
+				if (victim == home)
+					continue;
+				Task task = queues.get(victim).take(true);
+				if (task != null)
+					return task;
+			}
+			return null;
+		}
+
+		private void execute(Task task) {
+			Account account = task.queue.account;
+			try {
+				if (task.discover) {
+					for (MailFolder folder : account.listFolders(task.folder)) {
+						if (folder.listChildren)
+							push(new Task(task.queue, folder, true));
+						if (folder.holdsMessages)
+							push(new Task(task.queue, folder, false));
+					}
+				} else {
+					long count = account.fetch(task.folder, message -> {
+						synchronized (sink) {
+							sink.message(account, task.folder, message);
+						}
+					});
+					folders.incrementAndGet();
+					messages.addAndGet(count);
+					Metrics.FOLDERS_CRAWLED.increment();
+					synchronized (sink) {
+						sink.folder(account, task.folder, count);
+					}
+				}
+			} catch (Exception e) {
+				failures.incrementAndGet();
+				synchronized (sink) {
+					sink.failed(account, task.folder, e);
+				}
+			}
+		}
+	}
+}
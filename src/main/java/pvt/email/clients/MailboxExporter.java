@@ -0,0 +1,822 @@
+package pvt.email.clients;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+
+import com.microsoft.graph.core.ClientException;
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.INTERNALDATE;
+import com.sun.mail.imap.protocol.RFC822SIZE;
+import com.sun.mail.imap.protocol.UID;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+
+/**
+ * <p>
+ * Exports every folder of a mailbox to mbox files (mboxrd quoting) or one .eml file per message. <br>
+ * Folders are exported in parallel by a fixed number of workers, Graph folders on the {@link GraphAsync}
+ * executor so they count against its limit. Each worker owns one buffer of
+ * budget / parallelism bytes: IMAP bodies are fetched with BODY.PEEK[]&lt;offset.length&gt; in pipelined windows
+ * of chunks that together fit it and Graph bodies (/messages/{id}/$value) are copied through it, so no message
+ * is ever held whole. <br>
+ * After every {@link #CHECKPOINT_INTERVAL} messages, and at the end of a folder, the position is saved next to
+ * the output: UIDVALIDITY and the last UID for IMAP, the last receivedDateTime and the ids seen at it for Graph,
+ * plus the mbox length. A later export of the same target resumes from there; an mbox is first cut back to the
+ * saved length, so a message that was half written is written again.
+ * </p>
+ */
+public class MailboxExporter {
+
+	public enum Format {
+		MBOX, EML
+	}
+
+	/** Messages between two checkpoints */
+	static final int CHECKPOINT_INTERVAL = 200;
+	/** Smallest buffer per worker */
+	static final int MIN_BUFFER = 64 * 1024;
+
+	private static final DateTimeFormatter MBOX_DATE = DateTimeFormatter
+			.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US).withZone(ZoneOffset.UTC);
+
+	/**
+	 * Outcome of an export
+	 */
+	public static final class Result {
+		public final long folders;
+		public final long messages;
+		public final long bytes;
+		public final long failures;
+		public final long elapsedNanos;
+
+		Result(long folders, long messages, long bytes, long failures, long elapsedNanos) {
+			this.folders = folders;
+			this.messages = messages;
+			this.bytes = bytes;
+			this.failures = failures;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return folders + " folders, " + messages + " messages, " + bytes + " bytes, " + failures
+					+ " failures in " + elapsedNanos / 1_000_000 + " ms";
+		}
+	}
+
+	private final Path target;
+	private final Format format;
+	private final int parallelism;
+	private final int bufferSize;
+
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param target - directory receiving the export, one file or directory per folder
+	 * @param format - MBOX or EML
+	 * @param parallelism - folders exported at once
+	 * @param bufferBudget - bytes of buffer shared by the workers
+	 */
+	public MailboxExporter(Path target, Format format, int parallelism, int bufferBudget) {
+		this.target = target;
+		this.format = format;
+		this.parallelism = Math.max(1, parallelism);
+		this.bufferSize = Math.max(MIN_BUFFER, bufferBudget / this.parallelism);
+	}
+
+	/**
+	 * Export every folder of a connected IMAP store
+	 * @return Result - totals of this run, resumed folders count only what was added
+	 */
+	public Result exportImap(Store store) throws MessagingException, InterruptedException {
+		List<FolderStatistics.FolderStatus> folders = FolderStatistics.imap(store);
+		return run(folders, (folder, buffer) -> exportImapFolder(store.getFolder(folder.id), folder.path, buffer));
+	}
+
+	/**
+	 * Export every folder of a Graph mailbox
+	 * @param userPath - /me or /users/{id | userPrincipalName}
+	 * @return Result - totals of this run, resumed folders count only what was added
+	 */
+	public Result exportGraph(String accessToken, String userPath) throws InterruptedException {
+		List<FolderStatistics.FolderStatus> folders = FolderStatistics.graph(accessToken, userPath);
+		return run(folders, (folder, buffer) -> {
+			try {
+				GraphAsync.join(() -> {
+					try {
+						exportGraphFolder(accessToken, userPath, folder, buffer);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					return null;
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		});
+	}
+
+	private interface FolderExport {
+		void export(FolderStatistics.FolderStatus folder, byte[] buffer) throws Exception;
+	}
+
+	private Result run(List<FolderStatistics.FolderStatus> folders, FolderExport export)
+			throws InterruptedException {
+		long start = System.nanoTime();
+		long messagesBefore = messages.get();
+		long bytesBefore = bytes.get();
+		long failuresBefore = failures.get();
+		Queue<FolderStatistics.FolderStatus> queue = new ConcurrentLinkedQueue<FolderStatistics.FolderStatus>();
+		for (FolderStatistics.FolderStatus folder : folders) {
+			if (folder.messages != 0)
+				queue.add(folder);
+		}
+		long folderCount = queue.size();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < Math.min(parallelism, queue.size()); i++) {
+			Thread worker = new Thread(() -> {
+				byte[] buffer = new byte[bufferSize];
+				FolderStatistics.FolderStatus folder;
+				while ((folder = queue.poll()) != null) {
+					try {
+						export.export(folder, buffer);
+					} catch (Exception e) {
+						failures.incrementAndGet();
+						Metrics.MAIL_ERRORS.increment();
+						System.err.println("Unable to export " + folder.path + " - " + e);
+					}
+				}
+			}, "exporter-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers)
+			worker.join();
+		return new Result(folderCount, messages.get() - messagesBefore, bytes.get() - bytesBefore,
+				failures.get() - failuresBefore, System.nanoTime() - start);
+	}
+
+	/**
+	 * Export one IMAP folder from the UID after the checkpoint on
+	 */
+	private void exportImapFolder(Folder folder, String path, byte[] buffer)
+			throws MessagingException, IOException {
+		IMAPFolder imapFolder = (IMAPFolder) folder;
+		try (Output output = new Output(path)) {
+			long uidValidity = ((UIDFolder) folder).getUIDValidity();
+			if (output.getLong("uidValidity") != uidValidity) {
+				output.restart();
+				output.set("uidValidity", uidValidity);
+			}
+			long start = System.nanoTime();
+			folder.open(Folder.READ_ONLY);
+			Metrics.MAIL_FOLDER_OPEN.recordSince(start);
+			try {
+				int count = folder.getMessageCount();
+				imapFolder.doCommand(protocol -> {
+					try {
+						exportImapMessages(protocol, count, output, buffer);
+					} catch (IOException e) {
+						throw new ProtocolException("Unable to write " + path, e);
+					}
+					return null;
+				});
+			} finally {
+				folder.close(false);
+			}
+		}
+	}
+
+	private void exportImapMessages(IMAPProtocol protocol, int count, Output output, byte[] buffer)
+			throws ProtocolException, IOException {
+		long lastUid = output.getLong("lastUid");
+		// first message after the checkpoint, by bisection on UIDs
+		int low = 1;
+		int high = count + 1;
+		while (lastUid > 0 && low < high) {
+			int middle = (low + high) >>> 1;
+			if (fetchUid(protocol, middle) <= lastUid)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		for (int first = low; first <= count; first += MailboxCrawler.IMAP_BATCH) {
+			int last = Math.min(count, first + MailboxCrawler.IMAP_BATCH - 1);
+			Argument args = new Argument();
+			args.writeAtom(first + ":" + last);
+			args.writeAtom("(UID RFC822.SIZE INTERNALDATE BODY.PEEK[HEADER.FIELDS (FROM)])");
+			Response[] responses = protocol.command("FETCH", args);
+			protocol.notifyResponseHandlers(responses);
+			protocol.handleResult(responses[responses.length - 1]);
+			List<ImapMessage> batch = new ArrayList<ImapMessage>();
+			for (Response response : responses) {
+				if (!(response instanceof FetchResponse))
+					continue;
+				FetchResponse fetch = (FetchResponse) response;
+				UID uid = fetch.getItem(UID.class);
+				RFC822SIZE size = fetch.getItem(RFC822SIZE.class);
+				if (uid == null || size == null || uid.uid <= lastUid)
+					continue;
+				INTERNALDATE date = fetch.getItem(INTERNALDATE.class);
+				batch.add(new ImapMessage(uid.uid, size.size, sender(fetch.getItem(BODY.class)),
+						date == null ? 0 : date.getDate().getTime()));
+				lastUid = uid.uid;
+			}
+			exportImapBodies(protocol, batch, output, buffer);
+		}
+		output.checkpoint();
+	}
+
+	/**
+	 * A message to export, from the FETCH of its batch. RFC822.SIZE is only what the server reports, Exchange
+	 * gives approximate sizes.
+	 */
+	private static final class ImapMessage {
+		final long uid;
+		final long size;
+		final String sender;
+		final long date;
+		OutputStream out;
+		// bytes written so far, and whether the body has been seen to end
+		long written;
+		boolean ended;
+
+		ImapMessage(long uid, long size, String sender, long date) {
+			this.uid = uid;
+			this.size = size;
+			this.sender = sender;
+			this.date = date;
+		}
+	}
+
+	/**
+	 * BODY.PEEK[]&lt;offset.length&gt; of one message, received into buffer[slot, slot + length)
+	 */
+	private static final class Chunk {
+		final ImapMessage message;
+		final long offset;
+		final int length;
+		final int slot;
+		boolean answered;
+		int received;
+
+		Chunk(ImapMessage message, long offset, int length, int slot) {
+			this.message = message;
+			this.offset = offset;
+			this.length = length;
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * Export the bodies of a batch in windows of chunks that together fit the buffer. <br>
+	 * A window holds at most one chunk per message, so the FETCH responses can be told apart by UID. The last
+	 * chunk of a message asks for one byte more than RFC822.SIZE: coming back full, it shows the body goes on,
+	 * and the message continues in the next window like one larger than the room left.
+	 */
+	private void exportImapBodies(IMAPProtocol protocol, List<ImapMessage> batch, Output output, byte[] buffer)
+			throws ProtocolException, IOException {
+		int next = 0;
+		while (next < batch.size()) {
+			List<Chunk> window = new ArrayList<Chunk>();
+			int used = 0;
+			for (int i = next; i < batch.size() && used < buffer.length
+					&& window.size() < FolderStatistics.PIPELINE_WINDOW; i++) {
+				ImapMessage message = batch.get(i);
+				long wanted = message.written < message.size ? message.size - message.written + 1 : buffer.length;
+				int length = (int) Math.min(buffer.length - used, wanted);
+				window.add(new Chunk(message, message.written, length, used));
+				used += length;
+				// the message does not end in this window, the ones after it wait
+				if (length < wanted)
+					break;
+			}
+			exportWindow(protocol, window, output, buffer);
+			while (next < batch.size() && batch.get(next).ended)
+				next++;
+		}
+	}
+
+	/**
+	 * Pipeline the UID FETCH of every chunk of the window, then write the chunks out in order. <br>
+	 * Writing stops at a chunk that came back full, the chunks after it are fetched again once its message
+	 * ended. A chunk without a body, or shorter than RFC822.SIZE promised, fails the folder before the message
+	 * is counted, so the checkpoint stays before it.
+	 */
+	private void exportWindow(IMAPProtocol protocol, List<Chunk> window, Output output, byte[] buffer)
+			throws ProtocolException, IOException {
+		long start = System.nanoTime();
+		synchronized (protocol) {
+			try {
+				Map<String, Chunk> byTag = new HashMap<String, Chunk>();
+				Map<Long, Chunk> byUid = new HashMap<Long, Chunk>();
+				for (Chunk chunk : window) {
+					Argument args = new Argument();
+					args.writeAtom(String.valueOf(chunk.message.uid));
+					args.writeAtom("(BODY.PEEK[]<" + chunk.offset + "." + chunk.length + ">)");
+					byTag.put(protocol.writeCommand("UID FETCH", args), chunk);
+					byUid.put(chunk.message.uid, chunk);
+				}
+
+				List<Response> untagged = new ArrayList<Response>();
+				Response failed = null;
+				int pending = byTag.size();
+				while (pending > 0) {
+					Response response = protocol.readResponse();
+					if (response.isTagged() && byTag.containsKey(response.getTag())) {
+						pending--;
+						if (!response.isOK() && failed == null)
+							failed = response;
+					} else if (response.isBYE()) {
+						protocol.handleResult(response);
+					} else if (response.isUnTagged()) {
+						// bodies are copied into the buffer, anything else goes to the handlers
+						if (!(response instanceof FetchResponse) || !receive((FetchResponse) response, byUid, buffer))
+							untagged.add(response);
+					}
+				}
+				protocol.notifyResponseHandlers(untagged.toArray(new Response[0]));
+				if (failed != null)
+					protocol.handleResult(failed);
+			} catch (IOException e) {
+				throw new ProtocolException("Unable to fetch message bodies", e);
+			}
+		}
+		Metrics.MAIL_FETCH.recordSince(start);
+
+		for (Chunk chunk : window) {
+			ImapMessage message = chunk.message;
+			if (!chunk.answered)
+				throw new ProtocolException("No body returned for UID " + message.uid);
+			long promised = Math.min(chunk.length, Math.max(0, message.size - chunk.offset));
+			if (chunk.received < promised)
+				throw new ProtocolException("Body of UID " + message.uid + " ends at "
+						+ (chunk.offset + chunk.received) + ", RFC822.SIZE is " + message.size);
+			if (chunk.offset == 0)
+				message.out = output.begin(String.valueOf(message.uid), message.sender, message.date);
+			message.out.write(buffer, chunk.slot, chunk.received);
+			message.written += chunk.received;
+			if (chunk.received == chunk.length)
+				return;
+			message.ended = true;
+			output.end();
+			output.set("lastUid", message.uid);
+			output.done();
+		}
+	}
+
+	/**
+	 * Copy the body of a FETCH response into the slot of its chunk
+	 * @return boolean - false when the response answers none of the chunks, e.g. a FLAGS update
+	 */
+	private static boolean receive(FetchResponse response, Map<Long, Chunk> byUid, byte[] buffer) {
+		UID uid = response.getItem(UID.class);
+		BODY body = response.getItem(BODY.class);
+		Chunk chunk = uid == null || body == null ? null : byUid.remove(uid.uid);
+		if (chunk == null)
+			return false;
+		chunk.answered = true;
+		// NIL past the end of the body
+		ByteArray bytes = body.getByteArray();
+		if (bytes != null) {
+			chunk.received = Math.min(chunk.length, bytes.getCount());
+			System.arraycopy(bytes.getBytes(), bytes.getStart(), buffer, chunk.slot, chunk.received);
+		}
+		return true;
+	}
+
+	private static long fetchUid(IMAPProtocol protocol, int number) throws ProtocolException {
+		Argument args = new Argument();
+		args.writeAtom(String.valueOf(number));
+		args.writeAtom("(UID)");
+		Response[] responses = protocol.command("FETCH", args);
+		protocol.notifyResponseHandlers(responses);
+		protocol.handleResult(responses[responses.length - 1]);
+		UID uid = FetchResponse.getItem(responses, number, UID.class);
+		if (uid == null)
+			throw new ProtocolException("No UID for message " + number);
+		return uid.uid;
+	}
+
+	private static String sender(BODY fromHeader) {
+		if (fromHeader == null)
+			return null;
+		try {
+			String from = new InternetHeaders(fromHeader.getByteArrayInputStream()).getHeader("From", ",");
+			InternetAddress[] addresses = from == null ? null : InternetAddress.parseHeader(from, false);
+			return addresses == null || addresses.length == 0 ? null : addresses[0].getAddress();
+		} catch (AddressException e) {
+			return null;
+		} catch (MessagingException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Export one Graph folder, oldest first, from the receivedDateTime of the checkpoint on
+	 */
+	@SuppressWarnings("try")
+	private void exportGraphFolder(String accessToken, String userPath, FolderStatistics.FolderStatus folder,
+			byte[] buffer) throws IOException {
+		try (Output output = new Output(folder.path)) {
+			String received = output.get("received");
+			Set<String> seen = new HashSet<String>(output.getList("ids"));
+			HttpUrl.Builder url = HttpUrl.get(Graph.getServiceRoot(accessToken) + userPath).newBuilder()
+					.addPathSegment("mailFolders").addPathSegment(folder.id).addPathSegment("messages")
+					.addQueryParameter("$select", "from,receivedDateTime")
+					.addQueryParameter("$orderby", "receivedDateTime")
+					.addQueryParameter("$top", String.valueOf(GraphStream.MAX_PAGE_SIZE));
+			if (received != null)
+				url.addQueryParameter("$filter", "receivedDateTime ge " + received);
+			try (GraphTracer.Trace trace = GraphTracer.begin("exportMessages")) {
+				GraphStream.streamPages(accessToken, url.build(), null, GraphStream::parseMessage, message -> {
+					if (seen.contains(message.id))
+						return;
+					try {
+						String messageReceived = message.receivedDateTime;
+						if (messageReceived != null && !messageReceived.equals(output.get("received"))) {
+							seen.clear();
+							output.set("received", messageReceived);
+						}
+						long date = message.receivedDateTime == null ? 0
+								: OffsetDateTime.parse(message.receivedDateTime).toInstant().toEpochMilli();
+						OutputStream out = output.begin(emlName(message.id), message.fromAddress, date);
+						copyMime(accessToken, userPath, message.id, out, buffer);
+						output.end();
+						seen.add(message.id);
+						output.setList("ids", seen);
+						output.done();
+					} catch (IOException e) {
+						throw new ClientException("Unable to export message " + message.id, e);
+					}
+				});
+			} catch (ClientException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw e;
+			}
+			output.checkpoint();
+		}
+	}
+
+	/**
+	 * Graph ids are case sensitive base64, two of them can differ only in case. Their SHA-256, in lower case hex,
+	 * names the same file on every file system, and again when the message is exported anew.
+	 * @return String - first 128 bits of the hash
+	 */
+	static String emlName(String id) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder(32);
+			for (int i = 0; i < 16; i++)
+				name.append(Character.forDigit(hash[i] >> 4 & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+			return name.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Copy GET {userPath}/messages/{id}/$value to out through the buffer
+	 */
+	private static void copyMime(String accessToken, String userPath, String id, OutputStream out, byte[] buffer)
+			throws IOException {
+		HttpUrl url = HttpUrl.get(Graph.getServiceRoot(accessToken) + userPath).newBuilder()
+				.addPathSegment("messages").addPathSegment(id).addPathSegment("$value").build();
+		Request request = new Request.Builder().url(url).header("Authorization", "Bearer " + accessToken).build();
+		try (okhttp3.Response response = Graph.getHttpClient(accessToken).newCall(request).execute()) {
+			ResponseBody body = response.body();
+			if (!response.isSuccessful() || body == null)
+				throw new IOException("Graph request failed with " + response.code() + " for " + url);
+			try (InputStream in = body.byteStream()) {
+				int read;
+				while ((read = in.read(buffer)) > 0)
+					out.write(buffer, 0, read);
+			}
+		}
+	}
+
+	/**
+	 * Output of one folder with its checkpoint
+	 */
+	private final class Output implements AutoCloseable {
+		private final Path base;
+		private final Path checkpointFile;
+		private final Properties state = new Properties();
+		private FileChannel mbox;
+		private OutputStream out;
+		private MboxOutputStream quoted;
+		private OutputStream current;
+		private Path part;
+		private Path eml;
+		private long messageBytes;
+		private int sinceCheckpoint;
+
+		Output(String folderPath) throws IOException {
+			Path base = target;
+			for (String segment : folderPath.split("/"))
+				base = base.resolve(segment.replaceAll("[^\\p{L}\\p{N} ._-]", "_").replaceAll("^\\.+", "_"));
+			this.base = base;
+			Files.createDirectories(base.getParent());
+			if (format == Format.EML)
+				Files.createDirectories(base);
+			checkpointFile = format == Format.EML ? base.resolve(".checkpoint")
+					: base.resolveSibling(base.getFileName() + ".mbox.checkpoint");
+			try (Reader reader = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+				state.load(reader);
+			} catch (NoSuchFileException e) {
+				// first export of this folder
+			}
+			if (format == Format.MBOX) {
+				mbox = FileChannel.open(base.resolveSibling(base.getFileName() + ".mbox"), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE);
+				// cut what was written after the checkpoint
+				mbox.truncate(getLong("offset"));
+				mbox.position(getLong("offset"));
+				out = new BufferedOutputStream(Channels.newOutputStream(mbox));
+				quoted = new MboxOutputStream(out);
+			}
+		}
+
+		String get(String key) {
+			return state.getProperty(key);
+		}
+
+		long getLong(String key) {
+			String value = state.getProperty(key);
+			return value == null ? 0 : Long.parseLong(value);
+		}
+
+		List<String> getList(String key) {
+			String value = state.getProperty(key);
+			return value == null || value.isEmpty() ? Collections.emptyList() : Arrays.asList(value.split(" "));
+		}
+
+		void set(String key, Object value) {
+			state.setProperty(key, String.valueOf(value));
+		}
+
+		void setList(String key, Set<String> values) {
+			state.setProperty(key, String.join(" ", values));
+		}
+
+		/**
+		 * Start over, the previous export does not match the folder anymore
+		 */
+		void restart() throws IOException {
+			state.clear();
+			if (mbox != null) {
+				out.flush();
+				mbox.truncate(0);
+				mbox.position(0);
+			}
+		}
+
+		/**
+		 * @param name - name of the .eml file, the same whatever the case
+		 * @return OutputStream - receives the raw MIME of one message
+		 */
+		OutputStream begin(String name, String sender, long date) throws IOException {
+			messageBytes = 0;
+			if (format == Format.MBOX) {
+				String fromLine = "From " + (sender == null || sender.isEmpty() ? "MAILER-DAEMON" : sender) + " "
+						+ MBOX_DATE.format(Instant.ofEpochMilli(date)) + "\n";
+				out.write(fromLine.getBytes(StandardCharsets.US_ASCII));
+				current = counting(quoted);
+				return current;
+			}
+			eml = base.resolve(name + ".eml");
+			part = base.resolve(name + ".eml.part");
+			current = counting(new BufferedOutputStream(Files.newOutputStream(part)));
+			return current;
+		}
+
+		private OutputStream counting(OutputStream stream) {
+			return new FilterOutputStream(stream) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					messageBytes++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					messageBytes += len;
+				}
+
+				@Override
+				public void close() throws IOException {
+					if (format == Format.EML)
+						out.close();
+				}
+			};
+		}
+
+		/**
+		 * The message is complete
+		 */
+		void end() throws IOException {
+			if (format == Format.MBOX) {
+				quoted.endMessage();
+			} else {
+				// closes the .part file, then makes it visible under its final name
+				current.close();
+				Files.move(part, eml, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			messages.incrementAndGet();
+			bytes.addAndGet(messageBytes);
+			Metrics.MESSAGES_EXPORTED.increment();
+		}
+
+		/**
+		 * Count a message towards the next checkpoint
+		 */
+		void done() throws IOException {
+			if (++sinceCheckpoint >= CHECKPOINT_INTERVAL)
+				checkpoint();
+		}
+
+		/**
+		 * Flush the output and save the position
+		 */
+		void checkpoint() throws IOException {
+			sinceCheckpoint = 0;
+			if (mbox != null) {
+				out.flush();
+				set("offset", mbox.position());
+			}
+			Path temporary = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+				state.store(writer, "export checkpoint");
+			}
+			Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mbox != null) {
+				out.flush();
+				mbox.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes a message into an mbox: CRLF becomes LF, lines starting with any number of &gt; followed by "From "
+	 * get one more &gt; (mboxrd), and the message ends with an empty line.
+	 */
+	static final class MboxOutputStream extends FilterOutputStream {
+		private static final byte[] FROM = "From ".getBytes(StandardCharsets.US_ASCII);
+
+		private boolean lineStart = true;
+		private boolean carriageReturn;
+		// at a line start: '>' seen, then characters of "From " matched
+		private int quotes;
+		private int matched;
+		private int last = '\n';
+
+		MboxOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (carriageReturn) {
+				carriageReturn = false;
+				if (b == '\n') {
+					put('\n');
+					return;
+				}
+				put('\r');
+			}
+			if (b == '\r')
+				carriageReturn = true;
+			else
+				put(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++)
+				write(b[i]);
+		}
+
+		private void put(int b) throws IOException {
+			b &= 0xFF;
+			if (lineStart) {
+				if (matched == 0 && b == '>') {
+					quotes++;
+					return;
+				}
+				if (b == FROM[matched]) {
+					if (++matched < FROM.length)
+						return;
+					out.write('>');
+				}
+				release();
+				lineStart = false;
+				if (matched == FROM.length) {
+					matched = 0;
+					last = ' ';
+					return;
+				}
+			}
+			out.write(b);
+			last = b;
+			if (b == '\n')
+				lineStart = true;
+		}
+
+		/**
+		 * Write the quotes and the part of "From " held back at the line start
+		 */
+		private void release() throws IOException {
+			for (; quotes > 0; quotes--)
+				out.write('>');
+			out.write(FROM, 0, matched);
+			if (matched < FROM.length)
+				matched = 0;
+		}
+
+		/**
+		 * End the message: pending bytes, a final line feed and the empty separator line
+		 */
+		void endMessage() throws IOException {
+			if (carriageReturn) {
+				carriageReturn = false;
+				put('\r');
+			}
+			if (lineStart && (quotes > 0 || matched > 0)) {
+				release();
+				lineStart = false;
+				last = 'x';
+			}
+			if (last != '\n')
+				out.write('\n');
+			out.write('\n');
+			lineStart = true;
+			last = '\n';
+		}
+
+		@Override
+		public void close() throws IOException {
+			// the mbox stays open for the next message
+		}
+	}
+}
@@ -0,0 +1,456 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.mail.Header;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * <p>
+ * Tags messages with rules read from a properties file, one rule per line:
+ * <pre>
+ * billing = from:@billing.example.com &amp; subject:invoice
+ * lists   = list-id
+ * bounces = from=mailer-daemon@example.com &amp; !subject:out of office
+ * </pre>
+ * A condition names a header (case-insensitive) and is either field:text (the header contains text, ignoring
+ * case), field=value (the header is value, ignoring case) or just field (the header is present). ! negates it.
+ * A rule fires when all its conditions hold. <br>
+ * All texts of all rules are compiled into one Aho-Corasick automaton, so a header is scanned once whatever the
+ * number of rules. Equality and presence checks are hash lookups per header name. A condition that holds
+ * increments the rules using it, and a rule fires when its count reaches its number of conditions. <br>
+ * Hits are counted per rule (counter rule_hits_&lt;name&gt;) and the evaluation time of each message goes into
+ * {@link Metrics#RULE_EVALUATION}.
+ * </p>
+ */
+public class MessageRules {
+
+	public static final String RULES_PROPERTY = "pvt.email.rules";
+
+	/** Rules compiled by {@link #load()}, with the file and its modification time they were compiled from */
+	private static MessageRules loaded;
+	private static Path loadedFile;
+	private static FileTime loadedModified;
+
+	/**
+	 * Conditions on one header
+	 */
+	private static final class Field {
+		final int id;
+		int exists = -1;
+		final Map<String, int[]> equals = new HashMap<String, int[]>();
+
+		Field(int id) {
+			this.id = id;
+		}
+	}
+
+	private final String[] names;
+	private final Metrics.Counter[] hits;
+	/** Conditions that must hold, per rule */
+	private final int[] required;
+	/** Negated conditions, per rule */
+	private final int[][] negated;
+	/** Rules using each condition, positively */
+	private final int[][] rulesOf;
+	/** Rules without positive condition, candidates for every message */
+	private final int[] unconditional;
+	private final Map<String, Field> fields;
+	private final int conditionCount;
+
+	// Aho-Corasick automaton: per state, sorted transition labels and targets, failure link and outputs
+	private final char[][] labels;
+	private final int[][] targets;
+	private final int[] failure;
+	/** Per state: pairs of (field id, condition) of the texts ending there, suffixes included */
+	private final int[][] outputs;
+
+	private final ThreadLocal<Evaluation> evaluations;
+
+	/**
+	 * Load the rules file set with -Dpvt.email.rules. The rules are compiled once and shared until the file
+	 * changes.
+	 * @return MessageRules - compiled rules, NULL if the property is not set
+	 */
+	public static synchronized MessageRules load() throws IOException {
+		String name = System.getProperty(RULES_PROPERTY);
+		if (name == null || name.isBlank())
+			return null;
+		Path file = Paths.get(name);
+		FileTime modified = Files.getLastModifiedTime(file);
+		if (loaded != null && file.equals(loadedFile) && modified.equals(loadedModified))
+			return loaded;
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(file)) {
+			properties.load(reader);
+		}
+		Map<String, String> rules = new TreeMap<String, String>();
+		for (String rule : properties.stringPropertyNames())
+			rules.put(rule, properties.getProperty(rule));
+		loaded = compile(rules);
+		loadedFile = file;
+		loadedModified = modified;
+		return loaded;
+	}
+
+	/**
+	 * @param rules - rule name to conditions, see the class comment
+	 * @return MessageRules - rules numbered in map order
+	 * @throws IllegalArgumentException - if a rule can't be parsed
+	 */
+	public static MessageRules compile(Map<String, String> rules) {
+		return new MessageRules(rules);
+	}
+
+	private MessageRules(Map<String, String> rules) {
+		int ruleCount = rules.size();
+		names = new String[ruleCount];
+		hits = new Metrics.Counter[ruleCount];
+		required = new int[ruleCount];
+		negated = new int[ruleCount][];
+		fields = new HashMap<String, Field>();
+
+		// conditions are shared between rules when they are the same
+		Map<String, Integer> conditions = new HashMap<String, Integer>();
+		Map<String, List<int[]>> texts = new HashMap<String, List<int[]>>();
+		List<List<Integer>> users = new ArrayList<List<Integer>>();
+		List<Integer> withoutPositive = new ArrayList<Integer>();
+		int rule = 0;
+		for (Map.Entry<String, String> entry : rules.entrySet()) {
+			names[rule] = entry.getKey();
+			hits[rule] = Metrics
+					.counter("rule_hits_" + entry.getKey().toLowerCase(Locale.ROOT).replaceAll("\\W", "_"));
+			List<Integer> negatives = new ArrayList<Integer>();
+			for (String part : entry.getValue().split("&")) {
+				String condition = part.trim();
+				boolean not = condition.startsWith("!");
+				if (not)
+					condition = condition.substring(1).trim();
+				int colon = condition.indexOf(':');
+				int equal = condition.indexOf('=');
+				int split = colon < 0 ? equal : equal < 0 ? colon : Math.min(colon, equal);
+				String fieldName = (split < 0 ? condition : condition.substring(0, split)).trim()
+						.toLowerCase(Locale.ROOT);
+				String value = split < 0 ? null : condition.substring(split + 1).trim().toLowerCase(Locale.ROOT);
+				if (fieldName.isEmpty() || (value != null && value.isEmpty()))
+					throw new IllegalArgumentException(
+							"Invalid condition '" + part.trim() + "' in rule " + names[rule]);
+
+				String key = fieldName + (split < 0 ? "" : condition.charAt(split) + value);
+				Integer id = conditions.get(key);
+				if (id == null) {
+					id = conditions.size();
+					conditions.put(key, id);
+					users.add(new ArrayList<Integer>());
+					Field field = fields.computeIfAbsent(fieldName, f -> new Field(fields.size()));
+					if (split < 0) {
+						field.exists = id;
+					} else if (condition.charAt(split) == '=') {
+						int[] ids = field.equals.get(value);
+						field.equals.put(value, ids == null ? new int[] { id } : append(ids, id));
+					} else {
+						texts.computeIfAbsent(value, v -> new ArrayList<int[]>()).add(new int[] { field.id, id });
+					}
+				}
+				if (not) {
+					negatives.add(id);
+				} else {
+					users.get(id).add(rule);
+					required[rule]++;
+				}
+			}
+			negated[rule] = negatives.stream().mapToInt(Integer::intValue).toArray();
+			if (required[rule] == 0)
+				withoutPositive.add(rule);
+			rule++;
+		}
+		conditionCount = conditions.size();
+		rulesOf = new int[conditionCount][];
+		for (int i = 0; i < conditionCount; i++)
+			rulesOf[i] = users.get(i).stream().mapToInt(Integer::intValue).toArray();
+		unconditional = withoutPositive.stream().mapToInt(Integer::intValue).toArray();
+
+		// trie of all texts
+		List<char[]> trieLabels = new ArrayList<char[]>();
+		List<int[]> trieTargets = new ArrayList<int[]>();
+		List<int[]> trieOutputs = new ArrayList<int[]>();
+		trieLabels.add(new char[0]);
+		trieTargets.add(new int[0]);
+		trieOutputs.add(new int[0]);
+		for (Map.Entry<String, List<int[]>> text : texts.entrySet()) {
+			int state = 0;
+			for (char c : text.getKey().toCharArray()) {
+				int next = transition(trieLabels.get(state), trieTargets.get(state), c);
+				if (next < 0) {
+					next = trieLabels.size();
+					trieLabels.add(new char[0]);
+					trieTargets.add(new int[0]);
+					trieOutputs.add(new int[0]);
+					char[] stateLabels = trieLabels.get(state);
+					int[] stateTargets = trieTargets.get(state);
+					int at = -Arrays.binarySearch(stateLabels, c) - 1;
+					char[] newLabels = new char[stateLabels.length + 1];
+					int[] newTargets = new int[stateTargets.length + 1];
+					System.arraycopy(stateLabels, 0, newLabels, 0, at);
+					System.arraycopy(stateTargets, 0, newTargets, 0, at);
+					newLabels[at] = c;
+					newTargets[at] = next;
+					System.arraycopy(stateLabels, at, newLabels, at + 1, stateLabels.length - at);
+					System.arraycopy(stateTargets, at, newTargets, at + 1, stateTargets.length - at);
+					trieLabels.set(state, newLabels);
+					trieTargets.set(state, newTargets);
+				}
+				state = next;
+			}
+			int[] output = trieOutputs.get(state);
+			for (int[] use : text.getValue())
+				output = append(append(output, use[0]), use[1]);
+			trieOutputs.set(state, output);
+		}
+		int states = trieLabels.size();
+		labels = trieLabels.toArray(new char[states][]);
+		targets = trieTargets.toArray(new int[states][]);
+		outputs = trieOutputs.toArray(new int[states][]);
+
+		// failure links breadth first, outputs of the failure state merged in
+		failure = new int[states];
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		for (int child : targets[0])
+			queue.add(child);
+		while (!queue.isEmpty()) {
+			int state = queue.poll();
+			for (int i = 0; i < labels[state].length; i++) {
+				int child = targets[state][i];
+				int fallback = failure[state];
+				int next;
+				while ((next = transition(labels[fallback], targets[fallback], labels[state][i])) < 0 && fallback != 0)
+					fallback = failure[fallback];
+				failure[child] = next < 0 || next == child ? 0 : next;
+				if (outputs[failure[child]].length > 0) {
+					int[] merged = Arrays.copyOf(outputs[child], outputs[child].length + outputs[failure[child]].length);
+					System.arraycopy(outputs[failure[child]], 0, merged, outputs[child].length,
+							outputs[failure[child]].length);
+					outputs[child] = merged;
+				}
+				queue.add(child);
+			}
+		}
+		evaluations = ThreadLocal.withInitial(Evaluation::new);
+	}
+
+	private static int transition(char[] stateLabels, int[] stateTargets, char c) {
+		int at = Arrays.binarySearch(stateLabels, c);
+		return at < 0 ? -1 : stateTargets[at];
+	}
+
+	private static int[] append(int[] array, int value) {
+		int[] result = Arrays.copyOf(array, array.length + 1);
+		result[array.length] = value;
+		return result;
+	}
+
+	/**
+	 * @return int - number of rules
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	public String getName(int rule) {
+		return names[rule];
+	}
+
+	/**
+	 * @return long - messages the rule fired for, since the start of the program
+	 */
+	public long getHits(int rule) {
+		return hits[rule].getCount();
+	}
+
+	/**
+	 * State of one message being evaluated, reused by the thread
+	 */
+	private final class Evaluation {
+		final boolean[] held = new boolean[conditionCount];
+		final int[] heldList = new int[conditionCount];
+		int heldCount;
+		final int[] counts = new int[names.length];
+		final int[] candidates = new int[names.length];
+		int candidateCount;
+
+		/**
+		 * Check the conditions on one header
+		 */
+		void header(String name, String value) {
+			if (value == null)
+				return;
+			Field field = fields.get(name.toLowerCase(Locale.ROOT));
+			if (field == null)
+				return;
+			if (field.exists >= 0)
+				hold(field.exists);
+			if (!field.equals.isEmpty()) {
+				int[] ids = field.equals.get(value.trim().toLowerCase(Locale.ROOT));
+				if (ids != null) {
+					for (int id : ids)
+						hold(id);
+				}
+			}
+			int state = 0;
+			for (int i = 0; i < value.length(); i++) {
+				char c = Character.toLowerCase(value.charAt(i));
+				int next;
+				while ((next = transition(labels[state], targets[state], c)) < 0 && state != 0)
+					state = failure[state];
+				state = next < 0 ? 0 : next;
+				int[] output = outputs[state];
+				for (int j = 0; j < output.length; j += 2) {
+					if (output[j] == field.id)
+						hold(output[j + 1]);
+				}
+			}
+		}
+
+		private void hold(int condition) {
+			if (held[condition])
+				return;
+			held[condition] = true;
+			heldList[heldCount++] = condition;
+			for (int rule : rulesOf[condition]) {
+				if (counts[rule]++ == 0)
+					candidates[candidateCount++] = rule;
+			}
+		}
+
+		/**
+		 * @return int[] - rules fired, ascending; the state is reset for the next message
+		 */
+		int[] finish() {
+			int[] fired = new int[candidateCount + unconditional.length];
+			int firedCount = 0;
+			for (int i = 0; i < candidateCount; i++) {
+				int rule = candidates[i];
+				if (counts[rule] == required[rule] && !anyHeld(negated[rule]))
+					fired[firedCount++] = rule;
+				counts[rule] = 0;
+			}
+			for (int rule : unconditional) {
+				if (!anyHeld(negated[rule]))
+					fired[firedCount++] = rule;
+			}
+			for (int i = 0; i < heldCount; i++)
+				held[heldList[i]] = false;
+			heldCount = 0;
+			candidateCount = 0;
+			fired = Arrays.copyOf(fired, firedCount);
+			Arrays.sort(fired);
+			for (int rule : fired)
+				hits[rule].increment();
+			return fired;
+		}
+
+		private boolean anyHeld(int[] conditions) {
+			for (int condition : conditions) {
+				if (held[condition])
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Evaluate the rules against the headers of a mail, in one pass over them
+	 * @return int[] - rules fired, ascending
+	 */
+	public int[] evaluate(Message message) throws MessagingException {
+		long start = System.nanoTime();
+		Evaluation evaluation = evaluations.get();
+		try {
+			Enumeration<Header> headers = message.getAllHeaders();
+			while (headers.hasMoreElements()) {
+				Header header = headers.nextElement();
+				evaluation.header(header.getName(), decode(header.getValue()));
+			}
+			return evaluation.finish();
+		} finally {
+			Metrics.RULE_EVALUATION.recordSince(start);
+		}
+	}
+
+	private static String decode(String value) {
+		if (value == null || value.indexOf("=?") < 0)
+			return value;
+		try {
+			return MimeUtility.decodeText(MimeUtility.unfold(value));
+		} catch (UnsupportedEncodingException e) {
+			return value;
+		}
+	}
+
+	/**
+	 * Evaluate the rules against a streamed Graph message summary: subject, from and sender, and every header
+	 * if internetMessageHeaders was selected
+	 * @return int[] - rules fired, ascending
+	 */
+	public int[] evaluate(GraphStream.MessageSummary message) {
+		long start = System.nanoTime();
+		Evaluation evaluation = evaluations.get();
+		try {
+			evaluation.header("Subject", message.subject);
+			evaluation.header("From", address(message.fromName, message.fromAddress));
+			evaluation.header("Sender", address(message.senderName, message.senderAddress));
+			if (message.headers != null) {
+				for (String[] header : message.headers)
+					evaluation.header(header[0], decode(header[1]));
+			}
+			return evaluation.finish();
+		} finally {
+			Metrics.RULE_EVALUATION.recordSince(start);
+		}
+	}
+
+	private static String address(String name, String address) {
+		if (address == null)
+			return name;
+		return name == null ? address : name + " <" + address + ">";
+	}
+
+	/**
+	 * @return String - names of the rules fired, comma separated
+	 */
+	public String describe(int[] fired) {
+		StringBuilder description = new StringBuilder();
+		for (int rule : fired)
+			description.append(description.length() == 0 ? "" : ", ").append(names[rule]);
+		return description.toString();
+	}
+
+	/**
+	 * Print the hits of every rule and the evaluation time
+	 */
+	public void printHits() {
+		for (int rule = 0; rule < names.length; rule++)
+			System.out.println(names[rule] + ": " + hits[rule].getCount());
+		LatencyHistogram.Snapshot evaluation = Metrics.RULE_EVALUATION.snapshot();
+		System.out.println(String.format(Locale.ROOT, "%d messages evaluated, mean %.1f us, p99 %.1f us",
+				evaluation.getCount(), evaluation.getMeanNanos() / 1000, evaluation.getQuantileNanos(0.99) / 1000.0));
+	}
+}
@@ -0,0 +1,1099 @@
+package pvt.email.clients;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FLAGS;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.INTERNALDATE;
+import com.sun.mail.imap.protocol.Status;
+import com.sun.mail.imap.protocol.UID;
+
+import okhttp3.HttpUrl;
+
+/**
+ * <p>
+ * Local cache of one mail folder. Enabled with the system property pvt.email.store.dir=&lt;directory&gt;. <br>
+ * Raw MIME goes into append-only segment files (segment-NNNNN.mime, rolled at {@link #SEGMENT_SIZE}).
+ * Every message has a fixed-width record of {@link #RECORD_SIZE} bytes in index.idx, which is memory-mapped:
+ * UID, date, sender hash, offset of its strings (subject, sender, id, folder) in strings.dat, segment and
+ * offset of the MIME, size and flags. Counting, sorting and filtering work on the mapping only, no object
+ * per message is created. <br>
+ * A record is visible once the count in the index header covers it, so a crash mid-append leaves unused bytes
+ * in the data files but never a broken record. Messages deleted on the server keep their record, marked
+ * {@link #FLAG_EXPUNGED}, so record numbers stay stable for the search index. Graph listings are kept current
+ * with one messages/delta query per folder, whose deltaLinks are saved in delta.links. One process at a time,
+ * guarded with a file lock.
+ * </p>
+ * Index layout, all big-endian:
+ * <pre>
+ * header  0 magic  4 version  8 count  16 uidValidity  24 uidNext  32 syncedAt (epoch ms)  40 generation
+ *        48 messages  52 unseen  56 highestModSeq (as of the last sync)
+ * record  0 uid  8 date (epoch ms)  16 senderHash  24 stringsOffset  32 segmentOffset
+ *        40 size  44 segment  48 flags  56 idHash (0 in stores written before it existed)
+ * </pre>
+ */
+public class MessageStore implements Closeable {
+
+	public static final String DIR_PROPERTY = "pvt.email.store.dir";
+	/** Seconds a Graph listing stays fresh, default 300 */
+	public static final String TTL_PROPERTY = "pvt.email.store.ttl";
+
+	public static final int FLAG_SEEN = 1;
+	public static final int FLAG_ANSWERED = 2;
+	public static final int FLAG_FLAGGED = 4;
+	public static final int FLAG_DELETED = 8;
+	public static final int FLAG_DRAFT = 16;
+	public static final int FLAG_ATTACHMENT = 32;
+	/** Gone from the server, the record is kept as a tombstone */
+	public static final int FLAG_EXPUNGED = 64;
+	/** Bits that mirror IMAP flags, replaced when flags are refreshed */
+	private static final int MAIL_FLAGS = FLAG_SEEN | FLAG_ANSWERED | FLAG_FLAGGED | FLAG_DELETED | FLAG_DRAFT;
+
+	private static final String[] STATUS_ITEMS = { "MESSAGES", "UNSEEN", "UIDNEXT", "UIDVALIDITY" };
+	private static final String[] CONDSTORE_STATUS_ITEMS = { "MESSAGES", "UNSEEN", "UIDNEXT", "UIDVALIDITY",
+			"HIGHESTMODSEQ" };
+
+	static final int RECORD_SIZE = 64;
+	static final int HEADER_SIZE = 64;
+	static final long SEGMENT_SIZE = 256L << 20;
+	private static final int MAGIC = 0x4D534958;
+	private static final int VERSION = 1;
+	/** Index mapping grows by this many records */
+	private static final int GROWTH = 16384;
+
+	private static final int UID = 0;
+	private static final int DATE = 8;
+	private static final int SENDER_HASH = 16;
+	private static final int STRINGS = 24;
+	private static final int SEGMENT_OFFSET = 32;
+	private static final int SIZE = 40;
+	private static final int SEGMENT = 44;
+	private static final int FLAGS = 48;
+	private static final int ID_HASH = 56;
+
+	private static final int H_COUNT = 8;
+	private static final int H_UID_VALIDITY = 16;
+	private static final int H_UID_NEXT = 24;
+	private static final int H_SYNCED_AT = 32;
+	private static final int H_GENERATION = 40;
+	private static final int H_MESSAGES = 48;
+	private static final int H_UNSEEN = 52;
+	private static final int H_MODSEQ = 56;
+
+	private final Path dir;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	private final FileChannel indexChannel;
+	private final FileChannel stringsChannel;
+	private volatile MappedByteBuffer index;
+	private FileChannel segmentChannel;
+	private int segment;
+
+	/**
+	 * Open the store of a folder below pvt.email.store.dir
+	 * @param account - account name, e.g. the user name
+	 * @param folder - folder name
+	 * @return MessageStore - the opened store, NULL if no store directory is configured
+	 */
+	public static MessageStore open(String account, String folder) throws IOException {
+		String base = System.getProperty(DIR_PROPERTY);
+		if (base == null)
+			return null;
+		return new MessageStore(Paths.get(base, fileName(account), fileName(folder)));
+	}
+
+	/**
+	 * Directory name for an account or folder name, readable and collision free
+	 */
+	static String fileName(String name) {
+		return name.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(name.hashCode());
+	}
+
+	public MessageStore(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+		lockChannel = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock acquired;
+		try {
+			acquired = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// held by this process
+			acquired = null;
+		}
+		lock = acquired;
+		if (lock == null) {
+			lockChannel.close();
+			throw new IOException("Message store " + dir + " is already in use");
+		}
+		indexChannel = FileChannel.open(dir.resolve("index.idx"), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		stringsChannel = FileChannel.open(dir.resolve("strings.dat"), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean created = indexChannel.size() == 0;
+		index = map(Math.max(indexChannel.size(), HEADER_SIZE + (long) GROWTH * RECORD_SIZE));
+		if (created) {
+			index.putInt(0, MAGIC);
+			index.putInt(4, VERSION);
+		} else if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+			close();
+			throw new IOException(dir + " is not a message store");
+		}
+		while (Files.exists(segmentPath(segment + 1)))
+			segment++;
+	}
+
+	private MappedByteBuffer map(long length) throws IOException {
+		return indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+	}
+
+	private Path segmentPath(int number) {
+		return dir.resolve(String.format(Locale.ROOT, "segment-%05d.mime", number));
+	}
+
+	private static int record(int number) {
+		return HEADER_SIZE + number * RECORD_SIZE;
+	}
+
+	/**
+	 * @return int - number of messages stored
+	 */
+	public int size() {
+		return (int) index.getLong(H_COUNT);
+	}
+
+	public long getUid(int number) {
+		return index.getLong(record(number) + UID);
+	}
+
+	public long getDate(int number) {
+		return index.getLong(record(number) + DATE);
+	}
+
+	public long getSenderHash(int number) {
+		return index.getLong(record(number) + SENDER_HASH);
+	}
+
+	/**
+	 * @return int - size of the raw MIME, 0 if only the headers were stored
+	 */
+	public int getSize(int number) {
+		return index.getInt(record(number) + SIZE);
+	}
+
+	public int getFlags(int number) {
+		return index.getInt(record(number) + FLAGS);
+	}
+
+	public String getSubject(int number) throws IOException {
+		return readStrings(number)[0];
+	}
+
+	public String getSender(int number) throws IOException {
+		return readStrings(number)[1];
+	}
+
+	/**
+	 * @return String - Message-ID (IMAP) or Graph message id
+	 */
+	public String getId(int number) throws IOException {
+		return readStrings(number)[2];
+	}
+
+	public String getFolder(int number) throws IOException {
+		return readStrings(number)[3];
+	}
+
+	/**
+	 * @return String[] - subject, sender, id and folder
+	 */
+	public String[] readStrings(int number) throws IOException {
+		long position = index.getLong(record(number) + STRINGS);
+		String[] strings = new String[4];
+		ByteBuffer length = ByteBuffer.allocate(4);
+		for (int i = 0; i < strings.length; i++) {
+			length.clear();
+			readFully(stringsChannel, length, position);
+			position += 4;
+			int bytes = length.getInt(0);
+			if (bytes < 0)
+				continue;
+			ByteBuffer value = ByteBuffer.allocate(bytes);
+			readFully(stringsChannel, value, position);
+			position += bytes;
+			strings[i] = new String(value.array(), StandardCharsets.UTF_8);
+		}
+		return strings;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Message store truncated");
+		}
+	}
+
+	/**
+	 * @return InputStream - the raw MIME of the message, NULL if only the headers were stored
+	 */
+	public InputStream openMessage(int number) throws IOException {
+		int base = record(number);
+		int size = index.getInt(base + SIZE);
+		if (size == 0)
+			return null;
+		FileChannel channel = FileChannel.open(segmentPath(index.getInt(base + SEGMENT)), StandardOpenOption.READ);
+		channel.position(index.getLong(base + SEGMENT_OFFSET));
+		InputStream in = Channels.newInputStream(channel);
+		return new InputStream() {
+			private int remaining = size;
+
+			@Override
+			public int read() throws IOException {
+				if (remaining == 0)
+					return -1;
+				remaining--;
+				return in.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining == 0)
+					return -1;
+				int read = in.read(b, off, Math.min(len, remaining));
+				if (read > 0)
+					remaining -= read;
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * @return MimeMessage - the message parsed from the cache, NULL if only the headers were stored
+	 */
+	public MimeMessage readMessage(int number) throws IOException, MessagingException {
+		try (InputStream in = openMessage(number)) {
+			return in == null ? null : new MimeMessage(null, in);
+		}
+	}
+
+	/**
+	 * Append a message
+	 * @param uid - IMAP UID, or a local sequence number for Graph
+	 * @param date - received date, epoch milliseconds
+	 * @param flags - FLAG_* bits
+	 * @param sender - sender address, hashed into the record
+	 * @param mime - raw MIME, NULL to store the headers only
+	 * @return int - record number
+	 */
+	public int append(long uid, long date, int flags, String sender, String subject, String id, String folder,
+			byte[] mime) throws IOException {
+		return append(uid, date, flags, sender, subject, id, folder, mime, 0, mime == null ? 0 : mime.length);
+	}
+
+	private synchronized int append(long uid, long date, int flags, String sender, String subject, String id,
+			String folder, byte[] mime, int offset, int size) throws IOException {
+		int number = size();
+		long segmentOffset = 0;
+		if (size > 0) {
+			FileChannel channel = segmentChannel();
+			segmentOffset = channel.size();
+			ByteBuffer content = ByteBuffer.wrap(mime, offset, size).slice();
+			while (content.hasRemaining())
+				channel.write(content, segmentOffset + content.position());
+		}
+		long stringsOffset = stringsChannel.size();
+		ByteBuffer strings = encodeStrings(subject, sender, id, folder);
+		while (strings.hasRemaining())
+			stringsChannel.write(strings, stringsOffset + strings.position());
+
+		ensureCapacity(number + 1);
+		int base = record(number);
+		index.putLong(base + UID, uid);
+		index.putLong(base + DATE, date);
+		index.putLong(base + SENDER_HASH, senderHash(sender));
+		index.putLong(base + STRINGS, stringsOffset);
+		index.putLong(base + SEGMENT_OFFSET, segmentOffset);
+		index.putInt(base + SIZE, size);
+		index.putInt(base + SEGMENT, segment);
+		index.putInt(base + FLAGS, flags);
+		index.putLong(base + ID_HASH, idHash(id));
+		// publish the record
+		index.putLong(H_COUNT, number + 1);
+		return number;
+	}
+
+	private static ByteBuffer encodeStrings(String... values) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		for (String value : values) {
+			byte[] encoded = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+			int length = encoded == null ? -1 : encoded.length;
+			bytes.write(length >>> 24);
+			bytes.write(length >>> 16);
+			bytes.write(length >>> 8);
+			bytes.write(length);
+			if (encoded != null)
+				bytes.write(encoded, 0, encoded.length);
+		}
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	private FileChannel segmentChannel() throws IOException {
+		if (segmentChannel != null && segmentChannel.size() >= SEGMENT_SIZE) {
+			segmentChannel.close();
+			segmentChannel = null;
+			segment++;
+		}
+		if (segmentChannel == null)
+			segmentChannel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return segmentChannel;
+	}
+
+	private void ensureCapacity(int records) throws IOException {
+		long needed = record(records);
+		if (needed > index.capacity())
+			index = map(Math.max(needed, index.capacity() + (long) GROWTH * RECORD_SIZE));
+	}
+
+	/**
+	 * Forget all messages, e.g. when UIDVALIDITY changed. Data files are deleted.
+	 */
+	public synchronized void clear() throws IOException {
+		index.putLong(H_COUNT, 0);
+		index.putLong(H_GENERATION, getGeneration() + 1);
+		setSyncState(0, 0);
+		stringsChannel.truncate(0);
+		if (segmentChannel != null) {
+			segmentChannel.close();
+			segmentChannel = null;
+		}
+		for (int i = 0; i <= segment; i++)
+			Files.deleteIfExists(segmentPath(i));
+		Files.deleteIfExists(dir.resolve("delta.links"));
+		segment = 0;
+	}
+
+	/**
+	 * Record what the server reported at the end of a sync
+	 * @param uidValidity - IMAP UIDVALIDITY, 0 for Graph
+	 * @param uidNext - IMAP UIDNEXT, or next local sequence number for Graph
+	 */
+	public void setSyncState(long uidValidity, long uidNext) {
+		setSyncState(uidValidity, uidNext, 0, 0, 0);
+	}
+
+	/**
+	 * Record what the server reported at the end of a sync
+	 * @param uidValidity - IMAP UIDVALIDITY, 0 for Graph
+	 * @param uidNext - IMAP UIDNEXT, or next local sequence number for Graph
+	 * @param messages - STATUS MESSAGES
+	 * @param unseen - STATUS UNSEEN
+	 * @param highestModSeq - STATUS HIGHESTMODSEQ, 0 without CONDSTORE
+	 */
+	public synchronized void setSyncState(long uidValidity, long uidNext, int messages, int unseen,
+			long highestModSeq) {
+		index.putLong(H_UID_VALIDITY, uidValidity);
+		index.putLong(H_UID_NEXT, uidNext);
+		index.putInt(H_MESSAGES, messages);
+		index.putInt(H_UNSEEN, unseen);
+		index.putLong(H_MODSEQ, highestModSeq);
+		index.putLong(H_SYNCED_AT, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return long - incremented by every {@link #clear()}, record numbers of different generations are unrelated
+	 */
+	public long getGeneration() {
+		return index.getLong(H_GENERATION);
+	}
+
+	/**
+	 * @return Path - directory of the store, derived data such as the search index lives next to it
+	 */
+	public Path getDirectory() {
+		return dir;
+	}
+
+	public long getUidValidity() {
+		return index.getLong(H_UID_VALIDITY);
+	}
+
+	public long getUidNext() {
+		return index.getLong(H_UID_NEXT);
+	}
+
+	/**
+	 * @return long - time of the last sync, epoch milliseconds, 0 if never synced
+	 */
+	public long getSyncedAt() {
+		return index.getLong(H_SYNCED_AT);
+	}
+
+	/**
+	 * @return long - HIGHESTMODSEQ of the last sync, 0 if the server has no CONDSTORE
+	 */
+	public long getHighestModSeq() {
+		return index.getLong(H_MODSEQ);
+	}
+
+	/**
+	 * @return boolean - TRUE if the folder has not changed on the server since the last sync, as far as its STATUS
+	 *         tells: no messages added (UIDNEXT) or expunged (MESSAGES), UIDs not reset, the same number unseen
+	 *         and, with CONDSTORE, no flag changed (HIGHESTMODSEQ)
+	 */
+	public boolean isFresh(long uidValidity, long uidNext, int messages, int unseen, long highestModSeq) {
+		return getSyncedAt() != 0 && uidNext > 0 && getUidValidity() == uidValidity && getUidNext() == uidNext
+				&& index.getInt(H_MESSAGES) == messages && index.getInt(H_UNSEEN) == unseen
+				&& getHighestModSeq() == highestModSeq;
+	}
+
+	/**
+	 * @return boolean - TRUE if synced within pvt.email.store.ttl seconds
+	 */
+	public boolean isFresh() {
+		long ttl = TimeUnit.SECONDS.toMillis(Long.getLong(TTL_PROPERTY, 300));
+		return getSyncedAt() != 0 && System.currentTimeMillis() - getSyncedAt() < ttl;
+	}
+
+	public boolean isExpunged(int number) {
+		return (getFlags(number) & FLAG_EXPUNGED) != 0;
+	}
+
+	/**
+	 * @return int - number of messages stored and not expunged
+	 */
+	public int count() {
+		int count = 0;
+		for (int i = size() - 1; i >= 0; i--) {
+			if (!isExpunged(i))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return int - record number of the UID, -1 if not stored. Records are appended in UID order.
+	 */
+	public int findByUid(long uid) {
+		int low = 0;
+		int high = size() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long found = getUid(middle);
+			if (found < uid)
+				low = middle + 1;
+			else if (found > uid)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	private synchronized void setFlags(int number, int flags) {
+		index.putInt(record(number) + FLAGS, flags);
+	}
+
+	/**
+	 * @return long - highest UID stored, 0 if empty
+	 */
+	public long getLastUid() {
+		int count = size();
+		return count == 0 ? 0 : getUid(count - 1);
+	}
+
+	/**
+	 * @param newestFirst - sort order
+	 * @return int[] - record numbers ordered by date
+	 */
+	public int[] sortByDate(boolean newestFirst) {
+		return sort(DATE, newestFirst);
+	}
+
+	/**
+	 * @param largestFirst - sort order
+	 * @return int[] - record numbers ordered by MIME size
+	 */
+	public int[] sortBySize(boolean largestFirst) {
+		return sort(SIZE, largestFirst);
+	}
+
+	/**
+	 * @return int[] - record numbers of the messages from the sender, in store order
+	 */
+	public int[] findBySender(String sender) {
+		long hash = senderHash(sender);
+		int count = size();
+		int[] found = new int[16];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (getSenderHash(i) == hash && !isExpunged(i)) {
+				if (n == found.length)
+					found = Arrays.copyOf(found, n * 2);
+				found[n++] = i;
+			}
+		}
+		return Arrays.copyOf(found, n);
+	}
+
+	/**
+	 * Sort the record numbers by a field of the mapped records, expunged ones left out. The keys are copied into
+	 * a long[] once, then both arrays are sorted together.
+	 */
+	private int[] sort(int field, boolean descending) {
+		ByteBuffer view = index;
+		int records = size();
+		int[] order = new int[records];
+		long[] keys = new long[records];
+		int count = 0;
+		for (int i = 0; i < records; i++) {
+			int base = record(i);
+			if ((view.getInt(base + FLAGS) & FLAG_EXPUNGED) != 0)
+				continue;
+			long key = field == SIZE ? view.getInt(base + field) : view.getLong(base + field);
+			order[count] = i;
+			keys[count++] = descending ? -key : key;
+		}
+		quickSort(keys, order, 0, count - 1);
+		return count == records ? order : Arrays.copyOf(order, count);
+	}
+
+	private static void quickSort(long[] keys, int[] order, int low, int high) {
+		while (low < high) {
+			if (high - low < 16) {
+				for (int i = low + 1; i <= high; i++) {
+					for (int j = i; j > low && (keys[j - 1] > keys[j]
+							|| keys[j - 1] == keys[j] && order[j - 1] > order[j]); j--)
+						swap(keys, order, j, j - 1);
+				}
+				return;
+			}
+			int middle = (low + high) >>> 1;
+			long pivotKey = keys[middle];
+			int pivotOrder = order[middle];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (keys[i] < pivotKey || keys[i] == pivotKey && order[i] < pivotOrder)
+					i++;
+				while (keys[j] > pivotKey || keys[j] == pivotKey && order[j] > pivotOrder)
+					j--;
+				if (i <= j)
+					swap(keys, order, i++, j--);
+			}
+			// recurse into the smaller half, loop on the larger
+			if (j - low < high - i) {
+				quickSort(keys, order, low, j);
+				low = i;
+			} else {
+				quickSort(keys, order, i, high);
+				high = j;
+			}
+		}
+	}
+
+	private static void swap(long[] keys, int[] order, int a, int b) {
+		long key = keys[a];
+		keys[a] = keys[b];
+		keys[b] = key;
+		int number = order[a];
+		order[a] = order[b];
+		order[b] = number;
+	}
+
+	/**
+	 * 64-bit FNV-1a of the lower case address
+	 */
+	static long senderHash(String sender) {
+		if (sender == null)
+			return 0;
+		long hash = 0xcbf29ce484222325L;
+		String address = sender.toLowerCase(Locale.ROOT);
+		for (int i = 0; i < address.length(); i++) {
+			hash ^= address.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * 64-bit FNV-1a of the message id, ids are case sensitive. Never 0, which marks a record without hash.
+	 */
+	static long idHash(String id) {
+		if (id == null)
+			return 0;
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < id.length(); i++) {
+			hash ^= id.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * @return int - FLAG_* bits of the JavaMail flags
+	 */
+	static int flags(Flags flags) {
+		int bits = 0;
+		if (flags.contains(Flags.Flag.SEEN))
+			bits |= FLAG_SEEN;
+		if (flags.contains(Flags.Flag.ANSWERED))
+			bits |= FLAG_ANSWERED;
+		if (flags.contains(Flags.Flag.FLAGGED))
+			bits |= FLAG_FLAGGED;
+		if (flags.contains(Flags.Flag.DELETED))
+			bits |= FLAG_DELETED;
+		if (flags.contains(Flags.Flag.DRAFT))
+			bits |= FLAG_DRAFT;
+		return bits;
+	}
+
+	/**
+	 * Bring the store up to date with an IMAP folder. One STATUS, without opening the folder, reads MESSAGES,
+	 * UNSEEN, UIDNEXT, UIDVALIDITY and, with CONDSTORE, HIGHESTMODSEQ; if they match the last sync nothing else is
+	 * done. Otherwise the folder is opened and
+	 * <ul>
+	 * <li>the messages above the highest stored UID are appended, raw MIME included, from a single UID FETCH
+	 * whose responses are stored as they stream in;</li>
+	 * <li>the flags of the stored messages are refreshed, with CONDSTORE only those changed since the last
+	 * sync;</li>
+	 * <li>if the folder holds fewer of the stored messages than the store, UID SEARCH tells which were expunged,
+	 * they are marked {@link #FLAG_EXPUNGED}.</li>
+	 * </ul>
+	 * @param folder - closed IMAP folder
+	 * @return int - number of messages appended
+	 */
+	public int sync(Folder folder) throws MessagingException, IOException {
+		IMAPFolder imapFolder = (IMAPFolder) folder;
+		String name = folder.getFullName();
+		Status status = (Status) imapFolder.doCommand(protocol -> protocol.status(name,
+				protocol.hasCapability("CONDSTORE") ? CONDSTORE_STATUS_ITEMS : STATUS_ITEMS));
+		if (isFresh(status.uidvalidity, status.uidnext, status.total, status.unseen, status.highestmodseq))
+			return 0;
+		if (getUidValidity() != status.uidvalidity)
+			clear();
+		long changedSince = status.highestmodseq > 0 ? getHighestModSeq() : 0;
+
+		long start = System.nanoTime();
+		folder.open(Folder.READ_ONLY);
+		Metrics.MAIL_FOLDER_OPEN.recordSince(start);
+		int appended;
+		try {
+			start = System.nanoTime();
+			long lastUid = getLastUid();
+			appended = (Integer) imapFolder.doCommand(protocol -> fetchNew(protocol, name, lastUid));
+			Metrics.MAIL_FETCH.recordSince(start);
+			Metrics.MESSAGES_FETCHED.add(appended);
+			if (lastUid > 0) {
+				imapFolder.doCommand(protocol -> refreshFlags(protocol, lastUid, changedSince));
+				// fewer of the stored messages left in the folder than in the store
+				if (folder.getMessageCount() - appended != countUpTo(lastUid))
+					imapFolder.doCommand(protocol -> markExpunged(protocol, lastUid));
+			}
+		} finally {
+			folder.close(false);
+		}
+		setSyncState(status.uidvalidity, status.uidnext, status.total, status.unseen, status.highestmodseq);
+		return appended;
+	}
+
+	/**
+	 * Handles the FETCH responses of a command as they are read
+	 */
+	private interface FetchHandler {
+		void handle(FetchResponse response) throws ProtocolException;
+	}
+
+	/**
+	 * Write a command and read its responses one by one, so large responses are never all held at once
+	 * @param handler - receives the FETCH responses, may be NULL
+	 * @return List - untagged responses that are not FETCH, e.g. SEARCH
+	 */
+	private static List<Response> stream(IMAPProtocol protocol, String command, Argument args, FetchHandler handler)
+			throws ProtocolException {
+		synchronized (protocol) {
+			try {
+				String tag = protocol.writeCommand(command, args);
+				List<Response> untagged = new ArrayList<Response>();
+				while (true) {
+					Response response = protocol.readResponse();
+					if (response.isTagged() && tag.equals(response.getTag())) {
+						protocol.notifyResponseHandlers(untagged.toArray(new Response[0]));
+						protocol.handleResult(response);
+						return untagged;
+					}
+					if (response.isBYE())
+						protocol.handleResult(response);
+					if (response instanceof FetchResponse) {
+						if (handler != null)
+							handler.handle((FetchResponse) response);
+					} else if (response.isUnTagged()) {
+						untagged.add(response);
+					}
+				}
+			} catch (IOException e) {
+				throw new ProtocolException("Unable to read the " + command + " responses", e);
+			}
+		}
+	}
+
+	/**
+	 * UID FETCH lastUid+1:* with the whole message, appending each one as its response arrives
+	 */
+	private int fetchNew(IMAPProtocol protocol, String folder, long lastUid) throws ProtocolException {
+		Argument args = new Argument();
+		args.writeAtom((lastUid + 1) + ":*");
+		args.writeAtom("(UID FLAGS INTERNALDATE BODY.PEEK[])");
+		int[] appended = { 0 };
+		stream(protocol, "UID FETCH", args, response -> {
+			UID uid = response.getItem(UID.class);
+			BODY body = response.getItem(BODY.class);
+			// n:* always matches the last message, even below n
+			if (uid == null || body == null || uid.uid <= lastUid)
+				return;
+			FLAGS flags = response.getItem(FLAGS.class);
+			INTERNALDATE date = response.getItem(INTERNALDATE.class);
+			ByteArray mime = body.getByteArray();
+			try {
+				InternetHeaders headers = new InternetHeaders(
+						new ByteArrayInputStream(mime.getBytes(), mime.getStart(), mime.getCount()));
+				append(uid.uid, date == null ? 0 : date.getDate().getTime(), flags == null ? 0 : flags(flags),
+						sender(headers.getHeader("From", ",")), subject(headers.getHeader("Subject", null)),
+						headers.getHeader("Message-ID", null), folder, mime.getBytes(), mime.getStart(),
+						mime.getCount());
+			} catch (IOException | MessagingException e) {
+				throw new ProtocolException("Unable to store UID " + uid.uid, e);
+			}
+			appended[0]++;
+		});
+		return appended[0];
+	}
+
+	/**
+	 * UID FETCH 1:lastUid (FLAGS), with CHANGEDSINCE when the last sync recorded a HIGHESTMODSEQ
+	 * @return int - number of records whose flags changed
+	 */
+	private int refreshFlags(IMAPProtocol protocol, long lastUid, long changedSince) throws ProtocolException {
+		Argument args = new Argument();
+		args.writeAtom("1:" + lastUid);
+		args.writeAtom("(UID FLAGS)");
+		if (changedSince > 0)
+			args.writeAtom("(CHANGEDSINCE " + changedSince + ")");
+		int[] updated = { 0 };
+		stream(protocol, "UID FETCH", args, response -> {
+			UID uid = response.getItem(UID.class);
+			FLAGS flags = response.getItem(FLAGS.class);
+			int number = uid == null || flags == null || uid.uid > lastUid ? -1 : findByUid(uid.uid);
+			if (number < 0)
+				return;
+			int old = getFlags(number);
+			int now = old & ~MAIL_FLAGS | flags(flags);
+			if (now != old) {
+				setFlags(number, now);
+				updated[0]++;
+			}
+		});
+		return updated[0];
+	}
+
+	/**
+	 * UID SEARCH UID 1:lastUid, every stored message not listed is marked expunged
+	 * @return int - number of records newly marked
+	 */
+	private int markExpunged(IMAPProtocol protocol, long lastUid) throws ProtocolException {
+		Argument args = new Argument();
+		args.writeAtom("UID");
+		args.writeAtom("1:" + lastUid);
+		long[] present = new long[1024];
+		int count = 0;
+		for (Response response : stream(protocol, "UID SEARCH", args, null)) {
+			if (!(response instanceof IMAPResponse) || !((IMAPResponse) response).keyEquals("SEARCH"))
+				continue;
+			long uid;
+			while ((uid = response.readLong()) != -1) {
+				if (count == present.length)
+					present = Arrays.copyOf(present, count * 2);
+				present[count++] = uid;
+			}
+		}
+		Arrays.sort(present, 0, count);
+		int marked = 0;
+		for (int i = 0, n = size(); i < n; i++) {
+			long uid = getUid(i);
+			int flags = getFlags(i);
+			if (uid <= lastUid && (flags & FLAG_EXPUNGED) == 0 && Arrays.binarySearch(present, 0, count, uid) < 0) {
+				setFlags(i, flags | FLAG_EXPUNGED);
+				marked++;
+			}
+		}
+		return marked;
+	}
+
+	/**
+	 * @return int - records up to the UID that are not expunged
+	 */
+	private int countUpTo(long lastUid) {
+		int count = 0;
+		for (int i = 0, n = size(); i < n && getUid(i) <= lastUid; i++) {
+			if (!isExpunged(i))
+				count++;
+		}
+		return count;
+	}
+
+	private static String sender(String from) {
+		if (from == null)
+			return null;
+		try {
+			InternetAddress[] addresses = InternetAddress.parseHeader(from, false);
+			return addresses.length == 0 ? null : addresses[0].getAddress();
+		} catch (AddressException e) {
+			return from;
+		}
+	}
+
+	private static String subject(String subject) {
+		if (subject == null)
+			return null;
+		try {
+			return MimeUtility.decodeText(MimeUtility.unfold(subject));
+		} catch (UnsupportedEncodingException e) {
+			return subject;
+		}
+	}
+
+	/**
+	 * Bring the store up to date with a Graph mailbox, headers only. Every folder is read with its own
+	 * messages/delta query, Graph has no delta over /me/messages. The first round lists every message, later
+	 * rounds resume from the saved deltaLink and only return what was added, changed or removed since. New
+	 * messages are appended, changed ones get their read and attachment flags updated in place and removed ones,
+	 * like the messages of a deleted folder, are marked {@link #FLAG_EXPUNGED}. Record numbers stay stable, so
+	 * the search index only has to add the new records.
+	 * @param accessToken - Authentication token
+	 * @param userPath - /me or /users/{id | userPrincipalName}
+	 * @return long - number of messages added, changed or removed
+	 */
+	@SuppressWarnings("try")
+	public synchronized long sync(String accessToken, String userPath) throws IOException {
+		Properties links = loadDeltaLinks();
+		String root = Graph.getServiceRoot(accessToken) + userPath;
+		Set<String> folders = new HashSet<String>();
+		try (GraphTracer.Trace trace = GraphTracer.begin("storeFolders")) {
+			GraphStream.streamPages(accessToken, HttpUrl.get(root + "/mailFolders/delta").newBuilder()
+					.addQueryParameter("$select", "id").build(), "odata.maxpagesize=" + GraphStream.MAX_PAGE_SIZE,
+					GraphStream::parseFolder, folder -> folders.add(folder.id));
+		}
+		Map<Long, Integer> byId = idMap();
+		long[] changes = { 0 };
+		for (String folder : links.stringPropertyNames()) {
+			if (!folders.contains(folder)) {
+				changes[0] += expungeFolder(folder, null, byId);
+				links.remove(folder);
+			}
+		}
+		IOException[] failure = { null };
+		long[] uid = { Math.max(getUidNext(), getLastUid() + 1) };
+		for (String folder : folders) {
+			String link = links.getProperty(folder);
+			// a full round lists every message of the folder, the records it does not list are gone
+			boolean full = link == null;
+			Set<Integer> listed = new HashSet<Integer>();
+			Consumer<GraphStream.MessageSummary> apply = message -> {
+				if (failure[0] != null)
+					return;
+				try {
+					int number = find(byId, message.id);
+					if (message.removed) {
+						// an id that moved on keeps its record
+						if (number >= 0 && folder.equals(getFolder(number))) {
+							setFlags(number, getFlags(number) | FLAG_EXPUNGED);
+							byId.remove(idHash(message.id));
+							changes[0]++;
+						}
+						return;
+					}
+					int flags = (message.isRead ? FLAG_SEEN : 0) | (message.hasAttachments ? FLAG_ATTACHMENT : 0);
+					if (number < 0) {
+						number = append(uid[0]++, parseDate(message.receivedDateTime), flags, message.fromAddress,
+								message.subject, message.id, folder, null);
+						byId.put(idHash(message.id), number);
+						changes[0]++;
+					} else if ((getFlags(number) & (FLAG_SEEN | FLAG_ATTACHMENT)) != flags) {
+						setFlags(number, getFlags(number) & ~(FLAG_SEEN | FLAG_ATTACHMENT) | flags);
+						changes[0]++;
+					}
+					listed.add(number);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			};
+			HttpUrl messages = HttpUrl.get(root).newBuilder().addPathSegment("mailFolders").addPathSegment(folder)
+					.addPathSegments("messages/delta")
+					.addQueryParameter("$select", "from,subject,receivedDateTime,isRead,hasAttachments").build();
+			String next;
+			try (GraphTracer.Trace trace = GraphTracer.begin("storeDelta")) {
+				next = GraphStream.streamDelta(accessToken, link == null ? messages : HttpUrl.get(link),
+						GraphStream::parseMessage, apply);
+				if (next == null && !full) {
+					// the deltaLink expired, list the folder again
+					full = true;
+					listed.clear();
+					next = GraphStream.streamDelta(accessToken, messages, GraphStream::parseMessage, apply);
+				}
+			}
+			if (failure[0] != null)
+				throw failure[0];
+			if (full)
+				changes[0] += expungeFolder(folder, listed, byId);
+			if (next != null)
+				links.setProperty(folder, next);
+		}
+		saveDeltaLinks(links);
+		setSyncState(0, uid[0]);
+		return changes[0];
+	}
+	/**
+	 * @return Map - id hash to record number of every record not expunged. Records written before the hash
+	 *         existed get it here.
+	 */
+	private Map<Long, Integer> idMap() throws IOException {
+		int count = size();
+		Map<Long, Integer> byId = new HashMap<Long, Integer>(count * 2);
+		for (int i = 0; i < count; i++) {
+			if (isExpunged(i))
+				continue;
+			long hash = index.getLong(record(i) + ID_HASH);
+			if (hash == 0) {
+				hash = idHash(getId(i));
+				index.putLong(record(i) + ID_HASH, hash);
+			}
+			byId.put(hash, i);
+		}
+		return byId;
+	}
+
+	/**
+	 * @return int - record number of the message id, -1 if not stored or expunged
+	 */
+	private int find(Map<Long, Integer> byId, String id) throws IOException {
+		Integer number = byId.get(idHash(id));
+		// a hash collision is taken for a new message
+		return number != null && id.equals(getId(number)) ? number : -1;
+	}
+
+	/**
+	 * Mark the records of a folder expunged
+	 * @param keep - records still in the folder, NULL if the folder is gone
+	 * @return int - number of records marked
+	 */
+	private int expungeFolder(String folder, Set<Integer> keep, Map<Long, Integer> byId) throws IOException {
+		int marked = 0;
+		for (int i = size() - 1; i >= 0; i--) {
+			if (isExpunged(i) || (keep != null && keep.contains(i)) || !folder.equals(getFolder(i)))
+				continue;
+			setFlags(i, getFlags(i) | FLAG_EXPUNGED);
+			byId.remove(index.getLong(record(i) + ID_HASH));
+			marked++;
+		}
+		return marked;
+	}
+
+	private Properties loadDeltaLinks() throws IOException {
+		Properties links = new Properties();
+		try (Reader reader = Files.newBufferedReader(dir.resolve("delta.links"), StandardCharsets.UTF_8)) {
+			links.load(reader);
+		} catch (NoSuchFileException e) {
+			// never synced with Graph
+		}
+		return links;
+	}
+
+	private void saveDeltaLinks(Properties links) throws IOException {
+		Path file = dir.resolve("delta.links");
+		Path temporary = file.resolveSibling("delta.links.tmp");
+		try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+			links.store(writer, "Graph messages/delta links, by folder id");
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static long parseDate(String dateTime) {
+		if (dateTime == null)
+			return 0;
+		try {
+			return Instant.parse(dateTime).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return 0;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (index != null)
+				index.force();
+			if (segmentChannel != null)
+				segmentChannel.close();
+			indexChannel.close();
+			stringsChannel.close();
+		} finally {
+			if (lock.isValid())
+				lock.release();
+			lockChannel.close();
+		}
+	}
+}
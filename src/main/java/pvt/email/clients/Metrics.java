@@ -0,0 +1,191 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import okhttp3.Interceptor;
+
+/**
+ * <p>
+ * Latency histograms and counters of the client operations. <br>
+ * Every metric is registered over JMX (domain pvt.email.clients) when created. If the system property
+ * pvt.email.metrics.port is set, they are also served in Prometheus text format, see {@link MetricsEndpoint}.
+ * </p>
+ * Usage on the hot path, no lookups and no allocation:
+ * <pre>
+ * long start = System.nanoTime();
+ * store.connect(...);
+ * Metrics.MAIL_CONNECT.recordSince(start);
+ * </pre>
+ */
+public class Metrics {
+
+	public static final String PORT_PROPERTY = "pvt.email.metrics.port";
+
+	private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	private static final Map<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+	/** Mail store connect, including TLS and login */
+	public static final LatencyHistogram MAIL_CONNECT = histogram("mail_connect");
+	/** Mail folder open (IMAP SELECT/EXAMINE) */
+	public static final LatencyHistogram MAIL_FOLDER_OPEN = histogram("mail_folder_open");
+	/** Statistics of all folders of a mailbox, IMAP STATUS or Graph mailFolders */
+	public static final LatencyHistogram FOLDER_STATUS = histogram("folder_status");
+	/** Fetching the messages of a folder */
+	public static final LatencyHistogram MAIL_FETCH = histogram("mail_fetch");
+	/** SMTP send, including connect and authentication */
+	public static final LatencyHistogram MAIL_SEND = histogram("mail_send");
+	/** OAuth token acquisition */
+	public static final LatencyHistogram TOKEN_ACQUIRE = histogram("token_acquire");
+	/** Every Graph HTTP request, retries counted separately */
+	public static final LatencyHistogram GRAPH_REQUEST = histogram("graph_request");
+	/** Every Graph collection page, request plus deserialization */
+	public static final LatencyHistogram GRAPH_PAGE = histogram("graph_page");
+	/** Evaluating the message rules against one message */
+	public static final LatencyHistogram RULE_EVALUATION = histogram("rule_evaluation");
+	/** Daemon API request, from the request line to the last byte of the response */
+	public static final LatencyHistogram DAEMON_REQUEST = histogram("daemon_request");
+
+	public static final Counter MAIL_ERRORS = counter("mail_errors");
+	public static final Counter GRAPH_ERRORS = counter("graph_errors");
+	public static final Counter GRAPH_THROTTLED = counter("graph_throttled");
+	public static final Counter MESSAGES_FETCHED = counter("messages_fetched");
+	public static final Counter FOLDERS_CRAWLED = counter("folders_crawled");
+	public static final Counter MESSAGES_EXPORTED = counter("messages_exported");
+	public static final Counter DAEMON_ERRORS = counter("daemon_errors");
+
+	static {
+		if (System.getProperty(PORT_PROPERTY) != null) {
+			try {
+				MetricsEndpoint.start(Integer.parseInt(System.getProperty(PORT_PROPERTY)));
+			} catch (IOException | NumberFormatException e) {
+				System.err.println("Unable to start the metrics endpoint - " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * JMX view of a {@link LatencyHistogram}
+	 */
+	public interface LatencyMXBean {
+		long getCount();
+
+		double getMeanMillis();
+
+		double getP50Millis();
+
+		double getP90Millis();
+
+		double getP99Millis();
+
+		double getMaxMillis();
+	}
+
+	/**
+	 * JMX view of a {@link Counter}
+	 */
+	public interface CounterMXBean {
+		long getCount();
+	}
+
+	/**
+	 * Monotonic counter
+	 */
+	public static class Counter implements CounterMXBean {
+		private final String name;
+		private final LongAdder adder = new LongAdder();
+
+		Counter(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void increment() {
+			adder.increment();
+		}
+
+		public void add(long delta) {
+			adder.add(delta);
+		}
+
+		@Override
+		public long getCount() {
+			return adder.sum();
+		}
+	}
+
+	/**
+	 * @param name - metric name, lower case with underscores
+	 * @return LatencyHistogram - the histogram with that name, created and registered on first use
+	 */
+	public static LatencyHistogram histogram(String name) {
+		return histograms.computeIfAbsent(name, n -> register(new LatencyHistogram(n), "Latency", n));
+	}
+
+	/**
+	 * @param name - metric name, lower case with underscores
+	 * @return Counter - the counter with that name, created and registered on first use
+	 */
+	public static Counter counter(String name) {
+		return counters.computeIfAbsent(name, n -> register(new Counter(n), "Counter", n));
+	}
+
+	/**
+	 * @return Map - all histograms, sorted by name
+	 */
+	static Map<String, LatencyHistogram> histograms() {
+		return new TreeMap<String, LatencyHistogram>(histograms);
+	}
+
+	/**
+	 * @return Map - all counters, sorted by name
+	 */
+	static Map<String, Counter> counters() {
+		return new TreeMap<String, Counter>(counters);
+	}
+
+	private static <T> T register(T metric, String type, String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("pvt.email.clients:type=" + type + ",name=" + name);
+			if (!server.isRegistered(objectName))
+				server.registerMBean(metric, objectName);
+		} catch (JMException e) {
+			System.err.println("Unable to register " + name + " over JMX - " + e.getMessage());
+		}
+		return metric;
+	}
+
+	/**
+	 * @return Interceptor - times every Graph HTTP request into {@link #GRAPH_REQUEST}, and counts errors and throttling
+	 */
+	static Interceptor graphRequestInterceptor() {
+		return chain -> {
+			long start = System.nanoTime();
+			try {
+				okhttp3.Response response = chain.proceed(chain.request());
+				if (response.code() == 429 || response.code() == 503)
+					GRAPH_THROTTLED.increment();
+				else if (response.code() >= 400)
+					GRAPH_ERRORS.increment();
+				return response;
+			} catch (IOException e) {
+				GRAPH_ERRORS.increment();
+				throw e;
+			} finally {
+				GRAPH_REQUEST.recordSince(start);
+			}
+		};
+	}
+}
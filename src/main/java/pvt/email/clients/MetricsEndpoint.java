@@ -0,0 +1,90 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>
+ * Local HTTP endpoint serving {@link Metrics} in the Prometheus text format, on http://localhost:&lt;port&gt;/metrics <br>
+ * Latency histograms are exposed as summaries (quantiles 0.5, 0.9, 0.99 plus _sum and _count, in seconds),
+ * counters as counters. Only bound to the loopback address.
+ * </p>
+ */
+public class MetricsEndpoint {
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+	private static final String PREFIX = "email_client_";
+
+	private static HttpServer server;
+
+	/**
+	 * Start the endpoint, once per process
+	 * @param port - local port to listen on, 0 picks a free one
+	 * @return int - the port the endpoint listens on
+	 */
+	public static synchronized int start(int port) throws IOException {
+		if (server == null) {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			server.createContext("/metrics", MetricsEndpoint::handle);
+			server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "metrics-endpoint");
+				thread.setDaemon(true);
+				return thread;
+			}));
+			server.start();
+		}
+		return server.getAddress().getPort();
+	}
+
+	public static synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	static void handle(HttpExchange exchange) throws IOException {
+		byte[] body = render().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * @return String - all metrics in the Prometheus text format
+	 */
+	static String render() {
+		StringBuilder text = new StringBuilder(4096);
+		for (Map.Entry<String, LatencyHistogram> entry : Metrics.histograms().entrySet()) {
+			String name = PREFIX + entry.getKey() + "_seconds";
+			LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot();
+			text.append("# TYPE ").append(name).append(" summary\n");
+			for (double quantile : QUANTILES) {
+				text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+						.append(seconds(snapshot.getQuantileNanos(quantile))).append('\n');
+			}
+			text.append(name).append("_sum ").append(seconds(snapshot.getSumNanos())).append('\n');
+			text.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+		}
+		for (Map.Entry<String, Metrics.Counter> entry : Metrics.counters().entrySet()) {
+			String name = PREFIX + entry.getKey() + "_total";
+			text.append("# TYPE ").append(name).append(" counter\n");
+			text.append(name).append(' ').append(entry.getValue().getCount()).append('\n');
+		}
+		return text.toString();
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+}
@@ -0,0 +1,188 @@
+package pvt.email.clients;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Compact, indexed file of recorded transport exchanges, written by {@link TransportRecorder}. <br>
+ * Layout: a header, the entries back to back and an index of all entries at the end. <br>
+ * Header - magic, version <br>
+ * Entry - kind, key, start (nanos since the recording was opened), payload length, payload <br>
+ * Index - count, then key and file offset of every entry <br>
+ * Trailer - offset of the index, magic
+ * </p>
+ * Entries with the same key (e.g. the same URL fetched twice) are kept in recording order.
+ */
+public class RecordingFile {
+
+	public static final byte HTTP = 1;
+	public static final byte SOCKET = 2;
+
+	private static final int MAGIC = 0x45544352; // "ETCR"
+	private static final short VERSION = 1;
+	private static final int TRAILER_LENGTH = Long.BYTES + Integer.BYTES;
+
+	/**
+	 * One recorded exchange
+	 */
+	public static class Entry {
+		public final byte kind;
+		public final String key;
+		public final long startNanos;
+		public final byte[] payload;
+
+		Entry(byte kind, String key, long startNanos, byte[] payload) {
+			this.kind = kind;
+			this.key = key;
+			this.startNanos = startNanos;
+			this.payload = payload;
+		}
+
+		/**
+		 * @return DataInputStream - reads the payload
+		 */
+		public DataInputStream payloadStream() {
+			return new DataInputStream(new ByteArrayInputStream(payload));
+		}
+	}
+
+	/**
+	 * Appends entries to a new recording. Thread safe, entries are written in the order they are appended.
+	 */
+	public static class Writer implements Closeable {
+		private final DataOutputStream out;
+		private final long openedAt = System.nanoTime();
+		private final List<String> indexKeys = new ArrayList<String>();
+		private final List<Long> indexOffsets = new ArrayList<Long>();
+		private final ByteArrayOutputStream entryHeader = new ByteArrayOutputStream();
+		private final DataOutputStream entryHeaderOut = new DataOutputStream(entryHeader);
+		private long position;
+		private boolean closed;
+
+		public Writer(Path file) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile()), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			position = out.size();
+		}
+
+		/**
+		 * @param kind - {@link RecordingFile#HTTP} or {@link RecordingFile#SOCKET}
+		 * @param key - lookup key of the exchange
+		 * @param startNanos - when the exchange started, as System.nanoTime()
+		 * @param payload - encoded exchange
+		 */
+		public synchronized void append(byte kind, String key, long startNanos, byte[] payload) throws IOException {
+			if (closed)
+				throw new IOException("Recording is closed");
+			// DataOutputStream.size() saturates at 2GB, so the entry header goes through
+			// a scratch buffer to keep the long file position ourselves
+			entryHeader.reset();
+			entryHeaderOut.writeByte(kind);
+			entryHeaderOut.writeUTF(key);
+			entryHeaderOut.writeLong(startNanos - openedAt);
+			entryHeaderOut.writeInt(payload.length);
+			indexKeys.add(key);
+			indexOffsets.add(position);
+			entryHeader.writeTo(out);
+			out.write(payload);
+			position += entryHeader.size() + payload.length;
+		}
+
+		/**
+		 * Write the index and trailer, then close the file
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			long indexOffset = position;
+			out.writeInt(indexKeys.size());
+			for (int i = 0; i < indexKeys.size(); i++) {
+				out.writeUTF(indexKeys.get(i));
+				out.writeLong(indexOffsets.get(i));
+			}
+			out.writeLong(indexOffset);
+			out.writeInt(MAGIC);
+			out.close();
+		}
+	}
+
+	/**
+	 * Random access to a finished recording. Only the index is loaded up front, entries are read on demand.
+	 */
+	public static class Reader implements Closeable {
+		private final RandomAccessFile file;
+		private final Map<String, List<Long>> index = new HashMap<String, List<Long>>();
+
+		public Reader(Path path) throws IOException {
+			file = new RandomAccessFile(path.toFile(), "r");
+			if (file.length() < Integer.BYTES + Short.BYTES + TRAILER_LENGTH || file.readInt() != MAGIC)
+				throw new IOException(path + " is not a recording");
+			if (file.readShort() != VERSION)
+				throw new IOException(path + " was written by an unsupported version");
+			file.seek(file.length() - TRAILER_LENGTH);
+			long indexOffset = file.readLong();
+			if (file.readInt() != MAGIC)
+				throw new IOException(path + " is truncated, the recording was not closed");
+
+			FileChannel channel = file.getChannel();
+			ByteBuffer indexBuffer = ByteBuffer.allocate((int) (file.length() - TRAILER_LENGTH - indexOffset));
+			channel.read(indexBuffer, indexOffset);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(indexBuffer.array()));
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				index.computeIfAbsent(key, k -> new ArrayList<Long>(1)).add(in.readLong());
+			}
+		}
+
+		/**
+		 * @param key - lookup key of the exchange
+		 * @return int - how many entries were recorded with this key
+		 */
+		public int count(String key) {
+			List<Long> offsets = index.get(key);
+			return offsets == null ? 0 : offsets.size();
+		}
+
+		/**
+		 * @param key - lookup key of the exchange
+		 * @param occurrence - 0 for the first exchange recorded with this key, 1 for the second and so on
+		 * @return Entry - the recorded exchange, NULL if there is none
+		 */
+		public synchronized Entry read(String key, int occurrence) throws IOException {
+			List<Long> offsets = index.get(key);
+			if (offsets == null || occurrence >= offsets.size())
+				return null;
+			file.seek(offsets.get(occurrence));
+			byte kind = file.readByte();
+			String storedKey = file.readUTF();
+			long startNanos = file.readLong();
+			byte[] payload = new byte[file.readInt()];
+			file.readFully(payload);
+			return new Entry(kind, storedKey, startNanos, payload);
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+}
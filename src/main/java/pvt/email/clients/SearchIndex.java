@@ -0,0 +1,589 @@
+package pvt.email.clients;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * <p>
+ * Offline full-text index over a {@link MessageStore}: subjects, senders and decoded text bodies. <br>
+ * Each term has one postings list, a byte array of (document delta, term frequency) pairs as varints, appended
+ * to as new messages are indexed. Document ids are the record numbers of the store, so they only grow and the
+ * deltas stay small. Subject terms count 3 times, sender terms twice. Results are ranked with BM25, scaled by the
+ * share of query terms a message contains. <br>
+ * The index is kept in search.idx next to the store and rebuilt from scratch when the store was cleared. Each
+ * update appends one block with the new documents and the tail of every postings list they extended, so saving
+ * costs what was added, not the whole index. Once there are {@link #MAX_BLOCKS} blocks the file is rewritten as
+ * one. A loaded index stays in memory for the life of the process, opening it again only reads the blocks
+ * appended since.
+ * </p>
+ * File layout:
+ * <pre>
+ * header  magic, version, stamp (new with every rewrite), store generation
+ * block   length, first document, document count, total length, document lengths,
+ *         term count, per term: term, added docFreq, lastDoc, added length, postings bytes
+ * </pre>
+ */
+public class SearchIndex {
+
+	private static final int MAGIC = 0x46544958;
+	private static final int VERSION = 2;
+	private static final String FILE = "search.idx";
+	private static final int HEADER_SIZE = 24;
+	/** Blocks in the file before it is rewritten as one */
+	static final int MAX_BLOCKS = 16;
+
+	private static final int SUBJECT_WEIGHT = 3;
+	private static final int SENDER_WEIGHT = 2;
+	/** Body text indexed per message, in characters */
+	static final int MAX_BODY = 64 * 1024;
+	private static final int MIN_TERM = 2;
+	private static final int MAX_TERM = 40;
+	private static final float K1 = 1.2f;
+	private static final float B = 0.75f;
+
+	/**
+	 * Postings list of one term
+	 */
+	static final class Postings {
+		byte[] bytes = new byte[8];
+		int length;
+		int lastDoc = -1;
+		int docFreq;
+		/** Bytes and documents already in the file */
+		int savedLength;
+		int savedDocFreq;
+
+		void add(int doc, int frequency) {
+			if (bytes.length - length < 10)
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			writeVarint(doc - lastDoc);
+			writeVarint(frequency);
+			lastDoc = doc;
+			docFreq++;
+		}
+
+		private void writeVarint(int value) {
+			while ((value & ~0x7F) != 0) {
+				bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[length++] = (byte) value;
+		}
+	}
+
+	/**
+	 * Ranked results, best first
+	 */
+	public static final class Hits {
+		/** Record numbers in the message store */
+		public final int[] records;
+		public final float[] scores;
+		/** Messages matching at least one term */
+		public final int total;
+
+		Hits(int[] records, float[] scores, int total) {
+			this.records = records;
+			this.scores = scores;
+			this.total = total;
+		}
+	}
+
+	/** Indexes loaded by this process, by store directory */
+	private static final Map<Path, SearchIndex> LOADED = new HashMap<Path, SearchIndex>();
+
+	private final Path file;
+	/** The open store of the directory, a store is only open once per process */
+	private MessageStore store;
+	private final Map<String, Postings> terms = new HashMap<String, Postings>();
+	private int[] docLengths = new int[1024];
+	private int docCount;
+	private long totalLength;
+	private long generation;
+	/** Identifies the file content loaded, 0 if nothing was */
+	private long stamp;
+	/** End of the last complete block read or written */
+	private long fileLength;
+	private int blocks;
+	/** Documents already in the file */
+	private int savedDocs;
+
+	private SearchIndex(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Load the index of a store, or start an empty one. The index stays loaded, later calls only read what
+	 * was appended to the file since.
+	 */
+	public static SearchIndex open(MessageStore store) throws IOException {
+		Path directory = store.getDirectory().toAbsolutePath();
+		SearchIndex index;
+		synchronized (LOADED) {
+			index = LOADED.computeIfAbsent(directory, d -> new SearchIndex(d.resolve(FILE)));
+		}
+		synchronized (index) {
+			index.store = store;
+			index.load();
+			if (index.generation != store.getGeneration() || index.docCount > store.size())
+				index.reset();
+		}
+		return index;
+	}
+
+	/**
+	 * Index the messages the store got since the last update and save the index if anything was added.
+	 * Meant to be called right after a sync.
+	 * @return int - number of messages indexed
+	 */
+	public static int update(MessageStore store) throws IOException, MessagingException {
+		SearchIndex index = open(store);
+		synchronized (index) {
+			int added = index.update();
+			if (added > 0)
+				index.append();
+			return added;
+		}
+	}
+
+	private void reset() {
+		terms.clear();
+		docLengths = new int[1024];
+		docCount = 0;
+		totalLength = 0;
+		generation = store.getGeneration();
+		stamp = 0;
+		fileLength = 0;
+		blocks = 0;
+		savedDocs = 0;
+	}
+
+	/**
+	 * @return int - number of messages indexed
+	 */
+	public int size() {
+		return docCount;
+	}
+
+	/**
+	 * Index the records of the store not indexed yet
+	 * @return int - number of messages indexed
+	 */
+	public synchronized int update() throws IOException, MessagingException {
+		int first = docCount;
+		int last = store.size();
+		Map<String, int[]> frequencies = new HashMap<String, int[]>();
+		for (int doc = first; doc < last; doc++) {
+			frequencies.clear();
+			String[] strings = store.readStrings(doc);
+			int length = tokenize(strings[0], SUBJECT_WEIGHT, frequencies)
+					+ tokenize(strings[1], SENDER_WEIGHT, frequencies);
+			MimeMessage message = store.readMessage(doc);
+			if (message != null) {
+				StringBuilder body = new StringBuilder();
+				appendText(message, body);
+				length += tokenize(body.length() > MAX_BODY ? body.substring(0, MAX_BODY) : body.toString(), 1,
+						frequencies);
+			}
+			for (Map.Entry<String, int[]> term : frequencies.entrySet())
+				terms.computeIfAbsent(term.getKey(), t -> new Postings()).add(doc, term.getValue()[0]);
+			if (doc == docLengths.length)
+				docLengths = Arrays.copyOf(docLengths, docLengths.length * 2);
+			docLengths[doc] = length;
+			totalLength += length;
+			docCount = doc + 1;
+		}
+		return last - first;
+	}
+
+	/**
+	 * Add the terms of a text to the frequencies
+	 * @return int - number of terms, weighted
+	 */
+	private static int tokenize(String text, int weight, Map<String, int[]> frequencies) {
+		if (text == null)
+			return 0;
+		int count = 0;
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (inWord && start < 0) {
+				start = i;
+			} else if (!inWord && start >= 0) {
+				int length = i - start;
+				if (length >= MIN_TERM && length <= MAX_TERM) {
+					String term = text.substring(start, i).toLowerCase(Locale.ROOT);
+					frequencies.computeIfAbsent(term, t -> new int[1])[0] += weight;
+					count += weight;
+				}
+				start = -1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Decoded text of a message part: text/plain preferred over text/html, attachments left out
+	 */
+	static void appendText(Part part, StringBuilder text) throws MessagingException, IOException {
+		if (text.length() >= MAX_BODY || Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()))
+			return;
+		try {
+			if (part.isMimeType("text/plain")) {
+				text.append(part.getContent()).append('\n');
+			} else if (part.isMimeType("text/html")) {
+				text.append(stripTags(part.getContent().toString())).append('\n');
+			} else if (part.isMimeType("multipart/alternative")) {
+				Multipart alternatives = (Multipart) part.getContent();
+				BodyPart chosen = null;
+				for (int i = 0; i < alternatives.getCount(); i++) {
+					BodyPart alternative = alternatives.getBodyPart(i);
+					if (alternative.isMimeType("text/plain") || chosen == null)
+						chosen = alternative;
+				}
+				if (chosen != null)
+					appendText(chosen, text);
+			} else if (part.isMimeType("multipart/*")) {
+				Multipart parts = (Multipart) part.getContent();
+				for (int i = 0; i < parts.getCount(); i++)
+					appendText(parts.getBodyPart(i), text);
+			} else if (part.isMimeType("message/rfc822")) {
+				appendText((Part) part.getContent(), text);
+			}
+		} catch (IOException | ClassCastException e) {
+			// unknown charset or broken structure, index what could be read
+		}
+	}
+
+	private static String stripTags(String html) {
+		return html.replaceAll("(?is)<(script|style)[^>]*>.*?</\\1>", " ").replaceAll("<[^>]*>", " ")
+				.replace("&nbsp;", " ").replace("&amp;", "&").replace("&lt;", "<").replace("&gt;", ">");
+	}
+
+	/**
+	 * Ranked search
+	 * @param query - words to look for, any order
+	 * @param limit - maximum number of hits returned
+	 * @return Hits - best first
+	 */
+	public synchronized Hits search(String query, int limit) {
+		Map<String, int[]> parsed = new HashMap<String, int[]>();
+		tokenize(query, 1, parsed);
+		Set<String> queryTerms = new LinkedHashSet<String>(parsed.keySet());
+		if (queryTerms.isEmpty() || docCount == 0 || limit <= 0)
+			return new Hits(new int[0], new float[0], 0);
+
+		float[] scores = new float[docCount];
+		byte[] matched = new byte[docCount];
+		int[] touched = new int[256];
+		int touchedCount = 0;
+		float averageLength = Math.max(1f, (float) totalLength / docCount);
+		for (String term : queryTerms) {
+			Postings postings = terms.get(term);
+			if (postings == null)
+				continue;
+			float idf = (float) Math.log(1 + (docCount - postings.docFreq + 0.5) / (postings.docFreq + 0.5));
+			byte[] bytes = postings.bytes;
+			int position = 0;
+			int doc = -1;
+			while (position < postings.length) {
+				int delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = bytes[position++];
+					delta |= (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				int frequency = 0;
+				shift = 0;
+				do {
+					b = bytes[position++];
+					frequency |= (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				doc += delta;
+
+				if (matched[doc] == 0) {
+					if (touchedCount == touched.length)
+						touched = Arrays.copyOf(touched, touchedCount * 2);
+					touched[touchedCount++] = doc;
+				}
+				if (matched[doc] < Byte.MAX_VALUE)
+					matched[doc]++;
+				float norm = K1 * (1 - B + B * docLengths[doc] / averageLength);
+				scores[doc] += idf * frequency * (K1 + 1) / (frequency + norm);
+			}
+		}
+
+		// top hits with a min-heap on primitive arrays, messages expunged since they were indexed left out
+		int size = Math.min(limit, touchedCount);
+		int[] heap = new int[size];
+		float[] heapScores = new float[size];
+		int heapSize = 0;
+		int total = 0;
+		for (int i = 0; i < touchedCount; i++) {
+			int doc = touched[i];
+			if (store.isExpunged(doc))
+				continue;
+			total++;
+			float score = scores[doc] * matched[doc] / queryTerms.size();
+			if (heapSize < size) {
+				heap[heapSize] = doc;
+				heapScores[heapSize] = score;
+				siftUp(heap, heapScores, heapSize++);
+			} else if (score > heapScores[0]) {
+				heap[0] = doc;
+				heapScores[0] = score;
+				siftDown(heap, heapScores, heapSize);
+			}
+		}
+		int[] records = new int[heapSize];
+		float[] ranked = new float[heapSize];
+		for (int i = heapSize - 1; i >= 0; i--) {
+			records[i] = heap[0];
+			ranked[i] = heapScores[0];
+			heap[0] = heap[i];
+			heapScores[0] = heapScores[i];
+			siftDown(heap, heapScores, i);
+		}
+		return new Hits(records, ranked, total);
+	}
+
+	private static void siftUp(int[] heap, float[] scores, int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (scores[parent] <= scores[i])
+				return;
+			swap(heap, scores, i, parent);
+			i = parent;
+		}
+	}
+
+	private static void siftDown(int[] heap, float[] scores, int size) {
+		int i = 0;
+		while (true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < size && scores[left] < scores[smallest])
+				smallest = left;
+			if (right < size && scores[right] < scores[smallest])
+				smallest = right;
+			if (smallest == i)
+				return;
+			swap(heap, scores, i, smallest);
+			i = smallest;
+		}
+	}
+
+	private static void swap(int[] heap, float[] scores, int a, int b) {
+		int doc = heap[a];
+		heap[a] = heap[b];
+		heap[b] = doc;
+		float score = scores[a];
+		scores[a] = scores[b];
+		scores[b] = score;
+	}
+
+	/**
+	 * Write the index next to the store as one block, replacing the previous one atomically
+	 */
+	public synchronized void save() throws IOException {
+		Path temporary = file.resolveSibling(FILE + ".tmp");
+		long newStamp = System.nanoTime() ^ System.currentTimeMillis() << 20;
+		byte[] block = block(true);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4);
+		header.putInt(MAGIC).putInt(VERSION).putLong(newStamp).putLong(generation).putInt(block.length).flip();
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			writeFully(channel, header, 0);
+			writeFully(channel, ByteBuffer.wrap(block), HEADER_SIZE + 4);
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		stamp = newStamp;
+		fileLength = HEADER_SIZE + 4 + block.length;
+		blocks = 1;
+		saved();
+	}
+
+	/**
+	 * Append what was indexed since the last save or append as one block, or rewrite the file once it has
+	 * {@link #MAX_BLOCKS} blocks
+	 */
+	private void append() throws IOException {
+		if (stamp == 0 || blocks >= MAX_BLOCKS) {
+			save();
+			return;
+		}
+		byte[] block = block(false);
+		ByteBuffer length = ByteBuffer.allocate(4);
+		length.putInt(block.length).flip();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			// a block cut short by a crash is overwritten
+			channel.truncate(fileLength);
+			writeFully(channel, length, fileLength);
+			writeFully(channel, ByteBuffer.wrap(block), fileLength + 4);
+		}
+		fileLength += 4 + block.length;
+		blocks++;
+		saved();
+	}
+
+	/**
+	 * @param all - the whole index, otherwise only what is not in the file yet
+	 */
+	private byte[] block(boolean all) throws IOException {
+		int first = all ? 0 : savedDocs;
+		List<Map.Entry<String, Postings>> changed = new ArrayList<Map.Entry<String, Postings>>();
+		for (Map.Entry<String, Postings> term : terms.entrySet()) {
+			if (all || term.getValue().length > term.getValue().savedLength)
+				changed.add(term);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(first);
+			out.writeInt(docCount);
+			out.writeLong(totalLength);
+			for (int i = first; i < docCount; i++)
+				out.writeInt(docLengths[i]);
+			out.writeInt(changed.size());
+			for (Map.Entry<String, Postings> term : changed) {
+				Postings postings = term.getValue();
+				int from = all ? 0 : postings.savedLength;
+				out.writeUTF(term.getKey());
+				out.writeInt(postings.docFreq - (all ? 0 : postings.savedDocFreq));
+				out.writeInt(postings.lastDoc);
+				out.writeInt(postings.length - from);
+				out.write(postings.bytes, from, postings.length - from);
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private void saved() {
+		savedDocs = docCount;
+		for (Postings postings : terms.values()) {
+			postings.savedLength = postings.length;
+			postings.savedDocFreq = postings.docFreq;
+		}
+	}
+
+	/**
+	 * Read the blocks appended since the last load, or the whole file if it was rewritten meanwhile
+	 */
+	private void load() throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if (size < HEADER_SIZE || !readFully(channel, header, 0) || header.getInt(0) != MAGIC
+					|| header.getInt(4) != VERSION) {
+				// older format or foreign file, rebuilt on the next update
+				reset();
+				return;
+			}
+			if (header.getLong(8) != stamp || size < fileLength) {
+				reset();
+				stamp = header.getLong(8);
+				generation = header.getLong(16);
+				fileLength = HEADER_SIZE;
+			}
+			ByteBuffer length = ByteBuffer.allocate(4);
+			while (fileLength + 4 <= size) {
+				length.clear();
+				if (!readFully(channel, length, fileLength))
+					break;
+				ByteBuffer block = ByteBuffer.allocate(length.getInt(0));
+				// a block cut short by a crash ends the index
+				if (!readFully(channel, block, fileLength + 4))
+					break;
+				if (!apply(new DataInputStream(new ByteArrayInputStream(block.array()))))
+					break;
+				fileLength += 4 + block.capacity();
+				blocks++;
+			}
+			saved();
+		} catch (NoSuchFileException e) {
+			// nothing indexed yet
+			if (stamp != 0)
+				reset();
+		}
+	}
+
+	/**
+	 * @return boolean - FALSE if the block does not continue the index, it is then overwritten by the next append
+	 */
+	private boolean apply(DataInputStream in) throws IOException {
+		int first = in.readInt();
+		if (first != docCount)
+			return false;
+		docCount = in.readInt();
+		totalLength = in.readLong();
+		if (docCount > docLengths.length)
+			docLengths = Arrays.copyOf(docLengths, Math.max(docCount, docLengths.length * 2));
+		for (int i = first; i < docCount; i++)
+			docLengths[i] = in.readInt();
+		for (int i = in.readInt(); i > 0; i--) {
+			Postings postings = terms.computeIfAbsent(in.readUTF(), t -> new Postings());
+			postings.docFreq += in.readInt();
+			postings.lastDoc = in.readInt();
+			int added = in.readInt();
+			if (postings.bytes.length < postings.length + added)
+				postings.bytes = Arrays.copyOf(postings.bytes, Math.max(postings.length + added, 8));
+			in.readFully(postings.bytes, postings.length, added);
+			postings.length += added;
+		}
+		return true;
+	}
+
+	/**
+	 * @return boolean - FALSE if the file ends before the buffer is full
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+	}
+
+	/**
+	 * Print hits with subject and sender from the store
+	 */
+	public static void print(MessageStore store, Hits hits) throws IOException {
+		for (int i = 0; i < hits.records.length; i++) {
+			String[] strings = store.readStrings(hits.records[i]);
+			System.out.println(String.format(Locale.ROOT, "%6.2f  %s  (%s)", hits.scores[i], strings[0],
+					strings[1]));
+		}
+		System.out.println(hits.records.length + " of " + hits.total + " matching mails");
+	}
+}
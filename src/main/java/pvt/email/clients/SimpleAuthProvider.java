@@ -12,12 +12,17 @@ import com.microsoft.graph.http.IHttpRequest;
 @SuppressWarnings( "deprecation" )
 public class SimpleAuthProvider implements IAuthenticationProvider {
 
-    private String accessToken = null;
+    private volatile String accessToken = null;
 
     public SimpleAuthProvider(String accessToken) {
         this.accessToken = accessToken;
     }
 
+    // Swap in a refreshed token, used by the next request
+    public void setAccessToken(String accessToken) {
+        this.accessToken = accessToken;
+    }
+
     @Override
     public void authenticateRequest(IHttpRequest request) {
         // Add the access token in the Authorization header
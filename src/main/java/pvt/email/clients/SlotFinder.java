@@ -0,0 +1,411 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.graph.core.ClientException;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * <p>
+ * Finds meeting slots free for all required attendees. <br>
+ * The window is cut into slots of a fixed length and every attendee's busy time becomes one bitset over those
+ * slots, so intersecting 100 calendars over four weeks of 15 minute slots is a few thousand word operations.
+ * A start fits a meeting of n slots when the free bits at the start and the n - 1 slots after it are all set,
+ * found by ANDing the free set with itself shifted, doubling the shift each round. Candidates are ranked by the
+ * number of optional attendees free for the whole meeting, then by start. <br>
+ * Availability comes from /me/calendar/getSchedule, {@link #SCHEDULE_BATCH} attendees per request with the
+ * availability view interval set to the slot length, from a calendar view, or from {@link #addBusy}.
+ * </p>
+ */
+public class SlotFinder {
+
+	/** Schedules asked for in one getSchedule request */
+	static final int SCHEDULE_BATCH = 20;
+
+	private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+	private final Instant windowStart;
+	private final Instant windowEnd;
+	private final long slotMillis;
+	private final int slots;
+	private final int words;
+	private final Map<String, long[]> busy = new LinkedHashMap<String, long[]>();
+	private final Set<String> optional = new HashSet<String>();
+	private final Set<String> unknown = new HashSet<String>();
+	private long[] workingHours;
+
+	/**
+	 * A candidate meeting
+	 */
+	public static final class Slot {
+		public final Instant start;
+		public final Instant end;
+		/** Optional attendees free for the whole slot */
+		public final int optionalFree;
+
+		Slot(Instant start, Instant end, int optionalFree) {
+			this.start = start;
+			this.end = end;
+			this.optionalFree = optionalFree;
+		}
+
+		@Override
+		public String toString() {
+			return start + " - " + end + " (" + optionalFree + " optional free)";
+		}
+	}
+
+	/**
+	 * @param windowStart - first slot starts here
+	 * @param windowEnd - last slot ends at or before this
+	 * @param slotMinutes - slot length, between 5 and 1440 as getSchedule requires
+	 */
+	public SlotFinder(ZonedDateTime windowStart, ZonedDateTime windowEnd, int slotMinutes) {
+		if (slotMinutes < 5 || slotMinutes > 1440)
+			throw new IllegalArgumentException("Slot length must be between 5 and 1440 minutes: " + slotMinutes);
+		this.windowStart = windowStart.toInstant();
+		this.slotMillis = slotMinutes * 60_000L;
+		long span = Duration.between(windowStart, windowEnd).toMillis() / slotMillis;
+		if (span <= 0 || span > Integer.MAX_VALUE - 64)
+			throw new IllegalArgumentException("Invalid window " + windowStart + " - " + windowEnd);
+		this.slots = (int) span;
+		this.windowEnd = this.windowStart.plusMillis(slots * slotMillis);
+		this.words = (slots + 63) >>> 6;
+	}
+
+	public int getSlotCount() {
+		return slots;
+	}
+
+	/**
+	 * Add an attendee with an empty calendar, or mark an existing one optional
+	 * @param optional - TRUE if the meeting can happen without this attendee
+	 */
+	public void addAttendee(String attendee, boolean optional) {
+		busy(attendee);
+		if (optional)
+			this.optional.add(attendee.toLowerCase(Locale.ROOT));
+		else
+			this.optional.remove(attendee.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Mark the attendee busy from start to end, every slot touched counts as busy
+	 */
+	public void addBusy(String attendee, Instant start, Instant end) {
+		int from = (int) Math.max(0, Math.floorDiv(start.toEpochMilli() - windowStart.toEpochMilli(), slotMillis));
+		long last = end.toEpochMilli() - windowStart.toEpochMilli();
+		int to = (int) Math.min(slots, Math.max(0, (last + slotMillis - 1) / slotMillis));
+		setRange(busy(attendee), from, to);
+	}
+
+	/**
+	 * Only allow slots within working hours, Monday to Friday
+	 * @param zone - the working hours are local to this zone
+	 */
+	public void setWorkingHours(ZoneId zone, LocalTime from, LocalTime to) {
+		workingHours = new long[words];
+		LocalDate last = windowEnd.atZone(zone).toLocalDate();
+		for (LocalDate day = windowStart.atZone(zone).toLocalDate(); !day.isAfter(last); day = day.plusDays(1)) {
+			if (day.getDayOfWeek() == DayOfWeek.SATURDAY || day.getDayOfWeek() == DayOfWeek.SUNDAY)
+				continue;
+			// only slots lying entirely within the day's hours
+			long start = day.atTime(from).atZone(zone).toInstant().toEpochMilli() - windowStart.toEpochMilli();
+			long end = day.atTime(to).atZone(zone).toInstant().toEpochMilli() - windowStart.toEpochMilli();
+			int first = (int) Math.max(0, Math.floorDiv(start + slotMillis - 1, slotMillis));
+			int limit = (int) Math.min(slots, Math.max(0, Math.floorDiv(end, slotMillis)));
+			setRange(workingHours, first, limit);
+		}
+	}
+
+	/**
+	 * Attendees getSchedule returned an error for, e.g. external addresses; they are treated as free
+	 */
+	public Set<String> getUnknown() {
+		return unknown;
+	}
+
+	/**
+	 * Read the availability of the attendees with POST /me/calendar/getSchedule
+	 * @param accessToken - Authentication token
+	 * @param attendees - SMTP addresses, added as required unless already added
+	 */
+	@SuppressWarnings("try")
+	public void schedule(String accessToken, Collection<String> attendees) {
+		List<String> batch = new ArrayList<String>(SCHEDULE_BATCH);
+		HttpUrl url = HttpUrl.get(Graph.getServiceRoot(accessToken) + "/me/calendar/getSchedule");
+		try (GraphTracer.Trace trace = GraphTracer.begin("getSchedule")) {
+			for (String attendee : attendees) {
+				busy(attendee);
+				batch.add(attendee);
+				if (batch.size() == SCHEDULE_BATCH) {
+					schedule(accessToken, url, batch);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty())
+				schedule(accessToken, url, batch);
+		}
+	}
+
+	private void schedule(String accessToken, HttpUrl url, List<String> batch) {
+		long start = System.nanoTime();
+		Request request = new Request.Builder().url(url).header("Authorization", "Bearer " + accessToken)
+				.header("Accept", "application/json").post(RequestBody.create(JSON, scheduleRequest(batch)))
+				.build();
+		try (Response response = Graph.getHttpClient(accessToken).newCall(request).execute()) {
+			ResponseBody body = response.body();
+			if (!response.isSuccessful() || body == null)
+				throw new ClientException("Graph request failed with " + response.code() + " for " + url
+						+ (body == null ? "" : " - " + body.string()), null);
+			parseSchedules(new JsonReader(body.charStream()));
+		} catch (IOException e) {
+			throw new ClientException("Unable to read schedules from " + url, e);
+		}
+		Metrics.GRAPH_PAGE.recordSince(start);
+		GraphTracer.pageDone();
+	}
+
+	String scheduleRequest(List<String> batch) {
+		DateTimeFormatter format = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+		StringWriter json = new StringWriter();
+		try (JsonWriter writer = new JsonWriter(json)) {
+			writer.beginObject();
+			writer.name("schedules").beginArray();
+			for (String attendee : batch)
+				writer.value(attendee);
+			writer.endArray();
+			writer.name("startTime").beginObject().name("dateTime")
+					.value(LocalDateTime.ofInstant(windowStart, ZoneOffset.UTC).format(format)).name("timeZone")
+					.value("UTC").endObject();
+			writer.name("endTime").beginObject().name("dateTime")
+					.value(LocalDateTime.ofInstant(windowEnd, ZoneOffset.UTC).format(format)).name("timeZone")
+					.value("UTC").endObject();
+			writer.name("availabilityViewInterval").value(slotMillis / 60_000L);
+			writer.endObject();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Read the "value" array of a getSchedule response. availabilityView holds one digit per slot: 0 free,
+	 * 1 tentative, 2 busy, 3 out of office, 4 working elsewhere. Tentative counts as busy.
+	 */
+	void parseSchedules(JsonReader reader) throws IOException {
+		try (reader) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (!"value".equals(reader.nextName())) {
+					reader.skipValue();
+					continue;
+				}
+				reader.beginArray();
+				while (reader.hasNext()) {
+					String id = null;
+					String view = null;
+					reader.beginObject();
+					while (reader.hasNext()) {
+						String name = reader.nextName();
+						if ("scheduleId".equals(name) && reader.peek() == JsonToken.STRING)
+							id = reader.nextString();
+						else if ("availabilityView".equals(name) && reader.peek() == JsonToken.STRING)
+							view = reader.nextString();
+						else
+							reader.skipValue();
+					}
+					reader.endObject();
+					if (id == null)
+						continue;
+					if (view == null || view.isEmpty()) {
+						unknown.add(id);
+						continue;
+					}
+					long[] bits = busy(id);
+					int length = Math.min(slots, view.length());
+					for (int slot = 0; slot < length; slot++) {
+						char state = view.charAt(slot);
+						if (state == '1' || state == '2' || state == '3')
+							bits[slot >>> 6] |= 1L << slot;
+					}
+				}
+				reader.endArray();
+			}
+			reader.endObject();
+		}
+	}
+
+	/**
+	 * Read busy time from a calendar view, e.g. the organizer's own calendar or a shared one
+	 * @param accessToken - Authentication token
+	 * @param attendee - whose busy time the events are
+	 * @param path - calendar below the service root, e.g. /me or /users/{id}
+	 */
+	@SuppressWarnings("try")
+	public void calendarView(String accessToken, String attendee, String path) {
+		busy(attendee);
+		HttpUrl url = HttpUrl.get(Graph.getServiceRoot(accessToken) + path + "/calendarView").newBuilder()
+				.addQueryParameter("startDateTime", windowStart.toString())
+				.addQueryParameter("endDateTime", windowEnd.toString())
+				.addQueryParameter("$select", "start,end,showAs,isAllDay").addQueryParameter("$top", "100").build();
+		try (GraphTracer.Trace trace = GraphTracer.begin("slotCalendarView")) {
+			GraphStream.streamPages(accessToken, url, "outlook.timezone=\"UTC\"", GraphStream::parseEvent,
+					event -> addBusy(attendee, event));
+		}
+	}
+
+	/**
+	 * Mark the attendee busy for an event given in UTC, unless it shows as free or working elsewhere
+	 */
+	void addBusy(String attendee, GraphStream.EventSummary event) {
+		if ("free".equals(event.showAs) || "workingElsewhere".equals(event.showAs) || event.startDateTime == null
+				|| event.endDateTime == null)
+			return;
+		addBusy(attendee, LocalDateTime.parse(event.startDateTime).toInstant(ZoneOffset.UTC),
+				LocalDateTime.parse(event.endDateTime).toInstant(ZoneOffset.UTC));
+	}
+
+	/**
+	 * Best non-overlapping slots for a meeting
+	 * @param minutes - meeting length, rounded up to whole slots
+	 * @param count - at most this many slots are returned
+	 * @return List - most optional attendees free first, earliest first among equals
+	 */
+	public List<Slot> find(int minutes, int count) {
+		int length = (int) Math.max(1, (minutes * 60_000L + slotMillis - 1) / slotMillis);
+		if (length > slots || count <= 0)
+			return new ArrayList<Slot>();
+
+		// free for every required attendee, within working hours
+		long[] fit = workingHours != null ? workingHours.clone() : allSlots();
+		for (Map.Entry<String, long[]> attendee : busy.entrySet()) {
+			if (optional.contains(attendee.getKey()))
+				continue;
+			long[] bits = attendee.getValue();
+			for (int w = 0; w < words; w++)
+				fit[w] &= ~bits[w];
+		}
+		fitting(fit, length);
+
+		// optional attendees free for the whole meeting, per start
+		int[] optionalFree = new int[slots];
+		long[] free = new long[words];
+		for (String attendee : optional) {
+			long[] bits = busy.get(attendee);
+			for (int w = 0; w < words; w++)
+				free[w] = ~bits[w];
+			fitting(free, length);
+			for (int w = 0; w < words; w++)
+				for (long word = free[w] & fit[w]; word != 0; word &= word - 1)
+					optionalFree[(w << 6) + Long.numberOfTrailingZeros(word)]++;
+		}
+
+		// rank as (optional free, -start) and take greedily what does not overlap a better slot
+		int candidates = 0;
+		for (int w = 0; w < words; w++)
+			candidates += Long.bitCount(fit[w]);
+		long[] ranked = new long[candidates];
+		int next = 0;
+		for (int w = 0; w < words; w++) {
+			for (long word = fit[w]; word != 0; word &= word - 1) {
+				int start = (w << 6) + Long.numberOfTrailingZeros(word);
+				ranked[next++] = ((long) optionalFree[start] << 32) | (Integer.MAX_VALUE - start);
+			}
+		}
+		Arrays.sort(ranked);
+		long[] taken = new long[words];
+		List<Slot> result = new ArrayList<Slot>(Math.min(count, candidates));
+		for (int i = ranked.length - 1; i >= 0 && result.size() < count; i--) {
+			int start = Integer.MAX_VALUE - (int) ranked[i];
+			if (anySet(taken, start, start + length))
+				continue;
+			setRange(taken, start, start + length);
+			result.add(new Slot(windowStart.plusMillis(start * slotMillis),
+					windowStart.plusMillis((start + length) * slotMillis), (int) (ranked[i] >>> 32)));
+		}
+		return result;
+	}
+
+	/**
+	 * Busy bits of the attendee, keyed case-insensitively as getSchedule may echo addresses in another case
+	 */
+	private long[] busy(String attendee) {
+		return busy.computeIfAbsent(attendee.toLowerCase(Locale.ROOT), a -> new long[words]);
+	}
+
+	private long[] allSlots() {
+		long[] bits = new long[words];
+		setRange(bits, 0, slots);
+		return bits;
+	}
+
+	/**
+	 * Keep only the bits whose next length - 1 bits are set as well, with log2(length) shifted ANDs
+	 */
+	private void fitting(long[] bits, int length) {
+		int covered = 1;
+		while (covered < length) {
+			int shift = Math.min(covered, length - covered);
+			andShifted(bits, shift);
+			covered += shift;
+		}
+	}
+
+	/**
+	 * bits[i] &= bits[i + shift], in place: each word only reads itself and later words, which are not yet
+	 * written
+	 */
+	private void andShifted(long[] bits, int shift) {
+		int offset = shift >>> 6;
+		int bit = shift & 63;
+		for (int w = 0; w < words; w++) {
+			int source = w + offset;
+			long shifted = source < words ? bits[source] >>> bit : 0;
+			if (bit != 0 && source + 1 < words)
+				shifted |= bits[source + 1] << (64 - bit);
+			bits[w] &= shifted;
+		}
+	}
+
+	private static void setRange(long[] bits, int from, int to) {
+		for (int i = from; i < to; i++)
+			bits[i >>> 6] |= 1L << i;
+	}
+
+	private static boolean anySet(long[] bits, int from, int to) {
+		for (int i = from; i < to; i++)
+			if ((bits[i >>> 6] & (1L << i)) != 0)
+				return true;
+		return false;
+	}
+}
@@ -0,0 +1,808 @@
+package pvt.email.clients;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * <p>
+ * Protocol transcripts of IMAP/POP3/SMTP connections, for {@link TransportRecorder}. <br>
+ * JavaMail is pointed at these socket factories through the mail.&lt;protocol&gt;.socketFactory and
+ * mail.&lt;protocol&gt;.ssl.socketFactory session properties. <br>
+ * Recording taps the clear text, above TLS. Replaying serves the recorded server side back without any network,
+ * and pretends the connection is (or becomes, after STARTTLS) secure where the recording was.
+ * </p>
+ * A transcript is a sequence of events: type, nanos since the previous event, length, data. Client writes are
+ * recorded without their data: they carry LOGIN/AUTH credentials and replay never reads them, only their timing
+ * matters.
+ */
+public class SocketTranscript {
+
+	static final byte SERVER = 0;
+	static final byte CLIENT = 1;
+	static final byte TLS = 2;
+
+	private static final byte[] NO_DATA = new byte[0];
+
+	/**
+	 * Key a transcript is stored under
+	 */
+	static String key(String protocol, String host, int port) {
+		return protocol + " " + host + ":" + port;
+	}
+
+	/**
+	 * Collects the events of one connection, and appends them to the recording when the connection closes
+	 */
+	static class Recorder {
+		private final RecordingFile.Writer writer;
+		private final String key;
+		private final long startNanos = System.nanoTime();
+		private final ByteArrayOutputStream events = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(events);
+		private long lastEvent = startNanos;
+		private boolean finished;
+
+		Recorder(RecordingFile.Writer writer, String key) {
+			this.writer = writer;
+			this.key = key;
+		}
+
+		synchronized void event(byte type, byte[] data, int offset, int length) {
+			if (finished)
+				return;
+			long now = System.nanoTime();
+			try {
+				out.writeByte(type);
+				out.writeLong(now - lastEvent);
+				out.writeInt(length);
+				out.write(data, offset, length);
+			} catch (IOException e) {
+				// can't happen, writing to memory
+			}
+			lastEvent = now;
+		}
+
+		synchronized void finish() {
+			if (finished)
+				return;
+			finished = true;
+			try {
+				writer.append(RecordingFile.SOCKET, key, startNanos, events.toByteArray());
+			} catch (IOException e) {
+				System.err.println("Unable to record " + key + " - " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Plain socket that copies everything it reads into a {@link Recorder}, and notes when it writes
+	 */
+	static class RecordingSocket extends Socket {
+		private final Socket delegate;
+		private final RecordingFile.Writer writer;
+		private final String protocol;
+		private Recorder recorder;
+		private InputStream recordedIn;
+		private OutputStream recordedOut;
+
+		RecordingSocket(Socket delegate, RecordingFile.Writer writer, String protocol, Recorder recorder) {
+			this.delegate = delegate;
+			this.writer = writer;
+			this.protocol = protocol;
+			this.recorder = recorder;
+		}
+
+		@Override
+		public void connect(SocketAddress endpoint, int timeout) throws IOException {
+			delegate.connect(endpoint, timeout);
+			InetSocketAddress address = (InetSocketAddress) endpoint;
+			recorder = new Recorder(writer, key(protocol, address.getHostString(), address.getPort()));
+		}
+
+		@Override
+		public void connect(SocketAddress endpoint) throws IOException {
+			connect(endpoint, 0);
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (recordedIn == null) {
+				recordedIn = new FilterInputStream(delegate.getInputStream()) {
+					@Override
+					public int read() throws IOException {
+						int b = super.read();
+						if (b >= 0)
+							recorder.event(SERVER, new byte[] { (byte) b }, 0, 1);
+						return b;
+					}
+
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						int n = super.read(b, off, len);
+						if (n > 0)
+							recorder.event(SERVER, b, off, n);
+						return n;
+					}
+				};
+			}
+			return recordedIn;
+		}
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (recordedOut == null) {
+				recordedOut = new FilterOutputStream(delegate.getOutputStream()) {
+					@Override
+					public void write(int b) throws IOException {
+						recorder.event(CLIENT, NO_DATA, 0, 0);
+						super.write(b);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						recorder.event(CLIENT, NO_DATA, 0, 0);
+						out.write(b, off, len);
+					}
+				};
+			}
+			return recordedOut;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				delegate.close();
+			} finally {
+				if (recorder != null)
+					recorder.finish();
+			}
+		}
+
+		Socket delegate() {
+			return delegate;
+		}
+
+		Recorder recorder() {
+			return recorder;
+		}
+
+		@Override
+		public void setSoTimeout(int timeout) throws SocketException {
+			delegate.setSoTimeout(timeout);
+		}
+
+		@Override
+		public int getSoTimeout() throws SocketException {
+			return delegate.getSoTimeout();
+		}
+
+		@Override
+		public void setTcpNoDelay(boolean on) throws SocketException {
+			delegate.setTcpNoDelay(on);
+		}
+
+		@Override
+		public void bind(SocketAddress bindpoint) throws IOException {
+			delegate.bind(bindpoint);
+		}
+
+		@Override
+		public InetAddress getInetAddress() {
+			return delegate.getInetAddress();
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			return delegate.getLocalAddress();
+		}
+
+		@Override
+		public int getPort() {
+			return delegate.getPort();
+		}
+
+		@Override
+		public int getLocalPort() {
+			return delegate.getLocalPort();
+		}
+
+		@Override
+		public SocketAddress getRemoteSocketAddress() {
+			return delegate.getRemoteSocketAddress();
+		}
+
+		@Override
+		public boolean isConnected() {
+			return delegate.isConnected();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return delegate.isClosed();
+		}
+
+		@Override
+		public void shutdownInput() throws IOException {
+			delegate.shutdownInput();
+		}
+
+		@Override
+		public void shutdownOutput() throws IOException {
+			delegate.shutdownOutput();
+		}
+
+		@Override
+		public String toString() {
+			return "Recording" + delegate;
+		}
+	}
+
+	/**
+	 * Plain socket factory for recording, hands out unconnected {@link RecordingSocket}s
+	 */
+	static class RecordingSocketFactory extends SocketFactory {
+		private final RecordingFile.Writer writer;
+		private final String protocol;
+
+		RecordingSocketFactory(RecordingFile.Writer writer, String protocol) {
+			this.writer = writer;
+			this.protocol = protocol;
+		}
+
+		@Override
+		public Socket createSocket() {
+			return new RecordingSocket(new Socket(), writer, protocol, null);
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			Socket socket = createSocket();
+			socket.connect(new InetSocketAddress(host, port));
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			Socket socket = createSocket();
+			socket.bind(new InetSocketAddress(localHost, localPort));
+			socket.connect(new InetSocketAddress(host, port));
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			Socket socket = createSocket();
+			socket.connect(new InetSocketAddress(host, port));
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+				throws IOException {
+			Socket socket = createSocket();
+			socket.bind(new InetSocketAddress(localAddress, localPort));
+			socket.connect(new InetSocketAddress(address, port));
+			return socket;
+		}
+	}
+
+	/**
+	 * TLS socket factory for recording. Runs the real handshake through the default factory, and records above it.
+	 * Layering on a {@link RecordingSocket} (STARTTLS) continues that connection's transcript.
+	 */
+	static class RecordingTlsSocketFactory extends SSLSocketFactory {
+		private final SSLSocketFactory tls = (SSLSocketFactory) SSLSocketFactory.getDefault();
+		private final RecordingFile.Writer writer;
+		private final String protocol;
+
+		RecordingTlsSocketFactory(RecordingFile.Writer writer, String protocol) {
+			this.writer = writer;
+			this.protocol = protocol;
+		}
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+			Recorder recorder;
+			if (socket instanceof RecordingSocket) {
+				recorder = ((RecordingSocket) socket).recorder();
+				socket = ((RecordingSocket) socket).delegate();
+			} else {
+				recorder = new Recorder(writer, key(protocol, host, port));
+			}
+			SSLSocket secured = (SSLSocket) tls.createSocket(socket, host, port, autoClose);
+			secured.startHandshake();
+			recorder.event(TLS, NO_DATA, 0, 0);
+			return new RecordingSocket(secured, writer, protocol, recorder);
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return createSocket(new Socket(host, port), host, port, true);
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return createSocket(new Socket(host, port, localHost, localPort), host, port, true);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return createSocket(new Socket(host, port), host.getHostName(), port, true);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+				throws IOException {
+			return createSocket(new Socket(address, port, localAddress, localPort), address.getHostName(), port, true);
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return tls.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return tls.getSupportedCipherSuites();
+		}
+	}
+
+	/**
+	 * Reads a recorded transcript back. Client events are skipped, server events are served in order,
+	 * optionally after waiting as long as the server originally took.
+	 */
+	static class Cursor {
+		private final RecordingFile.Reader reader;
+		private final String protocol;
+		private final boolean timed;
+		private final ReplayCounter counter;
+		private DataInputStream events;
+		private byte[] chunk = new byte[0];
+		private int chunkPosition;
+		private final InputStream in = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				if (!fill())
+					return -1;
+				return chunk[chunkPosition++] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				if (!fill())
+					return -1;
+				int n = Math.min(len, chunk.length - chunkPosition);
+				System.arraycopy(chunk, chunkPosition, b, off, n);
+				chunkPosition += n;
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return chunk.length - chunkPosition;
+			}
+		};
+		private final OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) {
+				// replay only serves the server side
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// replay only serves the server side
+			}
+		};
+
+		Cursor(RecordingFile.Reader reader, String protocol, boolean timed, ReplayCounter counter) {
+			this.reader = reader;
+			this.protocol = protocol;
+			this.timed = timed;
+			this.counter = counter;
+		}
+
+		void open(String host, int port) throws IOException {
+			String key = key(protocol, host, port);
+			RecordingFile.Entry entry = reader.read(key, counter.next(key));
+			if (entry == null)
+				throw new IOException("No recorded connection for " + key);
+			events = entry.payloadStream();
+		}
+
+		private boolean fill() throws IOException {
+			if (events == null)
+				throw new SocketException("Socket is not connected");
+			while (chunkPosition == chunk.length) {
+				byte type;
+				try {
+					type = events.readByte();
+				} catch (EOFException e) {
+					return false;
+				}
+				long delay = events.readLong();
+				byte[] data = new byte[events.readInt()];
+				events.readFully(data);
+				if (type != SERVER)
+					continue;
+				if (timed)
+					sleep(delay);
+				chunk = data;
+				chunkPosition = 0;
+			}
+			return true;
+		}
+
+		private static void sleep(long nanos) throws IOException {
+			try {
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while replaying", e);
+			}
+		}
+	}
+
+	/**
+	 * Hands out the n-th recorded connection for the n-th connect to the same key
+	 */
+	interface ReplayCounter {
+		int next(String key);
+	}
+
+	/**
+	 * Plain replay socket, for connections that were recorded in clear text (until a STARTTLS, if any)
+	 */
+	static class ReplaySocket extends Socket {
+		private final Cursor cursor;
+		private InetSocketAddress remote;
+		private boolean closed;
+
+		ReplaySocket(Cursor cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public void connect(SocketAddress endpoint, int timeout) throws IOException {
+			remote = (InetSocketAddress) endpoint;
+			cursor.open(remote.getHostString(), remote.getPort());
+		}
+
+		@Override
+		public void connect(SocketAddress endpoint) throws IOException {
+			connect(endpoint, 0);
+		}
+
+		@Override
+		public void bind(SocketAddress bindpoint) {
+			// nothing to bind, there is no network
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return cursor.in;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return cursor.out;
+		}
+
+		@Override
+		public void setSoTimeout(int timeout) {
+			// replay never blocks on the network
+		}
+
+		@Override
+		public InetAddress getInetAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		@Override
+		public int getPort() {
+			return remote == null ? 0 : remote.getPort();
+		}
+
+		@Override
+		public boolean isConnected() {
+			return remote != null;
+		}
+
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		Cursor cursor() {
+			return cursor;
+		}
+	}
+
+	/**
+	 * Replay socket for connections that were recorded over TLS. It is an SSLSocket only so JavaMail
+	 * treats the connection as secure, there is no handshake.
+	 */
+	static class ReplayTlsSocket extends SSLSocket {
+		private final Cursor cursor;
+		private final int port;
+		private boolean closed;
+		private boolean connected;
+
+		ReplayTlsSocket(Cursor cursor, int port, boolean connected) {
+			this.cursor = cursor;
+			this.port = port;
+			this.connected = connected;
+		}
+
+		@Override
+		public void connect(SocketAddress endpoint, int timeout) throws IOException {
+			InetSocketAddress remote = (InetSocketAddress) endpoint;
+			cursor.open(remote.getHostString(), remote.getPort());
+			connected = true;
+		}
+
+		@Override
+		public void connect(SocketAddress endpoint) throws IOException {
+			connect(endpoint, 0);
+		}
+
+		@Override
+		public void bind(SocketAddress bindpoint) {
+			// nothing to bind, there is no network
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return cursor.in;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return cursor.out;
+		}
+
+		@Override
+		public void setSoTimeout(int timeout) {
+			// replay never blocks on the network
+		}
+
+		@Override
+		public InetAddress getInetAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		@Override
+		public int getPort() {
+			return port;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return new String[0];
+		}
+
+		@Override
+		public String[] getEnabledCipherSuites() {
+			return new String[0];
+		}
+
+		@Override
+		public void setEnabledCipherSuites(String[] suites) {
+		}
+
+		@Override
+		public String[] getSupportedProtocols() {
+			return new String[0];
+		}
+
+		@Override
+		public String[] getEnabledProtocols() {
+			return new String[0];
+		}
+
+		@Override
+		public void setEnabledProtocols(String[] protocols) {
+		}
+
+		@Override
+		public SSLSession getSession() {
+			return null;
+		}
+
+		@Override
+		public void addHandshakeCompletedListener(HandshakeCompletedListener listener) {
+		}
+
+		@Override
+		public void removeHandshakeCompletedListener(HandshakeCompletedListener listener) {
+		}
+
+		@Override
+		public void startHandshake() {
+		}
+
+		@Override
+		public void setUseClientMode(boolean mode) {
+		}
+
+		@Override
+		public boolean getUseClientMode() {
+			return true;
+		}
+
+		@Override
+		public void setNeedClientAuth(boolean need) {
+		}
+
+		@Override
+		public boolean getNeedClientAuth() {
+			return false;
+		}
+
+		@Override
+		public void setWantClientAuth(boolean want) {
+		}
+
+		@Override
+		public boolean getWantClientAuth() {
+			return false;
+		}
+
+		@Override
+		public void setEnableSessionCreation(boolean flag) {
+		}
+
+		@Override
+		public boolean getEnableSessionCreation() {
+			return true;
+		}
+	}
+
+	/**
+	 * Replay socket factory, registered as mail.&lt;protocol&gt;.socketFactory.
+	 * Hands out unconnected replay sockets; connecting one opens the next recorded transcript.
+	 */
+	static class ReplaySocketFactory extends SocketFactory {
+		private final RecordingFile.Reader reader;
+		private final String protocol;
+		private final boolean secure;
+		private final boolean timed;
+		private final ReplayCounter counter;
+
+		/**
+		 * @param secure - true if the protocol starts with TLS (imaps, pop3s, smtps or ssl.enable set)
+		 */
+		ReplaySocketFactory(RecordingFile.Reader reader, String protocol, boolean secure, boolean timed,
+				ReplayCounter counter) {
+			this.reader = reader;
+			this.protocol = protocol;
+			this.secure = secure;
+			this.timed = timed;
+			this.counter = counter;
+		}
+
+		@Override
+		public Socket createSocket() {
+			Cursor cursor = new Cursor(reader, protocol, timed, counter);
+			return secure ? new ReplayTlsSocket(cursor, 0, false) : new ReplaySocket(cursor);
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			Socket socket = createSocket();
+			socket.connect(InetSocketAddress.createUnresolved(host, port));
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return createSocket(host, port);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return createSocket(host.getHostName(), port);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+				throws IOException {
+			return createSocket(address.getHostName(), port);
+		}
+	}
+
+	/**
+	 * Replay STARTTLS, registered as mail.&lt;protocol&gt;.ssl.socketFactory for protocols that start in clear text.
+	 * Continues the same transcript on a socket that reports itself as secure.
+	 */
+	static class ReplayTlsSocketFactory extends SSLSocketFactory {
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+			if (!(socket instanceof ReplaySocket))
+				throw new IOException("STARTTLS on a connection that is not being replayed");
+			return new ReplayTlsSocket(((ReplaySocket) socket).cursor(), port, true);
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			throw new IOException("Replay only layers TLS on replayed connections");
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			throw new IOException("Replay only layers TLS on replayed connections");
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			throw new IOException("Replay only layers TLS on replayed connections");
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+				throws IOException {
+			throw new IOException("Replay only layers TLS on replayed connections");
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return new String[0];
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return new String[0];
+		}
+	}
+}
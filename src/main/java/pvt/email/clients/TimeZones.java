@@ -0,0 +1,255 @@
+package pvt.email.clients;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.chrono.IsoChronology;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.FormatStyle;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * <p>
+ * Windows and IANA time zone names. <br>
+ * Graph names zones the Windows way ("Pacific Standard Time") in mailbox settings and in event times, while
+ * java.time only knows IANA names. The mapping is read once, on first use, from the CLDR windowsZones.xml kept
+ * next to this class, so a newer upstream file can replace it as is. Every mapZone element is kept: the default
+ * zone of a Windows zone (territory 001), the zone for a territory, and the Windows zone of any IANA zone
+ * listed. <br>
+ * ZoneIds are cached per name, and formatters per locale and zone, so rendering many events costs no formatter
+ * or pattern lookup per event. Graph date times are parsed by position instead of through the ISO parser.
+ * </p>
+ */
+public class TimeZones {
+
+	/** CLDR windowsZones.xml, resolved against this class */
+	static final String RESOURCE = "windowsZones.xml";
+
+	/** CLDR territory of the default zone of a Windows zone */
+	static final String WORLD = "001";
+
+	private static final ConcurrentHashMap<String, ZoneId> zones = new ConcurrentHashMap<String, ZoneId>();
+	private static final ConcurrentHashMap<String, String> windowsNames = new ConcurrentHashMap<String, String>();
+	private static final ConcurrentHashMap<Locale, DateTimeFormatter> localFormatters =
+			new ConcurrentHashMap<Locale, DateTimeFormatter>();
+	private static final ConcurrentHashMap<Locale, ConcurrentHashMap<ZoneId, DateTimeFormatter>> zonedFormatters =
+			new ConcurrentHashMap<Locale, ConcurrentHashMap<ZoneId, DateTimeFormatter>>();
+
+	/**
+	 * The mapZone elements of the resource, loaded by the first lookup
+	 */
+	private static final class Mapping {
+		static final Mapping INSTANCE = load();
+
+		/** Windows zone to the IANA zone of territory 001 */
+		final Map<String, String> primary = new HashMap<String, String>();
+		/** Windows zone + "/" + territory to the first IANA zone listed for it */
+		final Map<String, String> territorial = new HashMap<String, String>();
+		/** IANA zone to Windows zone, 001 entries first */
+		final Map<String, String> windows = new HashMap<String, String>();
+
+		private static Mapping load() {
+			Mapping mapping = new Mapping();
+			try (InputStream in = TimeZones.class.getResourceAsStream(RESOURCE)) {
+				if (in == null)
+					throw new IllegalStateException("Missing time zone mapping " + RESOURCE);
+				XMLStreamReader reader = XMLInputFactory.newFactory().createXMLStreamReader(in);
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamReader.START_ELEMENT && "mapZone".equals(reader.getLocalName()))
+						mapping.add(reader.getAttributeValue(null, "other"),
+								reader.getAttributeValue(null, "territory"), reader.getAttributeValue(null, "type"));
+				}
+				reader.close();
+			} catch (IOException | XMLStreamException e) {
+				throw new IllegalStateException("Unable to read time zone mapping " + RESOURCE, e);
+			}
+			return mapping;
+		}
+
+		private void add(String windowsZone, String territory, String types) {
+			if (windowsZone == null || territory == null || types == null || types.isBlank())
+				return;
+			String[] ianaZones = types.trim().split("\\s+");
+			territorial.putIfAbsent(windowsZone + "/" + territory, ianaZones[0]);
+			boolean world = WORLD.equals(territory);
+			if (world)
+				primary.put(windowsZone, ianaZones[0]);
+			for (String ianaZone : ianaZones) {
+				if (world)
+					windows.put(ianaZone, windowsZone);
+				else
+					windows.putIfAbsent(ianaZone, windowsZone);
+			}
+		}
+	}
+
+	/**
+	 * @param windowsZone - e.g. "Pacific Standard Time"
+	 * @return String - the default IANA zone, or the name itself if it is not a Windows zone
+	 */
+	public static String toIana(String windowsZone) {
+		String ianaZone = Mapping.INSTANCE.primary.get(windowsZone);
+		return ianaZone == null ? windowsZone : ianaZone;
+	}
+
+	/**
+	 * @param windowsZone - e.g. "Pacific Standard Time"
+	 * @param territory - ISO 3166 country code, e.g. "CA"
+	 * @return String - the IANA zone of the Windows zone in that territory, else as {@link #toIana(String)}
+	 */
+	public static String toIana(String windowsZone, String territory) {
+		String ianaZone = territory == null ? null
+				: Mapping.INSTANCE.territorial.get(windowsZone + "/" + territory.toUpperCase(Locale.ROOT));
+		return ianaZone == null ? toIana(windowsZone) : ianaZone;
+	}
+
+	/**
+	 * @param ianaZone - e.g. "Europe/Zurich" or a link such as "Asia/Kolkata"
+	 * @return String - the Windows zone, NULL if none has the same rules
+	 */
+	public static String toWindows(String ianaZone) {
+		String windowsZone = Mapping.INSTANCE.windows.get(ianaZone);
+		if (windowsZone != null)
+			return windowsZone;
+		if (Mapping.INSTANCE.primary.containsKey(ianaZone))
+			return ianaZone;
+		// links and names CLDR does not list, matched once by their rules
+		windowsZone = windowsNames.computeIfAbsent(ianaZone, TimeZones::findWindows);
+		return windowsZone.isEmpty() ? null : windowsZone;
+	}
+
+	private static String findWindows(String ianaZone) {
+		try {
+			ZoneId zone = ZoneId.of(ianaZone);
+			String normalized = Mapping.INSTANCE.windows.get(zone.normalized().getId());
+			if (normalized != null)
+				return normalized;
+			// default zones first, so a fixed offset maps to its Windows zone rather than a territory's
+			for (Map.Entry<String, String> entry : Mapping.INSTANCE.primary.entrySet())
+				if (ZoneId.of(entry.getValue()).getRules().equals(zone.getRules()))
+					return entry.getKey();
+			for (Map.Entry<String, String> entry : Mapping.INSTANCE.windows.entrySet())
+				if (ZoneId.of(entry.getKey()).getRules().equals(zone.getRules()))
+					return entry.getValue();
+		} catch (DateTimeException e) {
+			// not a zone
+		}
+		return "";
+	}
+
+	/**
+	 * @param timeZone - Windows or IANA name, as Graph reports it
+	 * @return ZoneId - cached
+	 * @throws DateTimeException if the name is neither
+	 */
+	public static ZoneId zoneOf(String timeZone) {
+		ZoneId zone = zones.get(timeZone);
+		if (zone == null) {
+			zone = ZoneId.of(toIana(timeZone));
+			zones.putIfAbsent(timeZone, zone);
+		}
+		return zone;
+	}
+
+	/**
+	 * @return DateTimeFormatter - short localized date and time, for local date times
+	 */
+	public static DateTimeFormatter formatter(Locale locale) {
+		return localFormatters.computeIfAbsent(locale, l -> DateTimeFormatter.ofPattern(DateTimeFormatterBuilder
+				.getLocalizedDateTimePattern(FormatStyle.SHORT, FormatStyle.SHORT, IsoChronology.INSTANCE, l), l));
+	}
+
+	/**
+	 * @return DateTimeFormatter - short localized date and time in the zone, for instants
+	 */
+	public static DateTimeFormatter formatter(ZoneId zone, Locale locale) {
+		return zonedFormatters.computeIfAbsent(locale, l -> new ConcurrentHashMap<ZoneId, DateTimeFormatter>())
+				.computeIfAbsent(zone, z -> formatter(locale).withZone(z));
+	}
+
+	/**
+	 * @param instant - rendered in the zone
+	 * @param timeZone - Windows or IANA name
+	 */
+	public static String format(Instant instant, String timeZone) {
+		return format(instant, zoneOf(timeZone));
+	}
+
+	/**
+	 * @param instant - rendered in the zone, with the default locale
+	 */
+	public static String format(Instant instant, ZoneId zone) {
+		return formatter(zone, Locale.getDefault(Locale.Category.FORMAT)).format(instant);
+	}
+
+	/**
+	 * Render a Graph date time as given, e.g. "2020-11-17T09:00:00.0000000" in the event's zone
+	 * @param dateTime - local date time
+	 * @param timeZone - appended to the text as is
+	 */
+	public static String format(String dateTime, String timeZone) {
+		StringBuilder text = new StringBuilder(32);
+		formatter(Locale.getDefault(Locale.Category.FORMAT)).formatTo(parseLocalDateTime(dateTime), text);
+		return text.append(" (").append(timeZone).append(')').toString();
+	}
+
+	/**
+	 * Parse yyyy-MM-ddTHH:mm[:ss[.fraction]] by position, falling back to the ISO parser for anything else
+	 */
+	public static LocalDateTime parseLocalDateTime(CharSequence text) {
+		int length = text.length();
+		if (length >= 16 && text.charAt(4) == '-' && text.charAt(7) == '-' && text.charAt(10) == 'T'
+				&& text.charAt(13) == ':') {
+			int year = digits(text, 0, 4);
+			int month = digits(text, 5, 2);
+			int day = digits(text, 8, 2);
+			int hour = digits(text, 11, 2);
+			int minute = digits(text, 14, 2);
+			int second = 0;
+			int nano = 0;
+			boolean valid = year >= 0 && month >= 0 && day >= 0 && hour >= 0 && minute >= 0;
+			if (valid && length > 16) {
+				valid = length >= 19 && text.charAt(16) == ':' && (second = digits(text, 17, 2)) >= 0;
+				if (valid && length > 19) {
+					valid = text.charAt(19) == '.' && length > 20 && length <= 29;
+					for (int i = 20; valid && i < 29; i++) {
+						int digit = i < length ? text.charAt(i) - '0' : 0;
+						valid = digit >= 0 && digit <= 9;
+						nano = nano * 10 + digit;
+					}
+				}
+			}
+			if (valid) {
+				try {
+					return LocalDateTime.of(year, month, day, hour, minute, second, nano);
+				} catch (DateTimeException e) {
+					// out of range fields, let the ISO parser report them
+				}
+			}
+		}
+		return LocalDateTime.parse(text);
+	}
+
+	private static int digits(CharSequence text, int from, int count) {
+		int value = 0;
+		for (int i = from; i < from + count; i++) {
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,249 @@
+package pvt.email.clients;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * <p>
+ * Record/replay of everything that goes over the wire, so slow runs can be reproduced offline. <br>
+ * Graph HTTP exchanges are captured by an OkHttp interceptor on the Graph client pipeline, IMAP/POP3/SMTP
+ * protocol transcripts by the socket factories of {@link SocketTranscript}. Both go to one {@link RecordingFile}.
+ * </p>
+ * Selected with system properties:
+ * <ul>
+ * <li>pvt.email.record=&lt;file&gt; - run against the live services and record</li>
+ * <li>pvt.email.replay=&lt;file&gt; - serve everything from the recording, no network</li>
+ * <li>pvt.email.replay.timing=original - wait as long as the services originally took (default: as fast as possible)</li>
+ * </ul>
+ */
+public class TransportRecorder {
+
+	public static final String RECORD_PROPERTY = "pvt.email.record";
+	public static final String REPLAY_PROPERTY = "pvt.email.replay";
+	public static final String REPLAY_TIMING_PROPERTY = "pvt.email.replay.timing";
+
+	public enum Mode {
+		OFF, RECORD, REPLAY
+	}
+
+	private static TransportRecorder instance;
+
+	private final Mode mode;
+	private final boolean timed;
+	private final RecordingFile.Writer writer;
+	private final RecordingFile.Reader reader;
+	private final Map<String, AtomicInteger> replayed = new ConcurrentHashMap<String, AtomicInteger>();
+
+	private TransportRecorder(Mode mode, boolean timed, RecordingFile.Writer writer, RecordingFile.Reader reader) {
+		this.mode = mode;
+		this.timed = timed;
+		this.writer = writer;
+		this.reader = reader;
+	}
+
+	/**
+	 * @return TransportRecorder - the process wide recorder, as selected by the system properties
+	 */
+	public static synchronized TransportRecorder get() {
+		if (instance == null) {
+			String record = System.getProperty(RECORD_PROPERTY);
+			String replay = System.getProperty(REPLAY_PROPERTY);
+			boolean timed = "original".equalsIgnoreCase(System.getProperty(REPLAY_TIMING_PROPERTY));
+			try {
+				if (replay != null)
+					instance = replay(Paths.get(replay), timed);
+				else if (record != null)
+					instance = record(Paths.get(record));
+			} catch (IOException e) {
+				System.err.println("Unable to open recording - " + e.getMessage() + ", running live");
+			}
+			if (instance == null)
+				instance = new TransportRecorder(Mode.OFF, false, null, null);
+		}
+		return instance;
+	}
+
+	/**
+	 * Start recording into the given file. The recording is finished when the JVM exits.
+	 * @param file - recording to create, an existing file is overwritten
+	 * @return TransportRecorder - recorder in RECORD mode
+	 */
+	public static TransportRecorder record(Path file) throws IOException {
+		RecordingFile.Writer writer = new RecordingFile.Writer(file);
+		TransportRecorder recorder = new TransportRecorder(Mode.RECORD, false, writer, null);
+		Runtime.getRuntime().addShutdownHook(new Thread(recorder::close, "recording-close"));
+		return recorder;
+	}
+
+	/**
+	 * Replay the given recording
+	 * @param file - finished recording
+	 * @param timed - true to reproduce the original timings, false to replay as fast as possible
+	 * @return TransportRecorder - recorder in REPLAY mode
+	 */
+	public static TransportRecorder replay(Path file, boolean timed) throws IOException {
+		return new TransportRecorder(Mode.REPLAY, timed, null, new RecordingFile.Reader(file));
+	}
+
+	/**
+	 * Replace the process wide recorder, e.g. for benchmarks that replay a recording programmatically
+	 */
+	public static synchronized void install(TransportRecorder recorder) {
+		instance = recorder;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public boolean isReplaying() {
+		return mode == Mode.REPLAY;
+	}
+
+	/**
+	 * @return Interceptor - to add to the Graph HTTP pipeline, NULL when neither recording nor replaying
+	 */
+	public Interceptor interceptor() {
+		switch (mode) {
+		case RECORD:
+			return this::recordExchange;
+		case REPLAY:
+			return this::replayExchange;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Point a mail session at the recording socket factories. Must be called on the Properties the
+	 * Session is created with.
+	 * </p>
+	 * @param properties - mail session properties
+	 * @param protocol - protocol the session will connect with (imaps, pop3s, smtp ...)
+	 */
+	public void configure(Properties properties, String protocol) {
+		if (mode == Mode.OFF || properties == null || protocol == null)
+			return;
+		String prefix = "mail." + protocol;
+		boolean secure = protocol.endsWith("s")
+				|| Boolean.parseBoolean(properties.getProperty(prefix + ".ssl.enable", "false"));
+		// never fall back to a plain socket, it would bypass the recording
+		properties.put(prefix + ".socketFactory.fallback", "false");
+		if (mode == Mode.RECORD) {
+			properties.put(prefix + ".socketFactory", new SocketTranscript.RecordingSocketFactory(writer, protocol));
+			properties.put(prefix + ".ssl.socketFactory",
+					new SocketTranscript.RecordingTlsSocketFactory(writer, protocol));
+		} else {
+			properties.put(prefix + ".socketFactory",
+					new SocketTranscript.ReplaySocketFactory(reader, protocol, secure, timed, this::nextOccurrence));
+			// a secure protocol has to find the replay factory above, an SSL factory would be tried first
+			if (!secure)
+				properties.put(prefix + ".ssl.socketFactory", new SocketTranscript.ReplayTlsSocketFactory());
+		}
+	}
+
+	/**
+	 * Finish the recording, or release the replayed file
+	 */
+	public synchronized void close() {
+		try {
+			if (writer != null)
+				writer.close();
+			if (reader != null)
+				reader.close();
+		} catch (IOException e) {
+			System.err.println("Unable to close recording - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The n-th request for a key gets the n-th recorded exchange, and the last one once they run out
+	 */
+	private int nextOccurrence(String key) {
+		int occurrence = replayed.computeIfAbsent(key, k -> new AtomicInteger()).getAndIncrement();
+		return Math.max(0, Math.min(occurrence, reader.count(key) - 1));
+	}
+
+	private static String key(Request request) {
+		return request.method() + " " + request.url();
+	}
+
+	private Response recordExchange(Interceptor.Chain chain) throws IOException {
+		Request request = chain.request();
+		long start = System.nanoTime();
+		Response response = chain.proceed(request);
+		ResponseBody body = response.body();
+		byte[] content = body == null ? new byte[0] : body.bytes();
+		long duration = System.nanoTime() - start;
+
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(content.length + 512);
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeInt(response.code());
+		out.writeUTF(response.message());
+		Headers headers = response.headers();
+		out.writeInt(headers.size());
+		for (int i = 0; i < headers.size(); i++) {
+			out.writeUTF(headers.name(i));
+			out.writeUTF(headers.value(i));
+		}
+		out.writeLong(duration);
+		out.writeInt(content.length);
+		out.write(content);
+		writer.append(RecordingFile.HTTP, key(request), start, payload.toByteArray());
+
+		MediaType contentType = body == null ? null : body.contentType();
+		return response.newBuilder().body(ResponseBody.create(contentType, content)).build();
+	}
+
+	private Response replayExchange(Interceptor.Chain chain) throws IOException {
+		Request request = chain.request();
+		String key = key(request);
+		RecordingFile.Entry entry = reader.read(key, nextOccurrence(key));
+		if (entry == null)
+			throw new IOException("No recorded exchange for " + key);
+
+		DataInputStream in = entry.payloadStream();
+		int code = in.readInt();
+		String message = in.readUTF();
+		Headers.Builder headers = new Headers.Builder();
+		for (int i = in.readInt(); i > 0; i--)
+			headers.add(in.readUTF(), in.readUTF());
+		long duration = in.readLong();
+		byte[] content = new byte[in.readInt()];
+		in.readFully(content);
+
+		if (timed) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(duration);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while replaying " + key, e);
+			}
+		}
+
+		Headers recordedHeaders = headers.build();
+		String contentType = recordedHeaders.get("Content-Type");
+		return new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(code).message(message)
+				.headers(recordedHeaders)
+				.body(ResponseBody.create(contentType == null ? null : MediaType.parse(contentType), content))
+				.build();
+	}
+}
@@ -0,0 +1,128 @@
+package pvt.email.clients;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ConversationThreaderTest {
+
+	@Test
+	void repliesFollowTheMessageTheyAnswer() {
+		ConversationThreader threader = new ConversationThreader();
+		int root = threader.add("<a@x>", refs(), "Plan", 1);
+		int reply = threader.add("<b@x>", refs("<a@x>"), "Re: Plan", 2);
+		int nested = threader.add("<c@x>", refs("<a@x>", "<b@x>"), "Re: Re: Plan", 3);
+		int second = threader.add("<d@x>", refs("<a@x>"), "Re: Plan", 4);
+
+		List<ConversationThreader.Conversation> conversations = threader.conversations();
+		assertEquals(1, conversations.size());
+		ConversationThreader.Conversation conversation = conversations.get(0);
+		assertEquals("Plan", conversation.subject);
+		assertArrayEquals(new int[] { root, reply, nested, second }, conversation.messages);
+		assertArrayEquals(new int[] { 0, 1, 2, 1 }, conversation.depths);
+		assertEquals(4, conversation.latest);
+	}
+
+	@Test
+	void replyBeforeItsOriginalIsRelinked() {
+		ConversationThreader threader = new ConversationThreader();
+		int reply = threader.add("<b@x>", refs("<a@x>"), "Re: Plan", 2);
+		int root = threader.add("<a@x>", refs(), "Plan", 1);
+
+		List<ConversationThreader.Conversation> conversations = threader.conversations();
+		assertEquals(1, conversations.size());
+		assertArrayEquals(new int[] { root, reply }, conversations.get(0).messages);
+		assertArrayEquals(new int[] { 0, 1 }, conversations.get(0).depths);
+	}
+
+	@Test
+	void missingParentKeepsTheSiblingsTogether() {
+		ConversationThreader threader = new ConversationThreader();
+		int first = threader.add("<b@x>", refs("<a@x>"), "Re: Plan", 2);
+		int second = threader.add("<c@x>", refs("<a@x>"), "Re: Plan", 3);
+
+		List<ConversationThreader.Conversation> conversations = threader.conversations();
+		assertEquals(1, conversations.size());
+		// the empty container of <a@x> is skipped, its children move up
+		assertArrayEquals(new int[] { first, second }, conversations.get(0).messages);
+		assertArrayEquals(new int[] { 0, 0 }, conversations.get(0).depths);
+	}
+
+	@Test
+	void rootsWithTheSameBaseSubjectAreGrouped() {
+		ConversationThreader threader = new ConversationThreader();
+		int reply = threader.add("<b@x>", refs("<lost@x>"), "RE: Budget", 5);
+		int original = threader.add("<a@x>", refs(), "Budget", 1);
+		int other = threader.add("<z@x>", refs(), "Lunch", 3);
+
+		List<ConversationThreader.Conversation> conversations = threader.conversations();
+		assertEquals(2, conversations.size());
+		// most recently active first, the original ahead of the reply
+		assertArrayEquals(new int[] { original, reply }, conversations.get(0).messages);
+		assertArrayEquals(new int[] { other }, conversations.get(1).messages);
+	}
+
+	@Test
+	void referenceLoopsAreIgnored() {
+		ConversationThreader threader = new ConversationThreader();
+		int a = threader.add("<a@x>", refs("<b@x>"), "One", 1);
+		int b = threader.add("<b@x>", refs("<a@x>"), "Two", 2);
+
+		List<ConversationThreader.Conversation> conversations = threader.conversations();
+		assertEquals(1, conversations.size());
+		assertArrayEquals(new int[] { b, a }, conversations.get(0).messages);
+	}
+
+	@Test
+	void duplicateMessageIdsAreKept() {
+		ConversationThreader threader = new ConversationThreader();
+		threader.add("<a@x>", refs(), "Copy", 1);
+		threader.add("<a@x>", refs(), "Copy", 2);
+		assertEquals(2, threader.size());
+		int threaded = 0;
+		for (ConversationThreader.Conversation conversation : threader.conversations())
+			threaded += conversation.messages.length;
+		assertEquals(2, threaded);
+	}
+
+	@Test
+	void graphMessagesGroupByConversationId() {
+		ConversationThreader threader = new ConversationThreader();
+		int first = threader.addConversation("c1", "Plan", 1);
+		int other = threader.addConversation("c2", "Plan", 2);
+		int second = threader.addConversation("c1", "RE: Plan", 3);
+
+		List<ConversationThreader.Conversation> conversations = threader.conversations();
+		// the same subject does not merge different conversation ids
+		assertEquals(2, conversations.size());
+		int[] c1 = conversations.get(0).messages.clone();
+		Arrays.sort(c1);
+		assertArrayEquals(new int[] { first, second }, c1);
+		assertArrayEquals(new int[] { other }, conversations.get(1).messages);
+	}
+
+	@Test
+	void baseSubjectStripsReplyPrefixes() {
+		assertEquals("plan", ConversationThreader.baseSubject("Re: Fwd: Plan"));
+		assertEquals("plan", ConversationThreader.baseSubject("RE[2]: AW: plan"));
+		assertEquals("meeting: monday", ConversationThreader.baseSubject("Meeting: Monday"));
+		assertEquals("", ConversationThreader.baseSubject(null));
+	}
+
+	@Test
+	void messageIdsAreReadInOrder() {
+		assertEquals(refs("<a@x>", "<b@x>"),
+				ConversationThreader.messageIds(" <a@x>\r\n\t<b@x> <broken", new ArrayList<String>()));
+		assertEquals(refs(), ConversationThreader.messageIds(null, new ArrayList<String>()));
+	}
+
+	private static List<String> refs(String... ids) {
+		return ids.length == 0 ? Collections.<String>emptyList() : Arrays.asList(ids);
+	}
+}
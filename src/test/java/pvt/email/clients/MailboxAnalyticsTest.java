@@ -0,0 +1,103 @@
+package pvt.email.clients;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class MailboxAnalyticsTest {
+
+	private static final long DAY = 86_400_000L;
+
+	@Test
+	void distinctSendersOfSmallMailboxesAreNearlyExact() {
+		MailboxAnalytics analytics = new MailboxAnalytics();
+		for (int i = 0; i < 1000; i++)
+			analytics.add("sender" + i % 25 + "@example.com", 0, -1);
+		// linear counting, off only where two senders share a register
+		long estimate = analytics.distinctSenders();
+		assertTrue(estimate >= 24 && estimate <= 25, "estimate " + estimate);
+		assertEquals(1000, analytics.size());
+	}
+
+	@Test
+	void distinctSendersAreEstimatedWithinAFewPercent() {
+		MailboxAnalytics analytics = new MailboxAnalytics();
+		int distinct = 200_000;
+		for (int i = 0; i < distinct; i++) {
+			analytics.add("user" + i + "@example.com", 0, -1);
+			// the same address in another case is the same sender
+			analytics.add("USER" + i + "@example.com", 0, -1);
+		}
+		long estimate = analytics.distinctSenders();
+		assertTrue(Math.abs(estimate - distinct) < distinct * 0.03, "estimate " + estimate);
+	}
+
+	@Test
+	void topSendersAreFoundAmongNoise() {
+		MailboxAnalytics analytics = new MailboxAnalytics();
+		for (int i = 0; i < 100_000; i++) {
+			analytics.add("noise" + i + "@example.com", 0, -1);
+			if (i % 50 == 0)
+				analytics.add("heavy@example.com", 0, -1);
+			if (i % 100 == 0)
+				analytics.add("medium@example.com", 0, -1);
+		}
+		List<MailboxAnalytics.SenderCount> top = analytics.topSenders(2);
+		assertEquals(2, top.size());
+		assertEquals("heavy@example.com", top.get(0).sender);
+		assertEquals("medium@example.com", top.get(1).sender);
+		// a Count-Min Sketch never counts less than the real count
+		assertTrue(top.get(0).count >= 2000, "count " + top.get(0).count);
+		assertTrue(top.get(1).count >= 1000, "count " + top.get(1).count);
+	}
+
+	@Test
+	void candidatesAreBounded() {
+		MailboxAnalytics analytics = new MailboxAnalytics();
+		for (int i = 0; i < MailboxAnalytics.CANDIDATES * 10; i++)
+			analytics.add("sender" + i + "@example.com", 0, -1);
+		assertEquals(MailboxAnalytics.CANDIDATES, analytics.topSenders(Integer.MAX_VALUE).size());
+	}
+
+	@Test
+	void messagesWithoutSenderAreCounted() {
+		MailboxAnalytics analytics = new MailboxAnalytics();
+		analytics.add(null, 0, 10);
+		assertEquals(1, analytics.size());
+		assertEquals(0, analytics.distinctSenders());
+		assertTrue(analytics.topSenders(10).isEmpty());
+	}
+
+	@Test
+	void daysAreCountedInOrder() {
+		MailboxAnalytics.DayCounts days = new MailboxAnalytics.DayCounts();
+		// more days than the initial table holds
+		for (int day = 1000; day > 0; day--) {
+			days.increment(day);
+			if (day % 2 == 0)
+				days.increment(day);
+		}
+		days.increment(-3);
+		long[][] sorted = days.sorted();
+		assertEquals(1001, sorted[0].length);
+		assertArrayEquals(new long[] { -3, 1, 2, 3 }, new long[] { sorted[0][0], sorted[0][1], sorted[0][2],
+				sorted[0][3] });
+		assertArrayEquals(new long[] { 1, 1, 2, 1 }, new long[] { sorted[1][0], sorted[1][1], sorted[1][2],
+				sorted[1][3] });
+		assertEquals(1000, sorted[0][1000]);
+	}
+
+	@Test
+	void repeatedSenderIsOneDistinctSender() {
+		MailboxAnalytics analytics = new MailboxAnalytics();
+		analytics.add("a@example.com", 3 * DAY + 1, 100);
+		analytics.add("a@example.com", 3 * DAY + DAY - 1, 3000);
+		assertEquals(2, analytics.size());
+		assertEquals(1, analytics.distinctSenders());
+		assertEquals(2, analytics.topSenders(1).get(0).count);
+	}
+}
@@ -0,0 +1,70 @@
+package pvt.email.clients;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class MboxOutputStreamTest {
+
+	@Test
+	void fromLinesAreQuoted() throws IOException {
+		assertEquals("Subject: x\n\n>From here\nnot From here\n\n", quote("Subject: x\n\nFrom here\nnot From here\n"));
+	}
+
+	@Test
+	void quotedFromLinesGetOneMoreQuote() throws IOException {
+		// mboxrd: any number of '>' before "From " gets one more, so reading strips exactly one
+		assertEquals(">>From a\n>>>From b\n\n", quote(">From a\n>>From b\n"));
+	}
+
+	@Test
+	void otherQuotesAndPartialMatchesAreKept() throws IOException {
+		assertEquals(">quoted\n>>Fro\nFromage\nFrom\n>> From\n\n", quote(">quoted\n>>Fro\nFromage\nFrom\n>> From\n"));
+	}
+
+	@Test
+	void lineEndingsBecomeLineFeeds() throws IOException {
+		assertEquals("a\n>From b\nc\rd\n\n", quote("a\r\nFrom b\r\nc\rd\r\n"));
+	}
+
+	@Test
+	void messagesEndWithAnEmptyLine() throws IOException {
+		assertEquals("no line end\n\n", quote("no line end"));
+		// a line start held back to see if it becomes "From " is written out
+		assertEquals("a\n>Fr\n\n", quote("a\n>Fr"));
+		assertEquals("\n", quote(""));
+	}
+
+	@Test
+	void matchesSpanWrites() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MailboxExporter.MboxOutputStream out = new MailboxExporter.MboxOutputStream(bytes);
+		for (String part : new String[] { "x\r", "\n>", "Fr", "om", " y\r", "\nFro", "m" })
+			out.write(part.getBytes(StandardCharsets.US_ASCII));
+		out.endMessage();
+		assertEquals("x\n>>From y\nFrom\n\n", bytes.toString("US-ASCII"));
+	}
+
+	@Test
+	void messagesAreSeparated() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MailboxExporter.MboxOutputStream out = new MailboxExporter.MboxOutputStream(bytes);
+		out.write("one\n".getBytes(StandardCharsets.US_ASCII));
+		out.endMessage();
+		out.write("From two\n".getBytes(StandardCharsets.US_ASCII));
+		out.endMessage();
+		assertEquals("one\n\n>From two\n\n", bytes.toString("US-ASCII"));
+	}
+
+	private static String quote(String message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MailboxExporter.MboxOutputStream out = new MailboxExporter.MboxOutputStream(bytes);
+		out.write(message.getBytes(StandardCharsets.US_ASCII));
+		out.endMessage();
+		return bytes.toString("US-ASCII");
+	}
+}
@@ -0,0 +1,113 @@
+package pvt.email.clients;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.Test;
+
+class MessageRulesTest {
+
+	@Test
+	void overlappingTextsAreAllFound() throws MessagingException {
+		// the classic Aho-Corasick set, "ushers" holds "she", "he" and "hers" through failure links
+		MessageRules rules = compile("he", "subject:he", "hers", "subject:hers", "his", "subject:his", "she",
+				"subject:she");
+		assertEquals("he, hers, she", rules.describe(rules.evaluate(message("Subject", "USHERS"))));
+		assertEquals("he, his", rules.describe(rules.evaluate(message("Subject", "this and he"))));
+		assertEquals("", rules.describe(rules.evaluate(message("Subject", "h e r s"))));
+	}
+
+	@Test
+	void textsOnlyMatchTheirHeader() throws MessagingException {
+		MessageRules rules = compile("from", "from:example", "subject", "subject:example");
+		assertEquals("from", rules.describe(rules.evaluate(message("From", "a@example.com", "Subject", "hello"))));
+		assertEquals("subject", rules.describe(rules.evaluate(message("From", "a@test", "Subject", "an example"))));
+	}
+
+	@Test
+	void allConditionsOfARuleMustHold() throws MessagingException {
+		MessageRules rules = compile("billing", "from:@billing.example.com & subject:invoice & x-priority");
+		assertArrayEquals(new int[0], rules.evaluate(message("From", "x@billing.example.com", "Subject", "Invoice")));
+		assertArrayEquals(new int[] { 0 }, rules.evaluate(message("From", "x@billing.example.com", "Subject",
+				"Your invoice", "X-Priority", "1")));
+		// nothing carries over to the next message
+		assertArrayEquals(new int[0], rules.evaluate(message("Subject", "invoice")));
+	}
+
+	@Test
+	void negatedConditionsVetoTheRule() throws MessagingException {
+		MessageRules rules = compile("bounces", "from=mailer-daemon@example.com & !subject:out of office",
+				"unlisted", "!list-id");
+		assertEquals("bounces, unlisted", rules.describe(rules.evaluate(message("From", " Mailer-Daemon@Example.com ",
+				"Subject", "Undeliverable"))));
+		assertEquals("unlisted", rules.describe(rules.evaluate(message("From", "mailer-daemon@example.com",
+				"Subject", "Out of Office: back monday"))));
+		assertEquals("", rules.describe(rules.evaluate(message("From", "mailer-daemon@example.com.evil",
+				"List-Id", "<l.example.com>"))));
+	}
+
+	@Test
+	void sharedConditionsCountForEveryRule() throws MessagingException {
+		MessageRules rules = compile("one", "subject:report", "two", "subject:report & list-id", "three",
+				"list-id & !subject:report");
+		assertEquals("one, two", rules.describe(rules.evaluate(message("Subject", "Report", "List-Id", "x"))));
+		assertEquals("three", rules.describe(rules.evaluate(message("Subject", "Other", "List-Id", "x"))));
+	}
+
+	@Test
+	void encodedHeadersAreDecoded() throws MessagingException {
+		MessageRules rules = compile("grusse", "subject:grüße");
+		assertEquals("grusse", rules.describe(rules.evaluate(message("Subject", "=?UTF-8?B?R3LDvMOfZQ==?="))));
+	}
+
+	@Test
+	void graphSummariesIncludeTheirHeaders() {
+		MessageRules rules = compile("lists", "list-id", "newsletter", "from:news@");
+		GraphStream.MessageSummary message = new GraphStream.MessageSummary();
+		message.fromName = "News";
+		message.fromAddress = "news@example.com";
+		assertEquals("newsletter", rules.describe(rules.evaluate(message)));
+		message.headers = new ArrayList<String[]>();
+		message.headers.add(new String[] { "List-Id", "<news.example.com>" });
+		assertEquals("lists, newsletter", rules.describe(rules.evaluate(message)));
+	}
+
+	@Test
+	void hitsAreCountedPerRule() throws MessagingException {
+		MessageRules rules = compile("counted hits test", "subject:counted");
+		long before = rules.getHits(0);
+		rules.evaluate(message("Subject", "counted"));
+		rules.evaluate(message("Subject", "not this one"));
+		rules.evaluate(message("Subject", "counted again"));
+		assertEquals(before + 2, rules.getHits(0));
+	}
+
+	@Test
+	void invalidConditionsAreRejected() {
+		assertThrows(IllegalArgumentException.class, () -> compile("empty", "subject:"));
+		assertThrows(IllegalArgumentException.class, () -> compile("nameless", ":text"));
+	}
+
+	private static MessageRules compile(String... nameAndConditions) {
+		Map<String, String> rules = new TreeMap<String, String>();
+		for (int i = 0; i < nameAndConditions.length; i += 2)
+			rules.put(nameAndConditions[i], nameAndConditions[i + 1]);
+		return MessageRules.compile(rules);
+	}
+
+	private static MimeMessage message(String... headers) throws MessagingException {
+		MimeMessage message = new MimeMessage((Session) null);
+		for (int i = 0; i < headers.length; i += 2)
+			message.addHeader(headers[i], headers[i + 1]);
+		return message;
+	}
+}
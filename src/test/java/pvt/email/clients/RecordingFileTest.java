@@ -0,0 +1,131 @@
+package pvt.email.clients;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RecordingFileTest {
+
+	private Path file;
+
+	@BeforeEach
+	void createFile() throws IOException {
+		file = Files.createTempFile("recording", ".etcr");
+	}
+
+	@AfterEach
+	void deleteFile() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	void entriesRoundTrip() throws IOException {
+		long start = System.nanoTime();
+		try (RecordingFile.Writer writer = new RecordingFile.Writer(file)) {
+			writer.append(RecordingFile.HTTP, "GET /me", start, bytes("first"));
+			writer.append(RecordingFile.SOCKET, "imap.example.com:993", start, new byte[0]);
+			writer.append(RecordingFile.HTTP, "GET /me", start, bytes("second"));
+		}
+		try (RecordingFile.Reader reader = new RecordingFile.Reader(file)) {
+			assertEquals(2, reader.count("GET /me"));
+			assertEquals(1, reader.count("imap.example.com:993"));
+			assertEquals(0, reader.count("GET /me/messages"));
+
+			RecordingFile.Entry first = reader.read("GET /me", 0);
+			assertEquals(RecordingFile.HTTP, first.kind);
+			assertEquals("GET /me", first.key);
+			assertArrayEquals(bytes("first"), first.payload);
+			assertTrue(first.startNanos <= System.nanoTime() - start);
+			assertArrayEquals(bytes("second"), reader.read("GET /me", 1).payload);
+
+			RecordingFile.Entry socket = reader.read("imap.example.com:993", 0);
+			assertEquals(RecordingFile.SOCKET, socket.kind);
+			assertEquals(0, socket.payload.length);
+
+			assertNull(reader.read("GET /me", 2));
+			assertNull(reader.read("GET /me/messages", 0));
+		}
+	}
+
+	@Test
+	void payloadStreamReadsThePayload() throws IOException {
+		try (RecordingFile.Writer writer = new RecordingFile.Writer(file)) {
+			writer.append(RecordingFile.HTTP, "key", System.nanoTime(), new byte[] { 0, 0, 0, 42 });
+		}
+		try (RecordingFile.Reader reader = new RecordingFile.Reader(file)) {
+			assertEquals(42, reader.read("key", 0).payloadStream().readInt());
+		}
+	}
+
+	@Test
+	void truncatedRecordingIsRejected() throws IOException {
+		try (RecordingFile.Writer writer = new RecordingFile.Writer(file)) {
+			writer.append(RecordingFile.HTTP, "key", System.nanoTime(), bytes("payload"));
+		}
+		byte[] recorded = Files.readAllBytes(file);
+		// a recording that was not closed has no trailer
+		Files.write(file, Arrays.copyOf(recorded, recorded.length - Long.BYTES - Integer.BYTES));
+		assertThrows(IOException.class, () -> new RecordingFile.Reader(file));
+		Files.write(file, new byte[] { 1, 2, 3 });
+		assertThrows(IOException.class, () -> new RecordingFile.Reader(file));
+	}
+
+	@Test
+	void appendAfterCloseFails() throws IOException {
+		RecordingFile.Writer writer = new RecordingFile.Writer(file);
+		writer.close();
+		assertThrows(IOException.class, () -> writer.append(RecordingFile.HTTP, "key", 0, new byte[0]));
+	}
+
+	@Test
+	void socketTranscriptsKeepOnlyTheTimingOfClientWrites() throws Exception {
+		String key;
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+				RecordingFile.Writer writer = new RecordingFile.Writer(file)) {
+			key = SocketTranscript.key("imap", "127.0.0.1", server.getLocalPort());
+			Socket client = new SocketTranscript.RecordingSocketFactory(writer, "imap").createSocket("127.0.0.1",
+					server.getLocalPort());
+			try (Socket accepted = server.accept()) {
+				accepted.getOutputStream().write(bytes("* OK ready\r\n"));
+				client.getInputStream().read(new byte[64]);
+				client.getOutputStream().write(bytes("a1 LOGIN me secret\r\n"));
+				accepted.getInputStream().read(new byte[64]);
+			} finally {
+				client.close();
+			}
+		}
+		try (RecordingFile.Reader reader = new RecordingFile.Reader(file)) {
+			DataInputStream events = reader.read(key, 0).payloadStream();
+			assertEquals(SocketTranscript.SERVER, events.readByte());
+			events.readLong();
+			byte[] greeting = new byte[events.readInt()];
+			events.readFully(greeting);
+			assertEquals("* OK ready\r\n", new String(greeting, StandardCharsets.UTF_8));
+			// the LOGIN line, credentials included, is not in the file
+			assertEquals(SocketTranscript.CLIENT, events.readByte());
+			events.readLong();
+			assertEquals(0, events.readInt());
+			assertEquals(-1, events.read());
+		}
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+}
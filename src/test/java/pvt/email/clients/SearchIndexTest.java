@@ -0,0 +1,87 @@
+package pvt.email.clients;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import javax.mail.MessagingException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SearchIndexTest {
+
+	private Path dir;
+
+	@BeforeEach
+	void createDirectory() throws IOException {
+		dir = Files.createTempDirectory("store");
+	}
+
+	@AfterEach
+	void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	void postingsAreVarints() {
+		SearchIndex.Postings postings = new SearchIndex.Postings();
+		postings.add(0, 1);
+		postings.add(300, 2);
+		postings.add(300 + 20000, 200);
+		// (delta, frequency) pairs, 7 bits per byte, low bits first; the first delta counts from -1
+		assertArrayEquals(new byte[] { 1, 1, (byte) 0xAC, 0x02, 2, (byte) 0xA0, (byte) 0x9C, 0x01, (byte) 0xC8, 0x01 },
+				Arrays.copyOf(postings.bytes, postings.length));
+		assertEquals(3, postings.docFreq);
+		assertEquals(20300, postings.lastDoc);
+	}
+
+	@Test
+	void searchDecodesLargeDeltas() throws IOException, MessagingException {
+		int[] matching = { 0, 1, 200, 20000, 20001 };
+		try (MessageStore store = new MessageStore(dir)) {
+			for (int doc = 0, next = 0; doc <= 20001; doc++) {
+				boolean match = next < matching.length && matching[next] == doc;
+				if (match)
+					next++;
+				store.append(doc + 1, doc, 0, "sender" + doc % 7 + "@example.com",
+						match ? "quarterly invoice" : "weekly report", "id" + doc, "INBOX", null);
+			}
+			assertEquals(20002, SearchIndex.update(store));
+			SearchIndex.Hits hits = SearchIndex.open(store).search("invoice", 10);
+			assertEquals(matching.length, hits.total);
+			int[] found = hits.records.clone();
+			Arrays.sort(found);
+			assertArrayEquals(matching, found);
+		}
+	}
+
+	@Test
+	void appendedBlocksMatchTheLoadedIndex() throws IOException, MessagingException {
+		try (MessageStore store = new MessageStore(dir)) {
+			store.append(1, 1, 0, "alice@example.com", "budget meeting", "a", "INBOX", null);
+			SearchIndex.update(store);
+			long saved = Files.size(dir.resolve("search.idx"));
+			store.append(2, 2, 0, "bob@example.com", "budget review", "b", "INBOX", null);
+			store.append(3, 3, 0, "carol@example.com", "lunch", "c", "INBOX", null);
+			assertEquals(2, SearchIndex.update(store));
+			assertTrue(Files.size(dir.resolve("search.idx")) > saved);
+
+			SearchIndex index = SearchIndex.open(store);
+			assertEquals(3, index.size());
+			SearchIndex.Hits hits = index.search("budget", 10);
+			assertEquals(2, hits.total);
+			assertEquals(1, index.search("bob", 10).total);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package pvt.email.clients;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class SlotFinderTest {
+
+	// a Monday
+	private static final ZonedDateTime MONDAY = ZonedDateTime.of(2024, 3, 4, 0, 0, 0, 0, ZoneOffset.UTC);
+
+	@Test
+	void emptyCalendarsGiveConsecutiveSlots() {
+		SlotFinder finder = new SlotFinder(MONDAY, MONDAY.plusDays(1), 30);
+		finder.addAttendee("a@example.com", false);
+		List<SlotFinder.Slot> slots = finder.find(60, 3);
+		assertEquals(3, slots.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(at(i * 60), slots.get(i).start);
+			assertEquals(at(i * 60 + 60), slots.get(i).end);
+		}
+	}
+
+	@Test
+	void busyTimeOfRequiredAttendeesIsAvoided() {
+		SlotFinder finder = new SlotFinder(MONDAY, MONDAY.plusDays(1), 15);
+		finder.addAttendee("a@example.com", false);
+		finder.addBusy("a@example.com", at(0), at(9 * 60));
+		// a busy minute makes the whole slot busy, getSchedule may echo the address in another case
+		finder.addBusy("B@example.com", at(9 * 60 + 20), at(9 * 60 + 21));
+		List<SlotFinder.Slot> slots = finder.find(30, 2);
+		assertEquals(at(9 * 60 + 30), slots.get(0).start);
+		assertEquals(at(10 * 60), slots.get(1).start);
+	}
+
+	@Test
+	void longMeetingsSpanBitsetWords() {
+		// 5 minute slots, 288 per day; a 7 hour meeting covers 84 slots over two words
+		SlotFinder finder = new SlotFinder(MONDAY, MONDAY.plusDays(1), 5);
+		finder.addBusy("a@example.com", at(0), at(60));
+		finder.addBusy("a@example.com", at(7 * 60 + 55), at(8 * 60));
+		finder.addBusy("a@example.com", at(16 * 60), at(16 * 60 + 5));
+		List<SlotFinder.Slot> slots = finder.find(7 * 60, 10);
+		assertEquals(2, slots.size());
+		assertEquals(at(8 * 60), slots.get(0).start);
+		assertEquals(at(16 * 60 + 5), slots.get(1).start);
+		assertTrue(finder.find(16 * 60, 1).isEmpty());
+	}
+
+	@Test
+	void slotsWithMoreOptionalAttendeesFreeComeFirst() {
+		SlotFinder finder = new SlotFinder(MONDAY, MONDAY.plusDays(1), 30);
+		finder.addAttendee("required@example.com", false);
+		finder.addAttendee("optional@example.com", true);
+		finder.addBusy("optional@example.com", at(0), at(14 * 60));
+		List<SlotFinder.Slot> slots = finder.find(60, 2);
+		assertEquals(at(14 * 60), slots.get(0).start);
+		assertEquals(1, slots.get(0).optionalFree);
+		assertEquals(at(15 * 60), slots.get(1).start);
+	}
+
+	@Test
+	void workingHoursSkipNightsAndWeekends() {
+		SlotFinder finder = new SlotFinder(MONDAY.plusDays(4), MONDAY.plusDays(8), 30);
+		finder.addAttendee("a@example.com", false);
+		// 9:00 to 17:00 in UTC+1
+		finder.setWorkingHours(ZoneId.of("+01:00"), LocalTime.of(9, 0), LocalTime.of(17, 0));
+		finder.addBusy("a@example.com", at(4 * 1440), at(4 * 1440 + 15 * 60));
+		List<SlotFinder.Slot> slots = finder.find(60, 3);
+		// Friday 15:00 UTC is the last hour, Saturday and Sunday are skipped
+		assertEquals(at(4 * 1440 + 15 * 60), slots.get(0).start);
+		assertEquals(at(7 * 1440 + 8 * 60), slots.get(1).start);
+		assertEquals(at(7 * 1440 + 9 * 60), slots.get(2).start);
+	}
+
+	@Test
+	void meetingsLongerThanTheWindowFindNothing() {
+		SlotFinder finder = new SlotFinder(MONDAY, MONDAY.plusHours(2), 30);
+		assertEquals(4, finder.getSlotCount());
+		assertTrue(finder.find(150, 1).isEmpty());
+		assertEquals(1, finder.find(120, 5).size());
+		assertTrue(finder.find(30, 0).isEmpty());
+	}
+
+	@Test
+	void invalidSlotLengthsAreRejected() {
+		assertThrows(IllegalArgumentException.class, () -> new SlotFinder(MONDAY, MONDAY.plusDays(1), 4));
+		assertThrows(IllegalArgumentException.class, () -> new SlotFinder(MONDAY, MONDAY.plusDays(1), 1441));
+		assertThrows(IllegalArgumentException.class, () -> new SlotFinder(MONDAY, MONDAY, 30));
+	}
+
+	private static Instant at(int minutes) {
+		return MONDAY.plusMinutes(minutes).toInstant();
+	}
+}